@@ -0,0 +1,313 @@
+/*Copyright (C) 2022  Riley Kuttruff
+*
+*   This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or
+*   (at your option) any later version.
+*
+*   This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+*   Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+*/
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Throughput & latency benchmarks.
+ * <p>
+ * Micro benchmarks cover reply decoding, dot-stuffing and building PLAIN credentials. End-to-end benchmarks send
+ * messages to an in-process {@link MockSMTPServer} over TLS, on a single connection with and without pipelining and
+ * through a session pool, and report messages/sec, bytes/sec, p50/p99 send latency and round trips per message.
+ * <p>
+ * Run with {@code bench/run.sh}, which creates the self-signed certificate the server and client use.
+ * <pre>
+ *   Options:
+ *     -mode=all|micro|e2e  Benchmarks to run (default: all)
+ *     -messages=N          Messages per end-to-end run (default: 2000)
+ *     -size=N              Message size in octets (default: 4096)
+ *     -latency=N           Server reply latency (ms) (default: 0)
+ *     -sessions=N          Pool size for the pooled run (default: 8)
+ *     -port=N              Server port (default: 0, any free port)
+ * </pre>
+ *
+ *  @author     Riley Kuttruff
+ *  @version    1.0
+ */
+public class Bench{
+    /**@hidden*/
+    private static final String SENDER = "bench@localhost";
+    /**@hidden*/
+    private static final String[] RECIPIENTS = {"sink@localhost"};
+    
+    /*      Options     */
+    /**@hidden*/
+    private static String mode = "all";
+    /**@hidden*/
+    private static int messages = 2000, size = 4096, sessions = 8, port = 0;
+    /**@hidden*/
+    private static long latency = 0;
+    
+    /**
+     * Runs the benchmarks.
+     *
+     * @param args Options, see the class description
+     * @throws Exception If a benchmark fails
+     */
+    public static void main(String[] args) throws Exception{
+        for(String arg : args){
+            String[] kv = arg.split("=", 2);
+            String val = (kv.length > 1) ? kv[1] : "";
+            
+            switch(kv[0]){
+                case "-mode":
+                    mode = val;
+                    break;
+                case "-messages":
+                    messages = Integer.parseInt(val);
+                    break;
+                case "-size":
+                    size = Integer.parseInt(val);
+                    break;
+                case "-latency":
+                    latency = Long.parseLong(val);
+                    break;
+                case "-sessions":
+                    sessions = Integer.parseInt(val);
+                    break;
+                case "-port":
+                    port = Integer.parseInt(val);
+                    break;
+                default:
+                    System.err.println("Unknown option " + arg);
+                    System.exit(1);
+            }
+        }
+        
+        if(mode.equals("all") || mode.equals("micro"))
+            micro();
+        
+        if(mode.equals("all") || mode.equals("e2e"))
+            endToEnd();
+    }
+    
+    /*      Micro benchmarks        */
+    
+    /**@hidden*/
+    private static void micro() throws Exception{
+        System.out.println("Micro benchmarks");
+        System.out.printf("  %-24s %14s %14s%n", "benchmark", "ns/op", "ops/s");
+        
+        //Reply decoding: a typical EHLO reply, many times over
+        byte[] reply = ("250-smtp.example.com at your service\r\n250-SIZE 35882577\r\n250-8BITMIME\r\n250-AUTH LOGIN PLAIN XOAUTH2\r\n" +
+                        "250-ENHANCEDSTATUSCODES\r\n250-PIPELINING\r\n250-CHUNKING\r\n250 SMTPUTF8\r\n").getBytes();
+        final int REPLIES = 1000;
+        ByteArrayOutputStream replies = new ByteArrayOutputStream();
+        
+        for(int i = 0; i < REPLIES; i++)
+            replies.write(reply);
+        
+        byte[] replyBytes = replies.toByteArray();
+        
+        measure("reply decode", REPLIES, () -> {
+            ReplyDecoder dec = new ReplyDecoder(new ByteArrayInputStream(replyBytes));
+            
+            for(int i = 0; i < REPLIES; i++)
+                dec.read();
+        });
+        
+        measure("reply decode + parse", REPLIES, () -> {
+            ReplyDecoder dec = new ReplyDecoder(new ByteArrayInputStream(replyBytes));
+            
+            for(int i = 0; i < REPLIES; i++){
+                dec.read();
+                Capabilities.parse(dec.toResponse());
+            }
+        });
+        
+        //Dot-stuffing a message with leading dots & bare LFs
+        byte[] text = body(size, true).getBytes();
+        DotStuffingOutputStream dots = new DotStuffingOutputStream(OutputStream.nullOutputStream());
+        
+        measure("dot-stuff " + size + "B", 1, () -> {
+            dots.reset();
+            dots.write(text, 0, text.length);
+            dots.finish();
+        });
+        
+        //PLAIN credentials, built each time & precomputed
+        char[] pass = "correct horse battery staple".toCharArray();
+        PlainAuth plain = new PlainAuth(pass);
+        PlainCredentials creds = new PlainCredentials("user@example.com", pass);
+        
+        measure("PlainAuth", 1, () -> plain.buildAuthString("user@example.com"));
+        measure("PlainCredentials", 1, () -> creds.getAuthData());
+        
+        plain.clear();
+        creds.clear();
+        
+        System.out.println();
+    }
+    
+    //Runs op (covering units operations) until warmed up, then reports the mean time per operation
+    /**@hidden*/
+    private static void measure(String name, int units, Op op) throws Exception{
+        final long WARMUP = 1_000_000_000L, RUN = 2_000_000_000L;
+        
+        for(long end = System.nanoTime() + WARMUP; System.nanoTime() < end;)
+            op.run();
+        
+        long n = 0, start = System.nanoTime(), elapsed;
+        
+        do{
+            op.run();
+            n++;
+            elapsed = System.nanoTime() - start;
+        }while(elapsed < RUN);
+        
+        double nsPerOp = (double)elapsed / (n * units);
+        
+        System.out.printf("  %-24s %14.1f %14.0f%n", name, nsPerOp, 1e9 / nsPerOp);
+    }
+    
+    /*      End-to-end benchmarks       */
+    
+    /**@hidden*/
+    private static void endToEnd() throws Exception{
+        System.out.printf("End-to-end: %d messages of %d octets, %d ms latency%n", messages, size, latency);
+        System.out.printf("  %-24s %10s %12s %10s %10s %10s%n", "mode", "msgs/s", "MB/s", "p50 ms", "p99 ms", "trips/msg");
+        
+        MailMessage msg = new MailMessage(SENDER, RECIPIENTS, Arrays.asList(body(size, false).split("\r\n")), null);
+        
+        try(MockSMTPServer server = new MockSMTPServer(port, Arrays.asList("8BITMIME", "AUTH PLAIN"), latency)){
+            server.setRecording(false);
+            server.start();
+            single("single", server, msg);
+        }
+        
+        try(MockSMTPServer server = new MockSMTPServer(port, Arrays.asList("8BITMIME", "AUTH PLAIN", "PIPELINING"), latency)){
+            server.setRecording(false);
+            server.start();
+            single("pipelined", server, msg);
+        }
+        
+        try(MockSMTPServer server = new MockSMTPServer(port, Arrays.asList("8BITMIME", "AUTH PLAIN", "PIPELINING"), latency)){
+            server.setRecording(false);
+            server.start();
+            pooled("pooled x" + sessions, server, msg);
+        }
+    }
+    
+    //One session, messages sent one after another
+    /**@hidden*/
+    private static void single(String name, MockSMTPServer server, MailMessage msg) throws Exception{
+        SMTPSession session = new SMTPSession("localhost", server.getPort());
+        
+        session.open();
+        session.ehlo("localhost");
+        session.authenticate("PLAIN", "bench", new PlainAuth("bench".toCharArray()).buildAuthString("bench"));
+        
+        for(int i = 0; i < Math.min(messages, 100); i++)     //Warm up
+            session.send(msg);
+        
+        long[] times = new long[messages];
+        long startBytes = server.getBytes(), startTrips = server.getRoundTrips();
+        long start = System.nanoTime();
+        
+        for(int i = 0; i < messages; i++){
+            long t = System.nanoTime();
+            
+            if(!session.send(msg).isSuccess())
+                throw new IOException("Send failed");
+            
+            times[i] = System.nanoTime() - t;
+        }
+        
+        report(name, System.nanoTime() - start, server.getBytes() - startBytes, server.getRoundTrips() - startTrips, times);
+        
+        session.quit();
+        session.close();
+    }
+    
+    //Messages sent concurrently through a session pool
+    /**@hidden*/
+    private static void pooled(String name, MockSMTPServer server, MailMessage msg) throws Exception{
+        SMTPSessionPool pool = new SMTPSessionPool(sessions, SMTPSessionPool.DEFAULT_IDLE_TIMEOUT, SMTPSessionPool.DEFAULT_MAX_LIFETIME);
+        PlainCredentials creds = new PlainCredentials("bench", "bench".toCharArray());
+        AsyncSMTPClient client = new AsyncSMTPClient(pool, "localhost", server.getPort(), "bench", "PLAIN", creds);
+        
+        List<CompletableFuture<SendResult>> warmup = new ArrayList<>();
+        
+        for(int i = 0; i < Math.min(messages, 100); i++)
+            warmup.add(client.send(msg));
+        
+        for(CompletableFuture<SendResult> f : warmup)
+            f.get();
+        
+        long[] times = new long[messages];
+        List<CompletableFuture<SendResult>> sends = new ArrayList<>(messages);
+        long startBytes = server.getBytes(), startTrips = server.getRoundTrips();
+        long start = System.nanoTime();
+        
+        for(int i = 0; i < messages; i++){
+            final int n = i;
+            long t = System.nanoTime();
+            
+            sends.add(client.send(msg).whenComplete((r, e) -> times[n] = System.nanoTime() - t));
+        }
+        
+        for(CompletableFuture<SendResult> f : sends){
+            if(!f.get().isSuccess())
+                throw new IOException("Send failed");
+        }
+        
+        report(name, System.nanoTime() - start, server.getBytes() - startBytes, server.getRoundTrips() - startTrips, times);
+        
+        client.close();
+        pool.close();
+        creds.clear();
+    }
+    
+    /**@hidden*/
+    private static void report(String name, long elapsed, long bytes, long trips, long[] times){
+        Arrays.sort(times);
+        
+        double secs = elapsed / 1e9;
+        
+        System.out.printf("  %-24s %10.0f %12.2f %10.2f %10.2f %10.2f%n", name, times.length / secs, bytes / secs / 1e6,
+                          percentile(times, 50) / 1e6, percentile(times, 99) / 1e6, (double)trips / times.length);
+    }
+    
+    /**@hidden*/
+    private static long percentile(long[] sorted, int p){
+        return sorted[Math.min(sorted.length - 1, (int)Math.ceil(p / 100.0 * sorted.length) - 1)];
+    }
+    
+    //Message text of about the given size, in lines of at most 76 characters; some lines start with '.' and, if bareLF, end with LF only
+    /**@hidden*/
+    private static String body(int size, boolean bareLF){
+        StringBuilder sb = new StringBuilder("Subject: benchmark\r\n\r\n");
+        
+        for(int line = 0; sb.length() < size; line++){
+            if(line % 10 == 0)
+                sb.append('.');
+            
+            while(sb.length() % 78 != 76 && sb.length() < size)
+                sb.append((char)('a' + sb.length() % 26));
+            
+            sb.append((bareLF && line % 7 == 0) ? "\n" : "\r\n");
+        }
+        
+        return sb.toString();
+    }
+    
+    /**
+     * A benchmarked operation.
+     */
+    @FunctionalInterface
+    private interface Op{
+        /**@hidden*/
+        void run() throws Exception;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,995 @@
+/*Copyright (C) 2022  Riley Kuttruff
+*
+*   This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or
+*   (at your option) any later version.
+*
+*   This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+*   Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+*/
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import javax.net.ssl.*;
+
+/**
+ * Embedded SMTP server over implicit TLS, for load & regression testing.
+ * <p>
+ * All connections are served by one thread with a {@link Selector}; TLS is done with an {@link SSLEngine} per
+ * connection. The server advertises a configurable set of {@code EHLO} extensions and accepts every command and message,
+ * unless told otherwise by {@link Fault}s: a fault replaces the reply to matching commands (e.g. a {@code 451} to the
+ * third {@code RCPT}) or drops the connection when they arrive.
+ * <p>
+ * Replies are held until the client has nothing more in flight, then sent together after the configured latency, so
+ * each round trip costs one latency period whether or not the client pipelines. {@link #getRoundTrips()} counts them.
+ * <p>
+ * Received messages are recorded (see {@link #getReceived()}) unless recording is turned off, e.g. for load tests.
+ *
+ *  @author     Riley Kuttruff
+ *  @version    1.0
+ */
+public class MockSMTPServer implements Closeable{
+    /**@hidden*/
+    private static final byte[] CRLF = {'\r', '\n'};
+    
+    /**@hidden*/
+    private final ServerSocketChannel server;
+    /**@hidden*/
+    private final Selector selector;
+    /**@hidden*/
+    private final SSLContext context;
+    /**@hidden*/
+    private final List<String> capabilities;
+    /**Delay (ns) before each batch of replies*/
+    private final long latency;
+    
+    /**Faults, in the order they are checked*/
+    private final List<Fault> faults;
+    /**Received messages, if recording*/
+    private final List<Message> received;
+    /**@hidden*/
+    private volatile boolean recording;
+    
+    /**@hidden*/
+    private final AtomicLong messages, bytes, connections, roundTrips;
+    
+    /**@hidden*/
+    private Thread thread;
+    /**@hidden*/
+    private volatile boolean closed;
+    
+    /**
+     * Constructor. Binds to the loopback address; see {@link #start()}.
+     * <p>
+     * The server's certificate comes from the default {@link SSLContext} (i.e. the {@code javax.net.ssl.keyStore}
+     * system property).
+     *
+     * @param port Port to listen on, {@code 0} for any free port
+     * @param capabilities {@code EHLO} extensions to advertise, e.g. {@code "PIPELINING"}
+     * @param latency Delay (ms) before each batch of replies
+     * @throws IOException If the port cannot be bound, or there is no default {@link SSLContext}
+     */
+    public MockSMTPServer(int port, List<String> capabilities, long latency) throws IOException{
+        this(port, capabilities, latency, defaultContext());
+    }
+    
+    /**
+     * Constructor. Binds to the loopback address; see {@link #start()}.
+     *
+     * @param port Port to listen on, {@code 0} for any free port
+     * @param capabilities {@code EHLO} extensions to advertise, e.g. {@code "PIPELINING"}
+     * @param latency Delay (ms) before each batch of replies
+     * @param context Provides the server's certificate
+     * @throws IOException If the port cannot be bound
+     */
+    public MockSMTPServer(int port, List<String> capabilities, long latency, SSLContext context) throws IOException{
+        this.capabilities = new ArrayList<>(capabilities);
+        this.latency = TimeUnit.MILLISECONDS.toNanos(latency);
+        this.context = Objects.requireNonNull(context);
+        
+        faults = new CopyOnWriteArrayList<>();
+        received = Collections.synchronizedList(new ArrayList<>());
+        recording = true;
+        
+        messages = new AtomicLong();
+        bytes = new AtomicLong();
+        connections = new AtomicLong();
+        roundTrips = new AtomicLong();
+        
+        thread = null;
+        closed = false;
+        
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        
+        try{
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        }
+        catch(IOException e){
+            closeAll();
+            throw e;
+        }
+    }
+    
+    /**
+     * Starts serving, on a daemon thread.
+     */
+    public synchronized void start(){
+        if(thread != null || closed)
+            throw new IllegalStateException("Already started or closed");
+        
+        thread = new Thread(this::run, "MockSMTPServer-" + getPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Adds a fault. Faults are checked in the order they were added; the first that applies to a command is used.
+     *
+     * @param fault The fault
+     */
+    public void addFault(Fault fault){
+        faults.add(Objects.requireNonNull(fault));
+    }
+    
+    /**
+     * Removes all faults.
+     */
+    public void clearFaults(){
+        faults.clear();
+    }
+    
+    /**
+     * Sets whether received messages are recorded.
+     *
+     * @param recording If {@code true} (the default), messages are kept for {@link #getReceived()}
+     */
+    public void setRecording(boolean recording){
+        this.recording = recording;
+    }
+    
+    /**
+     * Returns the messages received while recording.
+     *
+     * @return Copy of the list of messages, in the order received
+     */
+    public List<Message> getReceived(){
+        synchronized(received){
+            return new ArrayList<>(received);
+        }
+    }
+    
+    /**
+     * Discards the recorded messages.
+     */
+    public void clearReceived(){
+        received.clear();
+    }
+    
+    /**
+     * Returns the port the server listens on.
+     *
+     * @return Port number
+     */
+    public int getPort(){
+        return server.socket().getLocalPort();
+    }
+    
+    /**
+     * Returns the number of messages received.
+     *
+     * @return Number of messages
+     */
+    public long getMessages(){
+        return messages.get();
+    }
+    
+    /**
+     * Returns the number of octets of message text received.
+     *
+     * @return Number of octets
+     */
+    public long getBytes(){
+        return bytes.get();
+    }
+    
+    /**
+     * Returns the number of connections accepted.
+     *
+     * @return Number of connections
+     */
+    public long getConnections(){
+        return connections.get();
+    }
+    
+    /**
+     * Returns the number of round trips: batches of replies sent after the client had nothing more in flight.
+     *
+     * @return Number of round trips
+     */
+    public long getRoundTrips(){
+        return roundTrips.get();
+    }
+    
+    /**
+     * Stops the server and closes its connections.
+     *
+     * @throws InterruptedIOException If interrupted waiting for the server thread to end
+     */
+    @Override
+    public void close() throws InterruptedIOException{
+        Thread t;
+        
+        synchronized(this){
+            closed = true;
+            t = thread;
+        }
+        
+        if(t == null){
+            closeAll();
+            return;
+        }
+        
+        selector.wakeup();
+        
+        try{
+            t.join();
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the server to stop");
+        }
+    }
+    
+    //Selector loop
+    /**@hidden*/
+    private void run(){
+        try{
+            while(!closed){
+                long now = System.nanoTime();
+                long wait = Long.MAX_VALUE;
+                
+                //Send replies whose latency is up; find the next due
+                for(SelectionKey key : selector.keys()){
+                    if(!(key.attachment() instanceof Conn))
+                        continue;
+                    
+                    Conn c = (Conn)key.attachment();
+                    
+                    if(c.replyAt == 0)
+                        continue;
+                    
+                    if(c.replyAt - now <= 0)
+                        sendReplies(c);
+                    else
+                        wait = Math.min(wait, c.replyAt - now);
+                }
+                
+                if(wait == Long.MAX_VALUE)
+                    selector.select();
+                else
+                    selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                
+                while(it.hasNext()){
+                    SelectionKey key = it.next();
+                    it.remove();
+                    
+                    if(!key.isValid())
+                        continue;
+                    
+                    if(key.isAcceptable())
+                        accept();
+                    else
+                        handle((Conn)key.attachment());
+                }
+            }
+        }
+        catch(IOException e){}
+        finally{
+            closeAll();
+        }
+    }
+    
+    //Closes the connections, the listening socket & the selector
+    /**@hidden*/
+    private void closeAll(){
+        try{
+            for(SelectionKey key : selector.keys()){
+                try{
+                    key.channel().close();
+                }
+                catch(IOException e){}
+            }
+        }
+        catch(ClosedSelectorException e){}
+        
+        try{
+            server.close();
+        }
+        catch(IOException e){}
+        
+        try{
+            selector.close();
+        }
+        catch(IOException e){}
+    }
+    
+    /**@hidden*/
+    private void accept() throws IOException{
+        SocketChannel ch = server.accept();
+        
+        if(ch == null)
+            return;
+        
+        ch.configureBlocking(false);
+        ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.beginHandshake();
+        
+        Conn c = new Conn(ch, engine);
+        c.key = ch.register(selector, SelectionKey.OP_READ, c);
+        
+        connections.incrementAndGet();
+        
+        c.reply("220 mock ESMTP ready");     //Sent once the handshake is done
+    }
+    
+    //Readable and/or writable
+    /**@hidden*/
+    private void handle(Conn c){
+        try{
+            if(c.key.isWritable())
+                flushNet(c);
+            
+            if(c.key.isValid() && c.key.isReadable()){
+                if(!readNet(c)){
+                    drop(c);
+                    return;
+                }
+                
+                if(!c.handshaken && c.engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING)
+                    c.handshaken = true;
+                
+                if(c.handshaken)
+                    process(c);
+            }
+        }
+        catch(IOException | RuntimeException e){
+            drop(c);
+        }
+    }
+    
+    //Reads & decrypts what has arrived into appIn. False at end of stream
+    /**@hidden*/
+    private boolean readNet(Conn c) throws IOException{
+        if(c.ch.read(c.netIn) < 0)
+            return false;
+        
+        c.netIn.flip();
+        
+        try{
+            for(;;){
+                SSLEngineResult res = c.engine.unwrap(c.netIn, c.appIn);
+                
+                switch(res.getStatus()){
+                    case BUFFER_OVERFLOW:
+                        c.appIn = enlarge(c.appIn, c.engine.getSession().getApplicationBufferSize());
+                        continue;
+                    case CLOSED:
+                        return false;
+                    default:
+                        break;
+                }
+                
+                runHandshake(c);
+                
+                if(res.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW || !c.netIn.hasRemaining())
+                    return true;
+            }
+        }
+        finally{
+            c.netIn.compact();
+            
+            if(!c.netIn.hasRemaining())     //Record larger than the buffer
+                c.netIn = enlarge(c.netIn, c.engine.getSession().getPacketBufferSize());
+        }
+    }
+    
+    //Handshake steps that don't need more input
+    /**@hidden*/
+    private void runHandshake(Conn c) throws IOException{
+        for(;;){
+            switch(c.engine.getHandshakeStatus()){
+                case NEED_TASK:
+                    for(Runnable task = c.engine.getDelegatedTask(); task != null; task = c.engine.getDelegatedTask())
+                        task.run();
+                    break;
+                case NEED_WRAP:
+                    wrap(c, ByteBuffer.allocate(0));
+                    flushNet(c);
+                    break;
+                default:
+                    return;
+            }
+        }
+    }
+    
+    //Encrypts what it can of src into netOut
+    /**@hidden*/
+    private void wrap(Conn c, ByteBuffer src) throws IOException{
+        do{
+            SSLEngineResult res = c.engine.wrap(src, c.netOut);
+            
+            switch(res.getStatus()){
+                case BUFFER_OVERFLOW:
+                    c.netOut = enlarge(c.netOut, c.engine.getSession().getPacketBufferSize());
+                    break;
+                case CLOSED:
+                    throw new EOFException("Connection closed");
+                default:
+                    if(res.bytesConsumed() == 0 && res.bytesProduced() == 0)
+                        return;
+            }
+        }while(src.hasRemaining());
+    }
+    
+    //Writes as much of netOut as the connection takes; waits for OP_WRITE for the rest
+    /**@hidden*/
+    private void flushNet(Conn c) throws IOException{
+        c.netOut.flip();
+        
+        try{
+            c.ch.write(c.netOut);
+        }
+        finally{
+            boolean more = c.netOut.hasRemaining();
+            
+            c.netOut.compact();
+            
+            if(c.key != null && c.key.isValid())
+                c.key.interestOps(more ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+    }
+    
+    //Handles the commands & message text received, then schedules the replies
+    /**@hidden*/
+    private void process(Conn c) throws IOException{
+        c.appIn.flip();
+        
+        try{
+            while(c.appIn.hasRemaining() && c.ch.isOpen()){
+                if(c.chunkLeft > 0){
+                    int n = (int)Math.min(c.chunkLeft, c.appIn.remaining());
+                    
+                    if(c.text != null)
+                        c.text.write(c.appIn.array(), c.appIn.arrayOffset() + c.appIn.position(), n);
+                    
+                    c.appIn.position(c.appIn.position() + n);
+                    c.textBytes += n;
+                    c.chunkLeft -= n;
+                    
+                    if(c.chunkLeft == 0)
+                        endChunk(c);
+                    
+                    continue;
+                }
+                
+                String line = nextLine(c.appIn);
+                
+                if(line == null)
+                    break;
+                
+                if(c.inData)
+                    dataLine(c, line);
+                else
+                    command(c, line);
+            }
+        }
+        finally{
+            c.appIn.compact();
+            
+            if(!c.appIn.hasRemaining())     //Line longer than the buffer
+                c.appIn = enlarge(c.appIn, c.appIn.capacity());
+        }
+        
+        if(c.ch.isOpen() && c.pending.size() > 0 && c.replyAt == 0){
+            if(latency == 0)
+                sendReplies(c);
+            else
+                c.replyAt = System.nanoTime() + latency;
+        }
+    }
+    
+    //A command line
+    /**@hidden*/
+    private void command(Conn c, String line){
+        int sp = line.indexOf(' ');
+        String verb = (sp < 0 ? line : line.substring(0, sp)).toUpperCase();
+        String arg = (sp < 0) ? "" : line.substring(sp + 1);
+        
+        String fault = fault(verb, arg);
+        
+        if(fault == Fault.DROP){
+            drop(c);
+            return;
+        }
+        
+        switch(verb){
+            case "EHLO":
+                StringBuilder sb = new StringBuilder("250");
+                
+                sb.append(capabilities.isEmpty() ? " " : "-").append("mock");
+                
+                for(int i = 0; i < capabilities.size(); i++)
+                    sb.append("\r\n250").append(i == capabilities.size() - 1 ? " " : "-").append(capabilities.get(i));
+                
+                c.reply(fault != null ? fault : sb.toString());
+                break;
+            case "MAIL":
+                c.reply(fault != null ? fault : "250 OK");
+                
+                if(fault == null)
+                    c.startMessage(address(arg), recording);
+                break;
+            case "RCPT":
+                c.reply(fault != null ? fault : "250 OK");
+                
+                if(fault == null)
+                    c.recipients.add(address(arg));
+                break;
+            case "DATA":
+                if(fault == null && c.sender != null && !c.recipients.isEmpty()){
+                    c.reply("354 Go ahead");
+                    c.inData = true;
+                }
+                else
+                    c.reply(fault != null ? fault : "554 No valid recipients");
+                break;
+            case "BDAT":
+                String[] args = arg.trim().split("\\s+");
+                
+                c.chunkLeft = Long.parseLong(args[0]);
+                c.chunkLast = args.length > 1 && args[1].equalsIgnoreCase("LAST");
+                c.chunkFault = fault;
+                
+                if(c.chunkLeft == 0)
+                    endChunk(c);
+                break;
+            case "RSET":
+                c.reply(fault != null ? fault : "250 OK");
+                c.startMessage(null, false);
+                break;
+            case "HELO":
+            case "NOOP":
+                c.reply(fault != null ? fault : "250 OK");
+                break;
+            case "AUTH":
+                c.reply(fault != null ? fault : "235 Accepted");
+                break;
+            case "QUIT":
+                c.reply(fault != null ? fault : "221 Bye");
+                c.closing = true;
+                break;
+            default:
+                c.reply(fault != null ? fault : "500 Unrecognized command");
+        }
+    }
+    
+    //A line of message text after DATA
+    /**@hidden*/
+    private void dataLine(Conn c, String line) throws IOException{
+        if(line.equals(".")){
+            c.inData = false;
+            
+            String fault = fault("EOM", "");
+            
+            if(fault == Fault.DROP){
+                drop(c);
+                return;
+            }
+            
+            c.reply(fault != null ? fault : "250 Queued");
+            
+            if(fault == null)
+                endMessage(c);
+            else
+                c.startMessage(null, false);
+            
+            return;
+        }
+        
+        if(line.startsWith("."))    //Dot-stuffed
+            line = line.substring(1);
+        
+        byte[] b = line.getBytes(StandardCharsets.ISO_8859_1);
+        
+        if(c.text != null){
+            c.text.write(b);
+            c.text.write(CRLF);
+        }
+        
+        c.textBytes += b.length + 2;
+    }
+    
+    //All of a BDAT chunk has arrived
+    /**@hidden*/
+    private void endChunk(Conn c){
+        String fault = c.chunkFault;
+        
+        c.chunkFault = null;
+        
+        if(fault == Fault.DROP)
+            drop(c);
+        else if(fault != null){
+            c.reply(fault);
+            c.startMessage(null, false);
+        }
+        else if(c.sender == null || c.recipients.isEmpty())
+            c.reply("503 No valid transaction");
+        else{
+            c.reply("250 Chunk received");
+            
+            if(c.chunkLast)
+                endMessage(c);
+        }
+    }
+    
+    /**@hidden*/
+    private void endMessage(Conn c){
+        messages.incrementAndGet();
+        bytes.addAndGet(c.textBytes);
+        
+        if(c.text != null)
+            received.add(new Message(c.sender, c.recipients, c.text.toByteArray()));
+        
+        c.startMessage(null, false);
+    }
+    
+    //Reply text from the first fault that applies, Fault.DROP, or null
+    /**@hidden*/
+    private String fault(String verb, String arg){
+        for(Fault f : faults){
+            if(f.applies(verb, arg))
+                return f.reply;
+        }
+        
+        return null;
+    }
+    
+    //Sends the held replies
+    /**@hidden*/
+    private void sendReplies(Conn c){
+        c.replyAt = 0;
+        
+        try{
+            byte[] replies = c.pending.toByteArray();
+            ByteBuffer src = ByteBuffer.wrap(replies);
+            
+            wrap(c, src);
+            
+            c.pending.reset();
+            c.pending.write(replies, src.position(), src.remaining());
+            
+            flushNet(c);
+            
+            roundTrips.incrementAndGet();
+            
+            if(c.closing)
+                drop(c);
+        }
+        catch(IOException | RuntimeException e){
+            drop(c);
+        }
+    }
+    
+    /**@hidden*/
+    private void drop(Conn c){
+        c.key.cancel();
+        
+        try{
+            c.ch.close();
+        }
+        catch(IOException e){}
+    }
+    
+    //Next CRLF or LF terminated line in buf, without its terminator; null if none is complete
+    /**@hidden*/
+    private static String nextLine(ByteBuffer buf){
+        for(int i = buf.position(); i < buf.limit(); i++){
+            if(buf.get(i) == '\n'){
+                int end = (i > buf.position() && buf.get(i - 1) == '\r') ? i - 1 : i;
+                String line = new String(buf.array(), buf.arrayOffset() + buf.position(), end - buf.position(), StandardCharsets.ISO_8859_1);
+                
+                buf.position(i + 1);
+                
+                return line;
+            }
+        }
+        
+        return null;
+    }
+    
+    //Address from a MAIL FROM:<a> or RCPT TO:<a> argument
+    /**@hidden*/
+    private static String address(String arg){
+        int lt = arg.indexOf('<'), gt = arg.indexOf('>');
+        
+        return (lt >= 0 && gt > lt) ? arg.substring(lt + 1, gt) : arg;
+    }
+    
+    //Copy of buf (in write mode) with room for at least extra more bytes
+    /**@hidden*/
+    private static ByteBuffer enlarge(ByteBuffer buf, int extra){
+        ByteBuffer bigger = ByteBuffer.allocate(buf.capacity() + Math.max(extra, 1024));
+        
+        buf.flip();
+        bigger.put(buf);
+        
+        return bigger;
+    }
+    
+    /**@hidden*/
+    private static SSLContext defaultContext() throws IOException{
+        try{
+            return SSLContext.getDefault();
+        }
+        catch(NoSuchAlgorithmException e){
+            throw new IOException("No default SSLContext", e);
+        }
+    }
+    
+    /**
+     * A fault to inject: a reply in place of the normal one, or a dropped connection, for matching commands.
+     * <p>
+     * Commands are matched by verb ({@code MAIL}, {@code RCPT}, {@code DATA}, {@code BDAT}, ...) and optionally by
+     * text in their argument. The end of message text after {@code DATA} matches the verb {@code EOM}. By default, a
+     * fault applies to every matching command; {@link #after(int)} and {@link #times(int)} restrict it to some of them,
+     * e.g. {@code Fault.reply("RCPT", "451 Try later").after(2).times(1)} applies to the third {@code RCPT} only.
+     */
+    public static final class Fault{
+        /**Reply marking a dropped connection (compared by identity)*/
+        private static final String DROP = new String("(drop)");
+        
+        /**@hidden*/
+        private final String verb;
+        /**@hidden*/
+        private final String reply;
+        /**Text the argument must contain, lower case*/
+        private String match;
+        /**Matching commands to let through first*/
+        private int skip;
+        /**Times left to apply, negative for unlimited*/
+        private int left;
+        
+        /**@hidden*/
+        private Fault(String verb, String reply){
+            this.verb = verb.toUpperCase();
+            this.reply = reply;
+            
+            match = null;
+            skip = 0;
+            left = -1;
+        }
+        
+        /**
+         * A fault replying with the given text, e.g. {@code "451 4.3.0 Try again later"}.
+         *
+         * @param verb Command verb to match
+         * @param reply Reply line(s), without the final line terminator
+         * @return The fault
+         */
+        public static Fault reply(String verb, String reply){
+            return new Fault(verb, Objects.requireNonNull(reply));
+        }
+        
+        /**
+         * A fault closing the connection, without a reply.
+         *
+         * @param verb Command verb to match
+         * @return The fault
+         */
+        public static Fault drop(String verb){
+            return new Fault(verb, DROP);
+        }
+        
+        /**
+         * Only match commands whose argument contains the given text.
+         *
+         * @param text Text to look for (case-insensitive)
+         * @return This fault
+         */
+        public synchronized Fault matching(String text){
+            match = text.toLowerCase();
+            return this;
+        }
+        
+        /**
+         * Let the first {@code n} matching commands through.
+         *
+         * @param n Number of commands
+         * @return This fault
+         */
+        public synchronized Fault after(int n){
+            skip = n;
+            return this;
+        }
+        
+        /**
+         * Apply to {@code n} matching commands only.
+         *
+         * @param n Number of commands
+         * @return This fault
+         */
+        public synchronized Fault times(int n){
+            left = n;
+            return this;
+        }
+        
+        //Counts the command if it matches
+        /**@hidden*/
+        private synchronized boolean applies(String verb, String arg){
+            if(!this.verb.equals(verb) || (match != null && !arg.toLowerCase().contains(match)) || left == 0)
+                return false;
+            
+            if(skip > 0){
+                skip--;
+                return false;
+            }
+            
+            if(left > 0)
+                left--;
+            
+            return true;
+        }
+    }
+    
+    /**
+     * A received message.
+     */
+    public static final class Message{
+        /**@hidden*/
+        private final String sender;
+        /**@hidden*/
+        private final List<String> recipients;
+        /**@hidden*/
+        private final byte[] text;
+        
+        /**@hidden*/
+        private Message(String sender, List<String> recipients, byte[] text){
+            this.sender = sender;
+            this.recipients = Collections.unmodifiableList(new ArrayList<>(recipients));
+            this.text = text;
+        }
+        
+        /**
+         * Returns the sender's address.
+         *
+         * @return Address from {@code MAIL FROM}
+         */
+        public String getSender(){
+            return sender;
+        }
+        
+        /**
+         * Returns the recipients' addresses.
+         *
+         * @return Addresses accepted from {@code RCPT TO}
+         */
+        public List<String> getRecipients(){
+            return recipients;
+        }
+        
+        /**
+         * Returns the message text, with dot-stuffing removed.
+         *
+         * @return Copy of the message text
+         */
+        public byte[] getText(){
+            return text.clone();
+        }
+    }
+    
+    /**
+     * A connection and its SMTP state.
+     */
+    private static class Conn{
+        /**@hidden*/
+        private final SocketChannel ch;
+        /**@hidden*/
+        private final SSLEngine engine;
+        /**@hidden*/
+        private SelectionKey key;
+        /**TLS handshake is done*/
+        private boolean handshaken;
+        
+        /**Encrypted input, in write mode*/
+        private ByteBuffer netIn;
+        /**Decrypted input, in write mode*/
+        private ByteBuffer appIn;
+        /**Encrypted output, in write mode*/
+        private ByteBuffer netOut;
+        
+        /**Replies not yet sent*/
+        private final ByteArrayOutputStream pending;
+        /**When (nanoTime) to send the pending replies, 0 if not scheduled*/
+        private long replyAt;
+        /**Close after sending the pending replies*/
+        private boolean closing;
+        
+        /*      Transaction     */
+        /**@hidden*/
+        private String sender;
+        /**@hidden*/
+        private final List<String> recipients;
+        /**Message text, if recording*/
+        private ByteArrayOutputStream text;
+        /**@hidden*/
+        private long textBytes;
+        /**@hidden*/
+        private boolean inData;
+        /**Octets of the current BDAT chunk still to come*/
+        private long chunkLeft;
+        /**@hidden*/
+        private boolean chunkLast;
+        /**Reply (or drop) for the current BDAT chunk*/
+        private String chunkFault;
+        
+        /**@hidden*/
+        private Conn(SocketChannel ch, SSLEngine engine){
+            this.ch = ch;
+            this.engine = engine;
+            
+            key = null;
+            handshaken = false;
+            
+            SSLSession session = engine.getSession();
+            
+            netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+            appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+            netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+            
+            pending = new ByteArrayOutputStream();
+            replyAt = 0;
+            closing = false;
+            
+            recipients = new ArrayList<>();
+            startMessage(null, false);
+        }
+        
+        /**@hidden*/
+        private void reply(String text){
+            pending.writeBytes(text.getBytes(StandardCharsets.ISO_8859_1));
+            pending.writeBytes(CRLF);
+        }
+        
+        //Resets the transaction, for a new message from sender (null for none)
+        /**@hidden*/
+        private void startMessage(String sender, boolean record){
+            this.sender = sender;
+            
+            recipients.clear();
+            text = record ? new ByteArrayOutputStream() : null;
+            textBytes = 0;
+            inData = false;
+            chunkLeft = 0;
+            chunkLast = false;
+            chunkFault = null;
+        }
+    }
+}
\ No newline at end of file
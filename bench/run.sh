@@ -0,0 +1,20 @@
+#!/bin/bash
+
+# Builds & runs the benchmarks. Arguments are passed to Bench (see bench/Bench.java)
+# The server & client use a self-signed certificate, created on the first run
+
+cd "$(dirname "$0")"
+
+STORE=bench.p12
+PASS=changeit
+
+if [ ! -f $STORE ]; then
+    keytool -genkeypair -alias mock -keyalg RSA -keysize 2048 -validity 3650 -dname "CN=localhost" \
+            -ext "SAN=dns:localhost,ip:127.0.0.1" -storetype PKCS12 -keystore $STORE -storepass $PASS -keypass $PASS || exit 1
+fi
+
+rm -rf out
+javac -d out ../src/*.java *.java || exit 1
+
+java -cp out -Djavax.net.ssl.keyStore=$STORE -Djavax.net.ssl.keyStorePassword=$PASS \
+             -Djavax.net.ssl.trustStore=$STORE -Djavax.net.ssl.trustStorePassword=$PASS Bench "$@"
@@ -0,0 +1,244 @@
+/*Copyright (C) 2022  Riley Kuttruff
+*
+*   This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or
+*   (at your option) any later version.
+*
+*   This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+*   Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+*/
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Sends messages asynchronously over pooled sessions.
+ * <p>
+ * Each call to {@link #send} returns at once with a future for the outcome. The transaction runs on its own thread,
+ * over a session borrowed from an {@link SMTPSessionPool}; the number of conversations in flight is bounded by the
+ * pool's per-server limit.
+ * <p>
+ * Transactions may be spread over several servers by an {@link EndpointBalancer}. If a session cannot be opened on
+ * the chosen server (the connection fails, the server replies {@code 421}, or its replies are not valid SMTP), the
+ * server is ejected and the transaction moves on to the next one. A {@code 421} reply during a transaction also
+ * ejects the server; the result is returned as is.
+ * <p>
+ * On a runtime with virtual threads (Java 21+) each message gets a virtual thread, which costs no platform thread
+ * while blocked on the connection, so thousands of conversations can be in flight from one JVM. Otherwise a fixed
+ * pool of platform threads, one per session the pool allows, is used instead.
+ *
+ *  @author     Riley Kuttruff
+ *  @version    1.0
+ */
+public class AsyncSMTPClient implements Closeable{
+    /**@hidden*/
+    private final SMTPSessionPool pool;
+    
+    /*      Servers & user      */
+    /**Picks the server for each transaction*/
+    private final EndpointBalancer balancer;
+    /**@hidden*/
+    private final String user, method;
+    /**Builds the authentication data for new sessions*/
+    private final Auth auth;
+    
+    /**Runs the transactions*/
+    private final ExecutorService executor;
+    /**Executor runs each task on a virtual thread*/
+    private final boolean virtual;
+    
+    /**
+     * Constructor.
+     * <p>
+     * The pool is not closed by {@link #close()}; it may be shared.
+     *
+     * @param pool Pool to borrow sessions from
+     * @param host Server domain name
+     * @param port Server port number
+     * @param user Username to authenticate as
+     * @param method Authentication method
+     * @param auth Builds the authentication data for new sessions
+     */
+    public AsyncSMTPClient(SMTPSessionPool pool, String host, int port, String user, String method, Auth auth){
+        this(pool, new EndpointBalancer(Collections.singletonList(new Endpoint(host, port, 1))), user, method, auth);
+    }
+    
+    /**
+     * Creates a client that spreads transactions over several servers.
+     * <p>
+     * The pool is not closed by {@link #close()}; it may be shared. The pool's per-server limit applies to each
+     * server separately.
+     *
+     * @param pool Pool to borrow sessions from
+     * @param balancer Picks the server for each transaction
+     * @param user Username to authenticate as
+     * @param method Authentication method
+     * @param auth Builds the authentication data for new sessions
+     */
+    public AsyncSMTPClient(SMTPSessionPool pool, EndpointBalancer balancer, String user, String method, Auth auth){
+        this.pool = Objects.requireNonNull(pool);
+        this.balancer = Objects.requireNonNull(balancer);
+        this.user = user;
+        this.method = method;
+        this.auth = auth;
+        
+        ExecutorService exec = newVirtualThreadExecutor();
+        
+        virtual = exec != null;
+        executor = virtual ? exec : newPlatformThreadExecutor(pool.getMaxPerKey() * balancer.getEndpoints().size());
+    }
+    
+    /**
+     * Sends a message.
+     * <p>
+     * If the transaction throws, the session is discarded and the future completes exceptionally with the cause (an
+     * {@link IOException}, {@link SMTPException} or {@link InterruptedException}).
+     *
+     * @param msg Message to send
+     * @return Future for the outcome of the transaction
+     */
+    public CompletableFuture<SendResult> send(MailMessage msg){
+        CompletableFuture<SendResult> future = new CompletableFuture<>();
+        
+        try{
+            executor.execute(() -> {
+                try{
+                    future.complete(sendNow(msg));
+                }
+                catch(Throwable t){
+                    future.completeExceptionally(t);
+                }
+            });
+        }
+        catch(RejectedExecutionException e){
+            future.completeExceptionally(new IllegalStateException("Client closed"));
+        }
+        
+        return future;
+    }
+    
+    /**
+     * Returns if transactions run on virtual threads.
+     *
+     * @return {@code true} if running on virtual threads, {@code false} if on a platform thread pool
+     */
+    public boolean isVirtual(){
+        return virtual;
+    }
+    
+    /**
+     * Returns the balancer picking the server for each transaction.
+     *
+     * @return The balancer
+     */
+    public EndpointBalancer getBalancer(){
+        return balancer;
+    }
+    
+    /**
+     * Stops accepting messages and waits for those already sent to finish.
+     *
+     * @throws InterruptedIOException If interrupted while waiting
+     */
+    @Override
+    public void close() throws InterruptedIOException{
+        executor.shutdown();
+        
+        try{
+            while(!executor.awaitTermination(1, TimeUnit.MINUTES));
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for messages to be sent");
+        }
+    }
+    
+    //Runs one transaction on a pooled session
+    /**@hidden*/
+    private SendResult sendNow(MailMessage msg) throws IOException, InterruptedException{
+        Set<Endpoint> tried = new HashSet<>();
+        int endpoints = balancer.getEndpoints().size();
+        
+        for(;;){
+            Endpoint ep = balancer.acquire(tried);
+            SMTPSession session = null;
+            
+            tried.add(ep);
+            
+            try{
+                session = pool.borrow(ep.getHost(), ep.getPort(), user, method, auth);
+            }
+            catch(IOException | SMTPReplyException | InvalidResponseException e){
+                //Only an unreachable, unavailable or garbled (not speaking SMTP) server is ejected, not one rejecting
+                //the credentials
+                if(e instanceof SMTPReplyException && ((SMTPReplyException)e).getReplyCode() != SMTPConstants.SMTP_UNAVAILABLE_CONNECTION_PROBLEM)
+                    throw e;
+                
+                balancer.reportFailure(ep);
+                
+                if(tried.size() >= endpoints)
+                    throw e;
+                
+                continue;
+            }
+            finally{
+                if(session == null)     //Not borrowed, whatever was thrown; once borrowed, released after the send
+                    balancer.release(ep);
+            }
+            
+            boolean ok = false;
+            
+            try{
+                SendResult result = session.send(msg);
+                
+                //421: the server is closing the connection
+                ok = result.getReplyCode() != SMTPConstants.SMTP_UNAVAILABLE_CONNECTION_PROBLEM;
+                
+                if(ok)
+                    balancer.reportSuccess(ep);
+                else
+                    balancer.reportFailure(ep);
+                
+                return result;
+            }
+            catch(IOException e){
+                balancer.reportFailure(ep);
+                throw e;
+            }
+            finally{
+                if(ok)
+                    pool.release(session);
+                else    //State of the conversation unknown
+                    pool.invalidate(session);
+                
+                balancer.release(ep);
+            }
+        }
+    }
+    
+    //Java 21+: Executors.newVirtualThreadPerTaskExecutor(), looked up reflectively so this builds and runs on older releases
+    /**@hidden*/
+    private static ExecutorService newVirtualThreadExecutor(){
+        try{
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch(ReflectiveOperationException | RuntimeException e){
+            return null;
+        }
+    }
+    
+    /**@hidden*/
+    private static ExecutorService newPlatformThreadExecutor(int threads){
+        AtomicInteger n = new AtomicInteger();
+        
+        return Executors.newFixedThreadPool(threads, (r) -> {
+            Thread t = new Thread(r, "AsyncSMTPClient-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+}
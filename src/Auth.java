@@ -11,7 +11,7 @@
 */
 
 /**
- *  Basic interface for SMTP authentication method implementations. PLAIN method is excluded for now as it is already implemented in {@Link SMTPClient}
+ *  Basic interface for SMTP authentication method implementations.
  *  <p>
  *  Also contains AUTH-specific error codes.
  *
@@ -26,6 +26,7 @@ public interface Auth{
      * 
      * @param user Username for authentication.
      * @return The bytes of the argument to the AUTH command, just the authentication data, not the method name itself.
+     * @throws AuthException If the data cannot be produced (e.g. no access token could be obtained)
      */
     public byte[] buildAuthString(String user);
 }
\ No newline at end of file
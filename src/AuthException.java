@@ -0,0 +1,77 @@
+/*Copyright (C) 2022  Riley Kuttruff
+*
+*   This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or
+*   (at your option) any later version.
+*
+*   This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+*   Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+*/
+
+/**
+ * SMTP exception for a failure to authenticate.
+ * <p>
+ * Either the server refused the credentials (the reply code is that of the server's reply), or authentication could
+ * not be attempted, e.g. because no method is supported by both sides or an access token could not be obtained (the
+ * reply code is {@code -1}).
+ *
+ *  @author     Riley Kuttruff
+ *  @version    1.0
+ */
+public class AuthException extends SMTPReplyException{
+    /**@hidden*/
+    private final Reason reason;
+    
+    /**
+     * Constructor, for credentials refused by the server.
+     *
+     * @param msg Detail message
+     * @param replyCode Server's reply code
+     */
+    public AuthException(String msg, int replyCode){
+        super(msg, replyCode);
+        this.reason = Reason.REJECTED;
+    }
+    
+    /**
+     * Constructor, for authentication that could not be attempted.
+     *
+     * @param reason Why
+     * @param msg Detail message
+     * @param cause Cause, may be {@code null}
+     */
+    public AuthException(Reason reason, String msg, Throwable cause){
+        super(msg, -1);
+        this.reason = reason;
+        
+        if(cause != null)
+            initCause(cause);
+    }
+    
+    /**
+     * Returns why authentication failed.
+     *
+     * @return The reason
+     */
+    public Reason getReason(){
+        return reason;
+    }
+    
+    /**
+     * Why authentication failed.
+     */
+    public enum Reason{
+        /**The server refused the credentials*/
+        REJECTED,
+        /**No authentication method is supported by both the server and the client*/
+        NO_METHOD,
+        /**The OAuth settings file ({@code .env}) was not found*/
+        INFO_NOT_FOUND,
+        /**The OAuth settings file ({@code .env}) is missing needed fields*/
+        INFO_INCOMPLETE,
+        /**An access token could not be obtained*/
+        TOKEN_FAILED
+    }
+}
\ No newline at end of file
@@ -0,0 +1,226 @@
+/*Copyright (C) 2022  Riley Kuttruff
+*
+*   This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or
+*   (at your option) any later version.
+*
+*   This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+*   Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+*/
+
+import java.util.*;
+
+/**
+ * Service extensions advertised by a server in its reply to {@code EHLO}.
+ * <p>
+ * The reply is parsed once; the result is immutable. The first line of the reply is the server's greeting, each
+ * following line is an extension keyword optionally followed by parameters (RFC 5321 Section 4.1.1.1).
+ *
+ *  @author     Riley Kuttruff
+ *  @version    1.0
+ */
+public class Capabilities{
+    /**Capabilities of a server that advertised nothing (or replied to {@code HELO})*/
+    public static final Capabilities NONE = new Capabilities();
+    
+    /**Extension keyword (upper case) to its parameters*/
+    private final Map<String, String> extensions;
+    
+    /**@hidden*/
+    private final boolean pipelining, chunking, eightBitMime, smtpUtf8, startTls, dsn, enhancedStatusCodes;
+    /**Value of the SIZE extension. -1 if not advertised, 0 if advertised without a limit*/
+    private final long sizeLimit;
+    /**AUTH mechanisms (upper case)*/
+    private final Set<String> authMethods;
+    
+    /**@hidden*/
+    private Capabilities(){
+        this(Collections.emptyMap());
+    }
+    
+    /**@hidden*/
+    private Capabilities(Map<String, String> extensions){
+        this.extensions = extensions;
+        
+        pipelining = extensions.containsKey("PIPELINING");
+        chunking = extensions.containsKey("CHUNKING");
+        eightBitMime = extensions.containsKey("8BITMIME");
+        smtpUtf8 = extensions.containsKey("SMTPUTF8");
+        startTls = extensions.containsKey("STARTTLS");
+        dsn = extensions.containsKey("DSN");
+        enhancedStatusCodes = extensions.containsKey("ENHANCEDSTATUSCODES");
+        
+        long size = -1;
+        
+        if(extensions.containsKey("SIZE")){
+            try{
+                size = extensions.get("SIZE").isEmpty() ? 0 : Long.parseLong(extensions.get("SIZE"));
+            }
+            catch(NumberFormatException e){
+                size = 0;
+            }
+        }
+        
+        sizeLimit = size;
+        
+        Set<String> auths = new LinkedHashSet<>();
+        
+        for(String mech : extensions.getOrDefault("AUTH", "").split(" "))
+            if(!mech.isEmpty())
+                auths.add(mech.toUpperCase(Locale.ROOT));
+        
+        authMethods = Collections.unmodifiableSet(auths);
+    }
+    
+    /**
+     * Parses the server's reply to {@code EHLO}.
+     *
+     * @param ehlo Server's reply to {@code EHLO}
+     * @return Parsed capabilities, or {@link #NONE} if the reply is not positive
+     */
+    public static Capabilities parse(SMTPClient.Response ehlo){
+        if(ehlo == null || ehlo.getResponseCodeType() != 2)
+            return NONE;
+        
+        Map<String, String> ext = new HashMap<>();
+        boolean first = true;
+        
+        for(String line : ehlo){
+            if(first){      //Greeting line
+                first = false;
+                continue;
+            }
+            
+            if(line.length() < 5)
+                continue;
+            
+            String[] kw = line.substring(4).trim().split("[ =]", 2);   //Some servers still send the AUTH=... form
+            
+            String key = kw[0].toUpperCase(Locale.ROOT);
+            String params = (kw.length > 1) ? kw[1].trim() : "";
+            
+            String prev = ext.get(key);
+            
+            if(prev != null && !prev.isEmpty())     //e.g. both AUTH and AUTH= present
+                params = params.isEmpty() ? prev : prev + " " + params;
+            
+            ext.put(key, params);
+        }
+        
+        return new Capabilities(Collections.unmodifiableMap(ext));
+    }
+    
+    /**
+     * Returns if an extension was advertised.
+     *
+     * @param keyword Extension keyword (case insensitive)
+     * @return {@code true} if advertised
+     */
+    public boolean supports(String keyword){
+        return extensions.containsKey(keyword.toUpperCase(Locale.ROOT));
+    }
+    
+    /**
+     * Returns the parameters of an extension.
+     *
+     * @param keyword Extension keyword (case insensitive)
+     * @return The parameters (possibly empty), or {@code null} if not advertised
+     */
+    public String getParameters(String keyword){
+        return extensions.get(keyword.toUpperCase(Locale.ROOT));
+    }
+    
+    /**
+     * RFC 2920 command pipelining.
+     *
+     * @return {@code true} if advertised
+     */
+    public boolean isPipelining(){
+        return pipelining;
+    }
+    
+    /**
+     * RFC 3030 {@code BDAT} chunking.
+     *
+     * @return {@code true} if advertised
+     */
+    public boolean isChunking(){
+        return chunking;
+    }
+    
+    /**
+     * RFC 6152 8-bit MIME transport.
+     *
+     * @return {@code true} if advertised
+     */
+    public boolean is8BitMime(){
+        return eightBitMime;
+    }
+    
+    /**
+     * RFC 6531 internationalized email.
+     *
+     * @return {@code true} if advertised
+     */
+    public boolean isSMTPUTF8(){
+        return smtpUtf8;
+    }
+    
+    /**
+     * RFC 3207 {@code STARTTLS}.
+     *
+     * @return {@code true} if advertised
+     */
+    public boolean isStartTLS(){
+        return startTls;
+    }
+    
+    /**
+     * RFC 3461 delivery status notifications.
+     *
+     * @return {@code true} if advertised
+     */
+    public boolean isDSN(){
+        return dsn;
+    }
+    
+    /**
+     * RFC 2034 enhanced status codes.
+     *
+     * @return {@code true} if advertised
+     */
+    public boolean isEnhancedStatusCodes(){
+        return enhancedStatusCodes;
+    }
+    
+    /**
+     * RFC 1870 message size limit.
+     *
+     * @return The limit in octets, {@code 0} if {@code SIZE} was advertised without a limit, or {@code -1} if it
+     *         was not advertised
+     */
+    public long getSizeLimit(){
+        return sizeLimit;
+    }
+    
+    /**
+     * Authentication mechanisms accepted by the server.
+     *
+     * @return Unmodifiable set of mechanism names (upper case)
+     */
+    public Set<String> getAuthMethods(){
+        return authMethods;
+    }
+    
+    /**
+     * Lists the advertised extension keywords.
+     *
+     * @return Extension keywords
+     */
+    @Override
+    public String toString(){
+        return new TreeSet<>(extensions.keySet()).toString();
+    }
+}
\ No newline at end of file
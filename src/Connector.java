@@ -0,0 +1,581 @@
+/*Copyright (C) 2022  Riley Kuttruff
+*
+*   This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or
+*   (at your option) any later version.
+*
+*   This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+*   Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+*/
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import javax.net.ssl.*;
+
+/**
+ * Opens TLS connections to SMTP servers.
+ * <p>
+ * Server addresses come from the connector's {@link Resolver}, which caches them.
+ * <p>
+ * Connection attempts to a server's addresses are raced, Happy Eyeballs style (RFC 8305): addresses are interleaved
+ * by family (IPv6 and IPv4, starting with the family of the first address), and a new attempt is started whenever the
+ * previous one fails or has not finished within the attempt delay. The first connection to succeed is used and the
+ * rest are closed. Each attempt is bounded by the connect timeout, so an unreachable address cannot stall the
+ * connection for the operating system's TCP timeout. Attempts are non-blocking connects watched by one {@link Selector}
+ * on the caller's thread, so racing takes no threads of its own.
+ * <p>
+ * TLS sessions come from an {@link SSLContext} whose client session cache lets reconnects to the same server resume the
+ * previous session (TLS 1.3 session tickets, or session IDs with older servers) instead of doing a full handshake.
+ * Connectors not given a context share one, so sessions opened through any of them can be resumed by the others. The
+ * time handshakes take and how many were resumed are recorded; a handshake counts as resumed if its session was
+ * established by an earlier handshake through a connector.
+ * <p>
+ * Every TLS socket verifies that the server's certificate is for the host name connected to (endpoint identification,
+ * as for HTTPS), not just that it chains to a trusted root, whichever context it comes from.
+ * <p>
+ * Connectors are thread safe and may be shared by any number of sessions.
+ *
+ *  @author     Riley Kuttruff
+ *  @version    1.0
+ */
+public class Connector{
+    /**Default delay (ms) before starting the next connection attempt, as recommended by RFC 8305*/
+    public static final long DEFAULT_ATTEMPT_DELAY = 250;
+    /**Default time (ms) a single connection attempt may take*/
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10_000;
+    /**Default number of TLS sessions cached for resumption*/
+    public static final int DEFAULT_SESSION_CACHE_SIZE = 256;
+    /**Default time (s) a cached TLS session may be resumed for*/
+    public static final int DEFAULT_SESSION_TIMEOUT = 3600;
+    
+    /**Name of the value bound to sessions once a handshake has established them*/
+    private static final String SESSION_MARK = "Connector.established";
+    
+    /**Context shared by connectors not given one; created on first use*/
+    private static SSLContext sharedContext = null;
+    /**@hidden*/
+    private static final Connector DEFAULT = new Connector();
+    
+    /**Delay (ms) before starting the next connection attempt*/
+    private final long attemptDelay;
+    /**Time (ms) a single connection attempt may take*/
+    private final int connectTimeout;
+    /**Resolves server addresses*/
+    private final Resolver resolver;
+    /**Creates TLS sockets & caches their sessions*/
+    private final SSLContext context;
+    
+    /*      Metrics     */
+    /**@hidden*/
+    private final AtomicLong handshakes, resumed, handshakeNanos, maxHandshakeNanos;
+    
+    /**
+     * Creates a connector with the default delay, timeout and resolver.
+     */
+    public Connector(){
+        this(DEFAULT_ATTEMPT_DELAY, DEFAULT_CONNECT_TIMEOUT);
+    }
+    
+    /**
+     * Creates a connector with the default resolver.
+     *
+     * @param attemptDelay Delay (ms) before starting the next connection attempt while earlier ones are pending
+     * @param connectTimeout Time (ms) a single connection attempt may take
+     */
+    public Connector(long attemptDelay, int connectTimeout){
+        this(attemptDelay, connectTimeout, Resolver.getDefault());
+    }
+    
+    /**
+     * Constructor.
+     *
+     * @param attemptDelay Delay (ms) before starting the next connection attempt while earlier ones are pending
+     * @param connectTimeout Time (ms) a single connection attempt may take
+     * @param resolver Resolves server addresses
+     */
+    public Connector(long attemptDelay, int connectTimeout, Resolver resolver){
+        this(attemptDelay, connectTimeout, resolver, sharedSSLContext());
+    }
+    
+    /**
+     * Constructor.
+     * <p>
+     * The context's client session cache is used as is; see {@link #createSSLContext} for one set up for resumption.
+     *
+     * @param attemptDelay Delay (ms) before starting the next connection attempt while earlier ones are pending
+     * @param connectTimeout Time (ms) a single connection attempt may take
+     * @param resolver Resolves server addresses
+     * @param context Creates TLS sockets & caches their sessions
+     */
+    public Connector(long attemptDelay, int connectTimeout, Resolver resolver, SSLContext context){
+        if(attemptDelay < 0 || connectTimeout < 1)
+            throw new IllegalArgumentException("Invalid delay or timeout");
+        
+        this.attemptDelay = attemptDelay;
+        this.connectTimeout = connectTimeout;
+        this.resolver = Objects.requireNonNull(resolver);
+        this.context = Objects.requireNonNull(context);
+        
+        handshakes = new AtomicLong();
+        resumed = new AtomicLong();
+        handshakeNanos = new AtomicLong();
+        maxHandshakeNanos = new AtomicLong();
+    }
+    
+    /**
+     * Creates a TLS context with the given client session cache.
+     * <p>
+     * Server certificates are checked against the default trust store ({@code javax.net.ssl.trustStore} if set).
+     *
+     * @param sessionCacheSize Number of sessions cached for resumption, 0 for no limit
+     * @param sessionTimeout Time (s) a cached session may be resumed for, 0 for no limit
+     * @return The context
+     * @throws IllegalStateException If the runtime has no TLS implementation
+     */
+    public static SSLContext createSSLContext(int sessionCacheSize, int sessionTimeout){
+        try{
+            SSLContext ctx = SSLContext.getInstance("TLS");
+            ctx.init(null, null, null);
+            
+            SSLSessionContext sessions = ctx.getClientSessionContext();
+            sessions.setSessionCacheSize(sessionCacheSize);
+            sessions.setSessionTimeout(sessionTimeout);
+            
+            return ctx;
+        }
+        catch(NoSuchAlgorithmException | KeyManagementException e){
+            throw new IllegalStateException("TLS not available", e);
+        }
+    }
+    
+    /**
+     * Returns the connector used by sessions not given one.
+     *
+     * @return The default connector
+     */
+    public static Connector getDefault(){
+        return DEFAULT;
+    }
+    
+    /**
+     * Connects to one of a server's addresses and starts TLS.
+     *
+     * @param host Server domain name, for TLS server name indication and to check the certificate against
+     * @param addresses Server's addresses
+     * @param port Server port number
+     * @param log Stream for connection progress, {@code null} for no output
+     * @return The TLS socket, handshake completed
+     * @throws IOException If every address fails to connect, or the TLS handshake fails (e.g. the server's certificate
+     * is not for {@code host})
+     */
+    public SSLSocket connect(String host, InetAddress[] addresses, int port, PrintStream log) throws IOException{
+        return startTLS(connectPlain(addresses, port, log), host, port, log);
+    }
+    
+    /**
+     * Connects to one of a server's addresses, without TLS.
+     *
+     * @param addresses Server's addresses
+     * @param port Server port number
+     * @param log Stream for connection progress, {@code null} for no output
+     * @return The socket
+     * @throws IOException If every address fails to connect
+     */
+    public Socket connectPlain(InetAddress[] addresses, int port, PrintStream log) throws IOException{
+        return race(interleave(addresses), port, log);
+    }
+    
+    /**
+     * Starts TLS over a connected socket, e.g. after {@code STARTTLS}.
+     * <p>
+     * Closing the returned socket closes {@code sock}.
+     *
+     * @param sock Connected socket
+     * @param host Server domain name, for TLS server name indication and to check the certificate against
+     * @param port Server port number
+     * @param log Stream for connection progress, {@code null} for no output
+     * @return The TLS socket, handshake completed
+     * @throws IOException If the TLS handshake fails, or the server's certificate is not for {@code host};
+     * {@code sock} is closed
+     */
+    public SSLSocket startTLS(Socket sock, String host, int port, PrintStream log) throws IOException{
+        try{
+            //Created with the server's name & port, so a cached session for them is offered for resumption
+            SSLSocket ssl = (SSLSocket)context.getSocketFactory().createSocket(sock, host, port, true);
+            SSLParameters params = ssl.getSSLParameters();
+            
+            //Otherwise JSSE accepts any trusted certificate, for any name
+            params.setEndpointIdentificationAlgorithm("HTTPS");
+            ssl.setSSLParameters(params);
+            
+            long start = System.nanoTime();
+            int soTimeout = sock.getSoTimeout();
+            
+            sock.setSoTimeout(connectTimeout);
+            ssl.startHandshake();
+            sock.setSoTimeout(soTimeout);   //Back to whatever read timeout the socket had
+            
+            long t = System.nanoTime() - start;
+            
+            //A resumed session is the one it resumes (TLS 1.2) or carries its bound values (TLS 1.3, where it gets a new
+            //ID), so it is already marked; a full handshake's session is new
+            SSLSession session = ssl.getSession();
+            boolean resumption = session.getValue(SESSION_MARK) != null;
+            
+            session.putValue(SESSION_MARK, Boolean.TRUE);
+            
+            handshakes.incrementAndGet();
+            handshakeNanos.addAndGet(t);
+            maxHandshakeNanos.accumulateAndGet(t, Math::max);
+            
+            if(resumption)
+                resumed.incrementAndGet();
+            
+            if(log != null)
+                log.printf("TLS handshake (%s) %.1f ms%n%n", resumption ? "resumed" : "full", t / 1e6);
+            
+            return ssl;
+        }
+        catch(IOException e){
+            sock.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Returns the delay before starting the next connection attempt.
+     *
+     * @return Delay (ms)
+     */
+    public long getAttemptDelay(){
+        return attemptDelay;
+    }
+    
+    /**
+     * Returns the time a single connection attempt may take.
+     *
+     * @return Timeout (ms)
+     */
+    public int getConnectTimeout(){
+        return connectTimeout;
+    }
+    
+    /**
+     * Returns the resolver server addresses come from.
+     *
+     * @return The resolver
+     */
+    public Resolver getResolver(){
+        return resolver;
+    }
+    
+    /**
+     * Returns the TLS context sockets are created with.
+     *
+     * @return The context
+     */
+    public SSLContext getSSLContext(){
+        return context;
+    }
+    
+    /*      Metrics     */
+    
+    /**
+     * Returns the number of TLS handshakes completed.
+     *
+     * @return Number of handshakes
+     */
+    public long getHandshakes(){
+        return handshakes.get();
+    }
+    
+    /**
+     * Returns the number of TLS handshakes that resumed a cached session.
+     *
+     * @return Number of resumed handshakes
+     */
+    public long getResumedHandshakes(){
+        return resumed.get();
+    }
+    
+    /**
+     * Returns the fraction of TLS handshakes that resumed a cached session.
+     *
+     * @return Resumption hit rate, 0 to 1; 0 if no handshakes have been made
+     */
+    public double getResumptionRate(){
+        long n = handshakes.get();
+        
+        return (n == 0) ? 0 : (double)resumed.get() / n;
+    }
+    
+    /**
+     * Returns the mean time a TLS handshake took.
+     *
+     * @return Mean handshake time (ms), 0 if no handshakes have been made
+     */
+    public double getMeanHandshakeTime(){
+        long n = handshakes.get();
+        
+        return (n == 0) ? 0 : handshakeNanos.get() / 1e6 / n;
+    }
+    
+    /**
+     * Returns the longest time a TLS handshake took.
+     *
+     * @return Longest handshake time (ms)
+     */
+    public double getMaxHandshakeTime(){
+        return maxHandshakeNanos.get() / 1e6;
+    }
+    
+    /**@hidden*/
+    private static synchronized SSLContext sharedSSLContext(){
+        if(sharedContext == null)
+            sharedContext = createSSLContext(DEFAULT_SESSION_CACHE_SIZE, DEFAULT_SESSION_TIMEOUT);
+        
+        return sharedContext;
+    }
+    
+    //Runs staggered connection attempts on one selector; the first to succeed wins and the others are closed
+    /**@hidden*/
+    private Socket race(List<InetAddress> addresses, int port, PrintStream log) throws IOException{
+        List<Attempt> started = new ArrayList<>();
+        Attempt winner = null;
+        Socket sock = null;
+        IOException failure = null;
+        
+        try{
+            try(Selector selector = Selector.open()){
+                long delay = TimeUnit.MILLISECONDS.toNanos(attemptDelay);
+                long nextStart = System.nanoTime();
+                int pending = 0;
+                
+                while(winner == null){
+                    long now = System.nanoTime();
+                    
+                    //Nothing pending, the last attempt failed, or the delay has passed: start the next
+                    if(started.size() < addresses.size() && (pending == 0 || now - nextStart >= 0)){
+                        Attempt a = new Attempt(addresses.get(started.size()));
+                        
+                        if(log != null)
+                            log.println("Connecting to " + SMTPSession.inetAddressToHostString(a.addr) + ":" + port + "...");
+                        
+                        started.add(a);
+                        
+                        if(a.start(port, selector, now))    //Connected at once, e.g. loopback
+                            winner = a;
+                        else if(a.error == null){
+                            pending++;
+                            nextStart = now + delay;
+                        }
+                        else{
+                            failure = failed(a, port, log, failure);
+                            nextStart = now;
+                        }
+                        
+                        continue;
+                    }
+                    
+                    if(pending == 0)    //Every address failed
+                        break;
+                    
+                    //Wake when a connect finishes, the next attempt is due, or a pending one times out
+                    long wake = now + TimeUnit.MILLISECONDS.toNanos(connectTimeout);
+                    
+                    if(started.size() < addresses.size() && nextStart - wake < 0)
+                        wake = nextStart;
+                    
+                    for(Attempt a : started)
+                        if(!a.done && a.deadline - wake < 0)
+                            wake = a.deadline;
+                    
+                    selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wake - now + 999_999)));
+                    
+                    if(Thread.currentThread().isInterrupted())
+                        throw new InterruptedIOException("Interrupted while connecting");
+                    
+                    for(SelectionKey key : selector.selectedKeys()){
+                        Attempt a = (Attempt)key.attachment();
+                        
+                        if(a.finish()){
+                            winner = a;
+                            break;
+                        }
+                        
+                        if(a.done){
+                            pending--;
+                            failure = failed(a, port, log, failure);
+                            nextStart = now;
+                        }
+                    }
+                    
+                    selector.selectedKeys().clear();
+                    
+                    if(winner != null)
+                        break;
+                    
+                    now = System.nanoTime();
+                    
+                    for(Attempt a : started){
+                        if(!a.done && now - a.deadline >= 0){
+                            a.fail(new SocketTimeoutException("Connect timed out"));
+                            pending--;
+                            failure = failed(a, port, log, failure);
+                            nextStart = now;
+                        }
+                    }
+                }
+            }
+            
+            if(winner != null){
+                winner.channel.configureBlocking(true);     //Deregistered now the selector is closed
+                sock = winner.channel.socket();
+                
+                if(log != null)
+                    log.println("Connected to " + SMTPSession.inetAddressToHostString(winner.addr) + ":" + port + "\n");
+                
+                return sock;
+            }
+        }
+        finally{
+            for(Attempt a : started)    //Losers, or all if none won
+                if(a != winner || sock == null)
+                    a.cancel();
+        }
+        
+        ConnectException e = new ConnectException("Failed to connect to any address on port " + port);
+        
+        if(failure != null)
+            e.initCause(failure);
+        
+        throw e;
+    }
+    
+    //Reports a failed attempt; returns the first failure, with the others suppressed in it
+    /**@hidden*/
+    private static IOException failed(Attempt a, int port, PrintStream log, IOException failure){
+        if(log != null)
+            log.println("Connecting to " + SMTPSession.inetAddressToHostString(a.addr) + ":" + port + " failed");
+        
+        if(failure == null)
+            return a.error;
+        
+        failure.addSuppressed(a.error);
+        
+        return failure;
+    }
+    
+    //Orders addresses alternately by family, starting with the family of the first (RFC 8305 section 4)
+    /**@hidden*/
+    private static List<InetAddress> interleave(InetAddress[] addresses){
+        if(addresses.length == 0)
+            throw new IllegalArgumentException("No addresses");
+        
+        Deque<InetAddress> first = new ArrayDeque<>(), second = new ArrayDeque<>();
+        Class<?> family = addresses[0].getClass();
+        
+        for(InetAddress addr : addresses)
+            (addr.getClass() == family ? first : second).add(addr);
+        
+        List<InetAddress> ret = new ArrayList<>(addresses.length);
+        
+        while(!first.isEmpty() || !second.isEmpty()){
+            if(!first.isEmpty())
+                ret.add(first.poll());
+            
+            if(!second.isEmpty())
+                ret.add(second.poll());
+        }
+        
+        return ret;
+    }
+    
+    /**
+     * A non-blocking connection attempt to one address.
+     */
+    private class Attempt{
+        /**@hidden*/
+        private final InetAddress addr;
+        /**Opened up front so the attempt can be cancelled by closing it*/
+        private final SocketChannel channel;
+        /**When the attempt times out ({@link System#nanoTime})*/
+        private long deadline;
+        /**Whether the attempt has finished, either way*/
+        private boolean done;
+        /**Why the attempt failed, {@code null} if it has not*/
+        private IOException error;
+        
+        /**@hidden*/
+        private Attempt(InetAddress addr) throws IOException{
+            this.addr = addr;
+            this.channel = SocketChannel.open();
+            this.done = false;
+            this.error = null;
+            
+            try{
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            }
+            catch(IOException e){
+                channel.close();
+                throw e;
+            }
+        }
+        
+        //Starts connecting, registered with the selector to finish. Returns if connected at once
+        /**@hidden*/
+        private boolean start(int port, Selector selector, long now){
+            deadline = now + TimeUnit.MILLISECONDS.toNanos(connectTimeout);
+            
+            try{
+                if(channel.connect(new InetSocketAddress(addr, port)))
+                    return done = true;
+                
+                channel.register(selector, SelectionKey.OP_CONNECT, this);
+            }
+            catch(IOException e){
+                fail(e);
+            }
+            
+            return false;
+        }
+        
+        //Finishes connecting once selected. Returns if connected
+        /**@hidden*/
+        private boolean finish(){
+            try{
+                if(channel.finishConnect())
+                    return done = true;
+            }
+            catch(IOException e){
+                fail(e);
+            }
+            
+            return false;
+        }
+        
+        /**@hidden*/
+        private void fail(IOException e){
+            error = e;
+            done = true;
+            cancel();
+        }
+        
+        /**@hidden*/
+        private void cancel(){
+            try{
+                channel.close();
+            }
+            catch(IOException e){}
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,312 @@
+/*Copyright (C) 2022  Riley Kuttruff
+*
+*   This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or
+*   (at your option) any later version.
+*
+*   This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+*   Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+*/
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * The OAuth credential store ({@code creds.data}) shared with the auth subprocess.
+ * <p>
+ * The store is a JSON object of the form {@code {"users": [{"username": ..., "data": {...}}, ...]}}, where each user's
+ * data holds (at least) {@code access_token}, {@code refresh_token} and {@code token_expiry}.
+ * <p>
+ * Token refreshes go through {@link #getToken(String, TokenCache.TokenSource)}, which holds a lock for the user while
+ * refreshing. The locks are striped: users hash onto a fixed set of locks, so there is only one refresh in flight per
+ * user, and callers that waited on it take the token it saved instead of refreshing again. Refreshed tokens are written
+ * back to the file, to a temporary file first which is then renamed over the store, so readers (including other
+ * processes) never see a partly written store.
+ * <p>
+ * Access tokens are cached in memory by the store's {@link TokenCache} ({@link #getTokenCache}), one per store, so every
+ * user of a {@link #shared} store in the process hands out the same cached token.
+ *
+ *  @author     Riley Kuttruff
+ *  @version    1.0
+ */
+public class CredentialStore{
+    /**Number of lock stripes*/
+    private static final int STRIPES = 16;
+    
+    /**Stores shared by {@link #shared(Path)}, by absolute path*/
+    private static final Map<Path, CredentialStore> SHARED = new ConcurrentHashMap<>();
+    
+    /**@hidden*/
+    private final Path file;
+    /**Least time (ms) a saved token must have left to be used instead of refreshing*/
+    private final long minValidity;
+    
+    /**Per user locks, by hash of the username*/
+    private final ReentrantLock[] stripes;
+    /**Held while reading or writing the file*/
+    private final ReentrantLock fileLock;
+    
+    /**Contents of the file as last read or written*/
+    private Map<String, Object> contents;
+    /**Modification time of the file when last read or written*/
+    private FileTime modified;
+    
+    /**Access tokens from this store, cached in memory; created on first use*/
+    private TokenCache cache;
+    
+    /**
+     * Constructor.
+     *
+     * @param file Path of the store
+     * @param minValidity Least time (ms) a saved access token must have left to be used instead of refreshing it
+     */
+    public CredentialStore(Path file, long minValidity){
+        this.file = Objects.requireNonNull(file);
+        this.minValidity = minValidity;
+        
+        stripes = new ReentrantLock[STRIPES];
+        
+        for(int i = 0; i < STRIPES; i++)
+            stripes[i] = new ReentrantLock();
+        
+        fileLock = new ReentrantLock();
+        
+        contents = null;
+        modified = null;
+        
+        cache = null;
+    }
+    
+    /**
+     * Returns the store for a file shared by all its users in this process, so they refresh tokens under the same locks.
+     * <p>
+     * Saved tokens with less than {@link TokenCache#DEFAULT_REFRESH_AHEAD} left are refreshed.
+     *
+     * @param file Path of the store
+     * @return The store
+     */
+    public static CredentialStore shared(Path file){
+        return SHARED.computeIfAbsent(file.toAbsolutePath().normalize(), (p) -> new CredentialStore(p, TokenCache.DEFAULT_REFRESH_AHEAD));
+    }
+    
+    /**
+     * Returns a valid access token for a user, refreshing it if needed.
+     * <p>
+     * If the store holds an access token with at least the minimum validity left, it is returned. Otherwise, a new one is
+     * fetched from {@code source} and saved to the store. Concurrent calls for the same user wait for one another, so
+     * only one of them fetches.
+     *
+     * @param user Username
+     * @param source Fetches a new token
+     * @return The token
+     * @throws IOException If a token had to be fetched and could not be, or the store could not be written
+     */
+    public TokenCache.Token getToken(String user, TokenCache.TokenSource source) throws IOException{
+        ReentrantLock lock = stripeFor(user);
+        
+        lock.lock();
+        
+        try{
+            TokenCache.Token saved = savedToken(user);
+            
+            if(saved != null && saved.getExpiry() - System.currentTimeMillis() > minValidity)
+                return saved;
+            
+            TokenCache.Token token = source.fetch(user);
+            
+            save(user, token);
+            
+            return token;
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the in-memory cache of this store's access tokens, creating it on first use.
+     * <p>
+     * The cache gets tokens through {@link #getToken(String, TokenCache.TokenSource)}, with the source given by the call
+     * that created it; later calls get the same cache, whatever source they give.
+     *
+     * @param source Fetches new tokens, if the cache is created
+     * @return The store's token cache
+     */
+    public synchronized TokenCache getTokenCache(TokenCache.TokenSource source){
+        if(cache == null){
+            Objects.requireNonNull(source);
+            
+            cache = new TokenCache((user) -> getToken(user, source));
+        }
+        
+        return cache;
+    }
+    
+    /**
+     * Returns a user's refresh token.
+     *
+     * @param user Username
+     * @return The refresh token, or {@code null} if the store has none for the user
+     * @throws IOException If the store cannot be read
+     */
+    public String getRefreshToken(String user) throws IOException{
+        fileLock.lock();
+        
+        try{
+            Object token = userData(user).get("refresh_token");
+            
+            return (token instanceof String) ? (String)token : null;
+        }
+        finally{
+            fileLock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the path of the store.
+     *
+     * @return Path of the store
+     */
+    public Path getPath(){
+        return file;
+    }
+    
+    /**@hidden*/
+    private ReentrantLock stripeFor(String user){
+        return stripes[(user.hashCode() & 0x7fffffff) % STRIPES];
+    }
+    
+    //The user's saved access token, if any
+    /**@hidden*/
+    private TokenCache.Token savedToken(String user) throws IOException{
+        fileLock.lock();
+        
+        try{
+            Map<String, Object> data = userData(user);
+            
+            Object token = data.get("access_token");
+            Object expiry = data.get("token_expiry");
+            
+            if(!(token instanceof String) || !(expiry instanceof String))
+                return null;
+            
+            return new TokenCache.Token((String)token, parseExpiry((String)expiry));
+        }
+        catch(DateTimeException e){
+            return null;
+        }
+        finally{
+            fileLock.unlock();
+        }
+    }
+    
+    //Saves a refreshed access token in the user's entry & writes the store
+    /**@hidden*/
+    private void save(String user, TokenCache.Token token) throws IOException{
+        fileLock.lock();
+        
+        try{
+            Map<String, Object> data = userData(user);
+            
+            if(data.isEmpty())      //No entry for the user to update
+                return;
+            
+            LocalDateTime expiry = LocalDateTime.ofInstant(Instant.ofEpochMilli(token.getExpiry()), ZoneId.systemDefault());
+            
+            data.put("access_token", token.getAccessToken());
+            data.put("token_expiry", expiry.toString());    //Local time, as the auth subprocess writes & compares it
+            
+            write();
+        }
+        finally{
+            fileLock.unlock();
+        }
+    }
+    
+    //The user's data map, backed by contents; empty if the user has no entry. Called with fileLock held
+    /**@hidden*/
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> userData(String user) throws IOException{
+        load();
+        
+        Object users = contents.get("users");
+        
+        if(users instanceof List){
+            for(Object o : (List<?>)users){
+                if(!(o instanceof Map))
+                    continue;
+                
+                Map<?, ?> u = (Map<?, ?>)o;
+                
+                if(user.equals(u.get("username")) && u.get("data") instanceof Map)
+                    return (Map<String, Object>)u.get("data");
+            }
+        }
+        
+        return new HashMap<>();
+    }
+    
+    //(Re)reads the file if it changed since it was last read, e.g. by the auth subprocess. Called with fileLock held
+    /**@hidden*/
+    private void load() throws IOException{
+        if(!Files.exists(file)){
+            contents = new LinkedHashMap<>();
+            modified = null;
+            
+            return;
+        }
+        
+        FileTime mtime = Files.getLastModifiedTime(file);
+        
+        if(contents != null && mtime.equals(modified))
+            return;
+        
+        try{
+            contents = Json.parseObject(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+            modified = mtime;
+        }
+        catch(IllegalArgumentException e){
+            throw new IOException("Malformed credential store " + file, e);
+        }
+    }
+    
+    //Writes contents to a temporary file & renames it over the store. Called with fileLock held
+    /**@hidden*/
+    private void write() throws IOException{
+        Path dir = file.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        
+        try{
+            Files.write(tmp, Json.write(contents).getBytes(StandardCharsets.UTF_8));
+            
+            try{
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch(AtomicMoveNotSupportedException e){
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally{
+            Files.deleteIfExists(tmp);
+        }
+        
+        modified = Files.getLastModifiedTime(file);
+    }
+    
+    //token_expiry is local time from the auth subprocess' refreshes, or UTC ('Z') from the initial authorization
+    /**@hidden*/
+    private static long parseExpiry(String expiry){
+        if(expiry.endsWith("Z"))
+            return Instant.parse(expiry).toEpochMilli();
+        
+        return LocalDateTime.parse(expiry).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
\ No newline at end of file
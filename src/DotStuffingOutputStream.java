@@ -0,0 +1,219 @@
+/*Copyright (C) 2022  Riley Kuttruff
+*
+*   This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or
+*   (at your option) any later version.
+*
+*   This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+*   Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+*/
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Encodes raw message text for the {@code DATA} command.
+ * <p>
+ * Line endings ({@code CR}, {@code LF} or {@code CRLF}) are normalized to {@code CRLF} and a '.' starting a line is
+ * doubled (RFC 5321 Section 4.5.2). The encoding works on bytes, so the text is passed through unchanged in any
+ * charset, and is done in a fixed size buffer, so memory use does not depend on the size of the message.
+ * <p>
+ * The terminating {@code .} line is not written; see {@link SMTPSession#endData()}. With escaping turned off, only the
+ * line endings are normalized, as is needed for {@code BDAT} (RFC 3030).
+ *
+ *  @author     Riley Kuttruff
+ *  @version    1.0
+ */
+public class DotStuffingOutputStream extends FilterOutputStream{
+    /**Default buffer size*/
+    public static final int DEFAULT_BUFFER_SIZE = 16384;
+    
+    /**@hidden*/
+    private static final byte CR = '\r', LF = '\n', DOT = '.';
+    
+    /**Double a '.' starting a line*/
+    private final boolean escapeDots;
+    
+    /**Encoded bytes not yet written to the underlying stream*/
+    private final byte[] buf;
+    /**Number of bytes in {@link #buf}*/
+    private int count;
+    
+    /**Next byte starts a line*/
+    private boolean lineStart;
+    /**Last byte was a {@code CR}; a following {@code LF} belongs to the same line ending*/
+    private boolean afterCR;
+    
+    /**Bytes written to the underlying stream since the last reset*/
+    private long written;
+    
+    /**@hidden*/
+    private final byte[] single = new byte[1];
+    
+    /**
+     * Creates an encoder with the default buffer size.
+     *
+     * @param out Stream to write the encoded text to
+     */
+    public DotStuffingOutputStream(OutputStream out){
+        this(out, DEFAULT_BUFFER_SIZE, true);
+    }
+    
+    /**
+     * Constructor.
+     *
+     * @param out Stream to write the encoded text to
+     * @param size Buffer size
+     * @param escapeDots If {@code false}, a '.' starting a line is not doubled
+     */
+    public DotStuffingOutputStream(OutputStream out, int size, boolean escapeDots){
+        super(out);
+        
+        if(size < 2)
+            throw new IllegalArgumentException("Buffer size must be at least 2");
+        
+        this.escapeDots = escapeDots;
+        buf = new byte[size];
+        
+        reset();
+    }
+    
+    /**
+     * Prepares the encoder for a new message, discarding any buffered bytes.
+     */
+    public void reset(){
+        count = 0;
+        lineStart = true;
+        afterCR = false;
+        written = 0;
+    }
+    
+    @Override
+    public void write(int b) throws IOException{
+        single[0] = (byte)b;
+        write(single, 0, 1);
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException{
+        Objects.checkFromIndexSize(off, len, b.length);
+        
+        int end = off + len;
+        int run = off;      //Start of the current run of bytes copied as-is
+        
+        for(int i = off; i < end; i++){
+            byte c = b[i];
+            
+            if(afterCR){
+                afterCR = false;
+                
+                if(c == LF){    //Second half of a CRLF already written
+                    run = i + 1;
+                    continue;
+                }
+            }
+            
+            if(c == CR || c == LF){
+                copy(b, run, i - run);
+                put(CR);
+                put(LF);
+                
+                lineStart = true;
+                afterCR = c == CR;
+                run = i + 1;
+            }
+            else if(lineStart){
+                lineStart = false;
+                
+                if(c == DOT && escapeDots){     //Escape leading '.'; the '.' itself stays in the run
+                    copy(b, run, i - run);
+                    put(DOT);
+                    run = i;
+                }
+            }
+        }
+        
+        copy(b, run, end - run);
+    }
+    
+    /**
+     * Ends the current line with {@code CRLF} if it is not empty.
+     * <p>
+     * Used between the parts of a message so the last line of one part is not joined to the first line of the next.
+     *
+     * @throws IOException If an I/O error occurs writing to the underlying stream
+     */
+    public void endLine() throws IOException{
+        if(!lineStart){
+            put(CR);
+            put(LF);
+            
+            lineStart = true;
+        }
+        
+        afterCR = false;
+    }
+    
+    /**
+     * Ends the message text and writes all buffered bytes to the underlying stream.
+     * <p>
+     * The text is ended with {@code CRLF} if it does not end with a line break already, as required before the
+     * terminating {@code .} line. The underlying stream is not flushed.
+     *
+     * @throws IOException If an I/O error occurs writing to the underlying stream
+     */
+    public void finish() throws IOException{
+        endLine();
+        flushBuffer();
+    }
+    
+    @Override
+    public void flush() throws IOException{
+        flushBuffer();
+        out.flush();
+    }
+    
+    /**
+     * Returns the number of encoded bytes written to the underlying stream since the last reset.
+     *
+     * @return Number of bytes written
+     */
+    public long getWritten(){
+        return written;
+    }
+    
+    //Buffers len bytes, writing out full buffers as it goes
+    /**@hidden*/
+    private void copy(byte[] b, int off, int len) throws IOException{
+        while(len > 0){
+            int n = Math.min(len, buf.length - count);
+            
+            System.arraycopy(b, off, buf, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            
+            if(count == buf.length)
+                flushBuffer();
+        }
+    }
+    
+    /**@hidden*/
+    private void put(byte b) throws IOException{
+        if(count == buf.length)
+            flushBuffer();
+        
+        buf[count++] = b;
+    }
+    
+    /**@hidden*/
+    private void flushBuffer() throws IOException{
+        if(count > 0){
+            out.write(buf, 0, count);
+            written += count;
+            count = 0;
+        }
+    }
+}
\ No newline at end of file
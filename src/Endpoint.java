@@ -0,0 +1,188 @@
+/*Copyright (C) 2022  Riley Kuttruff
+*
+*   This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or
+*   (at your option) any later version.
+*
+*   This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+*   Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+*/
+
+import java.util.*;
+
+/**
+ * An SMTP server (smart host) to send through, with a weight for load balancing.
+ * <p>
+ * Written as {@code host[:port][/weight]}, e.g. {@code relay1.example.com:465/3}. The port defaults to
+ * {@value #DEFAULT_PORT} and the weight to 1.
+ *
+ *  @author     Riley Kuttruff
+ *  @version    1.0
+ */
+public final class Endpoint{
+    /**Default port: SMTP over implicit TLS*/
+    public static final int DEFAULT_PORT = 465;
+    
+    /**@hidden*/
+    private final String host;
+    /**@hidden*/
+    private final int port;
+    /**Relative share of sessions*/
+    private final int weight;
+    
+    /**
+     * Constructor.
+     *
+     * @param host Server domain name
+     * @param port Server port number
+     * @param weight Relative share of sessions, at least 1
+     * @throws IllegalArgumentException If the port or weight is out of range
+     */
+    public Endpoint(String host, int port, int weight){
+        if(port < 1 || port > 65535)
+            throw new IllegalArgumentException("Invalid port " + port);
+        
+        if(weight < 1)
+            throw new IllegalArgumentException("Invalid weight " + weight);
+        
+        this.host = Objects.requireNonNull(host);
+        this.port = port;
+        this.weight = weight;
+    }
+    
+    /**
+     * Parses an endpoint.
+     *
+     * @param s Endpoint as {@code host[:port][/weight]}
+     * @return The endpoint
+     * @throws IllegalArgumentException If {@code s} is not a valid endpoint
+     */
+    public static Endpoint parse(String s){
+        return parse(s, DEFAULT_PORT);
+    }
+    
+    /**
+     * Parses an endpoint, with the given default port.
+     *
+     * @param s Endpoint as {@code host[:port][/weight]}
+     * @param defaultPort Port if {@code s} has none
+     * @return The endpoint
+     * @throws IllegalArgumentException If {@code s} is not a valid endpoint
+     */
+    public static Endpoint parse(String s, int defaultPort){
+        String host = s.trim();
+        int port = defaultPort, weight = 1;
+        
+        try{
+            int slash = host.lastIndexOf('/');
+            
+            if(slash >= 0){
+                weight = Integer.parseInt(host.substring(slash + 1));
+                host = host.substring(0, slash);
+            }
+            
+            int colon = host.lastIndexOf(':');
+            
+            if(colon >= 0 && host.indexOf(':') == colon){     //Not an IPv6 address without a port
+                port = Integer.parseInt(host.substring(colon + 1));
+                host = host.substring(0, colon);
+            }
+            else if(host.startsWith("[") && host.contains("]:")){  //[IPv6]:port
+                int end = host.indexOf("]:");
+                
+                port = Integer.parseInt(host.substring(end + 2));
+                host = host.substring(1, end);
+            }
+        }
+        catch(NumberFormatException e){
+            throw new IllegalArgumentException("Invalid endpoint " + s);
+        }
+        
+        if(host.isEmpty())
+            throw new IllegalArgumentException("Invalid endpoint " + s);
+        
+        return new Endpoint(host, port, weight);
+    }
+    
+    /**
+     * Parses a comma separated list of endpoints.
+     *
+     * @param s Endpoints as {@code host[:port][/weight][,host[:port][/weight]]*}
+     * @return The endpoints, in order
+     * @throws IllegalArgumentException If {@code s} contains an invalid endpoint, or none
+     */
+    public static List<Endpoint> parseList(String s){
+        return parseList(s, DEFAULT_PORT);
+    }
+    
+    /**
+     * Parses a comma separated list of endpoints, with the given default port.
+     *
+     * @param s Endpoints as {@code host[:port][/weight][,host[:port][/weight]]*}
+     * @param defaultPort Port for endpoints without one
+     * @return The endpoints, in order
+     * @throws IllegalArgumentException If {@code s} contains an invalid endpoint, or none
+     */
+    public static List<Endpoint> parseList(String s, int defaultPort){
+        List<Endpoint> ret = new ArrayList<>();
+        
+        for(String e : s.split(",")){
+            if(!e.isBlank())
+                ret.add(parse(e, defaultPort));
+        }
+        
+        if(ret.isEmpty())
+            throw new IllegalArgumentException("No endpoints in " + s);
+        
+        return ret;
+    }
+    
+    /**
+     * Returns the server's domain name.
+     *
+     * @return Server domain name
+     */
+    public String getHost(){
+        return host;
+    }
+    
+    /**
+     * Returns the server's port number.
+     *
+     * @return Port number
+     */
+    public int getPort(){
+        return port;
+    }
+    
+    /**
+     * Returns the endpoint's weight.
+     *
+     * @return Relative share of sessions
+     */
+    public int getWeight(){
+        return weight;
+    }
+    
+    @Override
+    public boolean equals(Object o){
+        if(!(o instanceof Endpoint))
+            return false;
+        
+        Endpoint e = (Endpoint)o;
+        
+        return host.equalsIgnoreCase(e.host) && port == e.port && weight == e.weight;
+    }
+    
+    @Override
+    public int hashCode(){
+        return Objects.hash(host.toLowerCase(Locale.ROOT), port, weight);
+    }
+    
+    @Override
+    public String toString(){
+        return (host.contains(":") ? "[" + host + "]" : host) + ":" + port + "/" + weight;
+    }
+}
\ No newline at end of file
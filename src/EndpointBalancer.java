@@ -0,0 +1,230 @@
+/*Copyright (C) 2022  Riley Kuttruff
+*
+*   This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or
+*   (at your option) any later version.
+*
+*   This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+*   Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+*/
+
+import java.util.*;
+
+/**
+ * Spreads transactions over several SMTP endpoints.
+ * <p>
+ * Each transaction goes to the endpoint with the fewest outstanding transactions relative to its weight (least
+ * outstanding requests). Ties go to the endpoint that was least recently picked, so equal endpoints take turns.
+ * <p>
+ * An endpoint that fails (cannot be connected to, or replies {@code 421}) is ejected: it is not picked again until its
+ * ejection ends. The ejection time doubles with each failure in a row, up to a maximum, and is reset by a success. If
+ * every endpoint is ejected, the one whose ejection ends first is picked anyway, to probe it.
+ *
+ *  @author     Riley Kuttruff
+ *  @version    1.0
+ */
+public class EndpointBalancer{
+    /**Default time (ms) an endpoint is ejected for after its first failure*/
+    public static final long DEFAULT_EJECT_TIME = 10_000;
+    /**Default longest time (ms) an endpoint is ejected for*/
+    public static final long DEFAULT_MAX_EJECT_TIME = 300_000;
+    
+    /**@hidden*/
+    private final long ejectTime, maxEjectTime;
+    
+    /**State of each endpoint, in the order given*/
+    private final Map<Endpoint, State> states;
+    /**Incremented on each pick, for tie-breaking*/
+    private long picks;
+    
+    /**
+     * Creates a balancer with the default ejection times.
+     *
+     * @param endpoints Endpoints to balance over
+     * @throws IllegalArgumentException If {@code endpoints} is empty
+     */
+    public EndpointBalancer(List<Endpoint> endpoints){
+        this(endpoints, DEFAULT_EJECT_TIME, DEFAULT_MAX_EJECT_TIME);
+    }
+    
+    /**
+     * Constructor.
+     *
+     * @param endpoints Endpoints to balance over
+     * @param ejectTime Time (ms) an endpoint is ejected for after its first failure in a row
+     * @param maxEjectTime Longest time (ms) an endpoint is ejected for
+     * @throws IllegalArgumentException If {@code endpoints} is empty
+     */
+    public EndpointBalancer(List<Endpoint> endpoints, long ejectTime, long maxEjectTime){
+        if(endpoints.isEmpty())
+            throw new IllegalArgumentException("No endpoints");
+        
+        this.ejectTime = ejectTime;
+        this.maxEjectTime = Math.max(ejectTime, maxEjectTime);
+        
+        states = new LinkedHashMap<>();
+        
+        for(Endpoint e : endpoints)
+            states.putIfAbsent(e, new State());
+        
+        picks = 0;
+    }
+    
+    /**
+     * Picks an endpoint for a transaction and counts the transaction as outstanding on it.
+     * <p>
+     * Every call must be followed by a call to {@link #release}.
+     *
+     * @return The endpoint
+     */
+    public synchronized Endpoint acquire(){
+        return acquire(Collections.emptySet());
+    }
+    
+    /**
+     * Picks an endpoint for a transaction, other than those given, and counts the transaction as outstanding on it.
+     * <p>
+     * For retrying on another endpoint after a failure. Every call must be followed by a call to {@link #release}.
+     *
+     * @param exclude Endpoints not to pick, unless there are no others
+     * @return The endpoint
+     */
+    public synchronized Endpoint acquire(Set<Endpoint> exclude){
+        long now = System.currentTimeMillis();
+        
+        Endpoint best = null, soonest = null;
+        State bestState = null, soonestState = null;
+        
+        for(Map.Entry<Endpoint, State> entry : states.entrySet()){
+            Endpoint e = entry.getKey();
+            State s = entry.getValue();
+            
+            if(exclude.contains(e) && exclude.size() < states.size())
+                continue;
+            
+            if(s.ejectedUntil > now){
+                if(soonest == null || s.ejectedUntil < soonestState.ejectedUntil){
+                    soonest = e;
+                    soonestState = s;
+                }
+                
+                continue;
+            }
+            
+            //Compare outstanding / weight, as a cross product to stay in integers
+            if(best == null){
+                best = e;
+                bestState = s;
+                continue;
+            }
+            
+            long lhs = (long)s.outstanding * best.getWeight(), rhs = (long)bestState.outstanding * e.getWeight();
+            
+            if(lhs < rhs || (lhs == rhs && s.lastPick < bestState.lastPick)){
+                best = e;
+                bestState = s;
+            }
+        }
+        
+        if(best == null){       //All ejected (or excluded): probe the first back
+            best = (soonest != null) ? soonest : states.keySet().iterator().next();
+            bestState = states.get(best);
+        }
+        
+        bestState.outstanding++;
+        bestState.lastPick = ++picks;
+        
+        return best;
+    }
+    
+    /**
+     * Ends a transaction started with {@link #acquire}.
+     *
+     * @param endpoint Endpoint returned by {@code acquire}
+     */
+    public synchronized void release(Endpoint endpoint){
+        State s = states.get(endpoint);
+        
+        if(s != null && s.outstanding > 0)
+            s.outstanding--;
+    }
+    
+    /**
+     * Records a successful transaction (or connection), ending any run of failures.
+     *
+     * @param endpoint The endpoint
+     */
+    public synchronized void reportSuccess(Endpoint endpoint){
+        State s = states.get(endpoint);
+        
+        if(s != null)
+            s.failures = 0;
+    }
+    
+    /**
+     * Records a failure and ejects the endpoint.
+     *
+     * @param endpoint The endpoint
+     */
+    public synchronized void reportFailure(Endpoint endpoint){
+        State s = states.get(endpoint);
+        
+        if(s == null)
+            return;
+        
+        s.failures++;
+        
+        long time = ejectTime << Math.min(s.failures - 1, 20);
+        
+        s.ejectedUntil = System.currentTimeMillis() + Math.min(time, maxEjectTime);
+    }
+    
+    /**
+     * Returns if an endpoint is currently ejected.
+     *
+     * @param endpoint The endpoint
+     * @return {@code true} if the endpoint is ejected
+     */
+    public synchronized boolean isEjected(Endpoint endpoint){
+        State s = states.get(endpoint);
+        
+        return s != null && s.ejectedUntil > System.currentTimeMillis();
+    }
+    
+    /**
+     * Returns the number of outstanding transactions on an endpoint.
+     *
+     * @param endpoint The endpoint
+     * @return Number of transactions
+     */
+    public synchronized int getOutstanding(Endpoint endpoint){
+        State s = states.get(endpoint);
+        
+        return (s != null) ? s.outstanding : 0;
+    }
+    
+    /**
+     * Returns the endpoints.
+     *
+     * @return The endpoints, in the order given
+     */
+    public synchronized List<Endpoint> getEndpoints(){
+        return new ArrayList<>(states.keySet());
+    }
+    
+    /**
+     * Balancing state of an endpoint.
+     */
+    private static class State{
+        /**Transactions in progress*/
+        private int outstanding = 0;
+        /**Failures in a row*/
+        private int failures = 0;
+        /**End of the current ejection (epoch ms), 0 if never ejected*/
+        private long ejectedUntil = 0;
+        /**Value of picks when last picked*/
+        private long lastPick = 0;
+    }
+}
\ No newline at end of file
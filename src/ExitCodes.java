@@ -74,6 +74,14 @@
  *     <td>No valid authentication methods.</td>
  *   </tr>
  *   <tr>
+ *     <td style="text-align:right">13</td>
+ *     <td>One or more messages in a batch were not sent.</td>
+ *   </tr>
+ *   <tr>
+ *     <td style="text-align:right">14</td>
+ *     <td>STARTTLS required but not offered by the server.</td>
+ *   </tr>
+ *   <tr>
  *     <td style="text-align:right">404</td>
  *     <td>File not found. (for type=file)</td>
  *   </tr>
@@ -119,4 +127,8 @@ public interface ExitCodes{
     static final int ERR_AUTH_SUBPROC_FAILED = 0xb;
     /**None of the implemented authenication methods are accepted by the server*/
     static final int ERR_NO_VALID_AUTHS = 0xc;
+    /**One or more messages in a batch (-batch) or spool (-spool) were not sent*/
+    static final int ERR_BATCH_INCOMPLETE = 0xd;
+    /**STARTTLS required (-tls=required) but not offered by the server*/
+    static final int ERR_TLS_UNAVAILABLE = 0xe;
 }
\ No newline at end of file
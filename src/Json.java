@@ -0,0 +1,384 @@
+/*Copyright (C) 2022  Riley Kuttruff
+*
+*   This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or
+*   (at your option) any later version.
+*
+*   This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+*   Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+*/
+
+import java.util.*;
+
+/**
+ * Minimal JSON (RFC 8259) reader & writer, for token endpoint replies and the credential store.
+ * <p>
+ * Values map to {@link Map} (objects, keys in order), {@link List} (arrays), {@link String}, {@link Long} or
+ * {@link Double} (numbers), {@link Boolean} and {@code null}.
+ *
+ *  @author     Riley Kuttruff
+ *  @version    1.0
+ */
+public final class Json{
+    /**@hidden*/
+    private final String src;
+    /**@hidden*/
+    private int pos;
+    
+    /**@hidden*/
+    private Json(String src){
+        this.src = src;
+        this.pos = 0;
+    }
+    
+    /**
+     * Parses a JSON document.
+     *
+     * @param src JSON text
+     * @return The value
+     * @throws IllegalArgumentException If the text is not valid JSON
+     */
+    public static Object parse(String src){
+        Json p = new Json(src);
+        
+        Object v = p.value();
+        p.skipWhitespace();
+        
+        if(p.pos != src.length())
+            throw p.error("Trailing data");
+        
+        return v;
+    }
+    
+    /**
+     * Parses a JSON document that must be an object.
+     *
+     * @param src JSON text
+     * @return The object
+     * @throws IllegalArgumentException If the text is not a valid JSON object
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> parseObject(String src){
+        Object v = parse(src);
+        
+        if(!(v instanceof Map))
+            throw new IllegalArgumentException("Not a JSON object");
+        
+        return (Map<String, Object>)v;
+    }
+    
+    /**
+     * Writes a value as JSON.
+     *
+     * @param value A value of one of the types listed in the class description
+     * @return JSON text
+     * @throws IllegalArgumentException If the value (or a value in it) has an unsupported type
+     */
+    public static String write(Object value){
+        StringBuilder sb = new StringBuilder();
+        
+        write(sb, value);
+        
+        return sb.toString();
+    }
+    
+    /**@hidden*/
+    private static void write(StringBuilder sb, Object value){
+        if(value == null)
+            sb.append("null");
+        else if(value instanceof String)
+            writeString(sb, (String)value);
+        else if(value instanceof Number || value instanceof Boolean)
+            sb.append(value);
+        else if(value instanceof Map){
+            sb.append('{');
+            
+            boolean first = true;
+            
+            for(Map.Entry<?, ?> e : ((Map<?, ?>)value).entrySet()){
+                if(!first)
+                    sb.append(',');
+                
+                writeString(sb, String.valueOf(e.getKey()));
+                sb.append(':');
+                write(sb, e.getValue());
+                
+                first = false;
+            }
+            
+            sb.append('}');
+        }
+        else if(value instanceof List){
+            sb.append('[');
+            
+            boolean first = true;
+            
+            for(Object o : (List<?>)value){
+                if(!first)
+                    sb.append(',');
+                
+                write(sb, o);
+                
+                first = false;
+            }
+            
+            sb.append(']');
+        }
+        else
+            throw new IllegalArgumentException("Cannot write " + value.getClass().getName() + " as JSON");
+    }
+    
+    /**@hidden*/
+    private static void writeString(StringBuilder sb, String s){
+        sb.append('"');
+        
+        for(int i = 0; i < s.length(); i++){
+            char c = s.charAt(i);
+            
+            switch(c){
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if(c < 0x20)
+                        sb.append(String.format("\\u%04x", (int)c));
+                    else
+                        sb.append(c);
+            }
+        }
+        
+        sb.append('"');
+    }
+    
+    /**@hidden*/
+    private Object value(){
+        skipWhitespace();
+        
+        if(pos >= src.length())
+            throw error("Unexpected end of input");
+        
+        char c = src.charAt(pos);
+        
+        switch(c){
+            case '{':
+                return object();
+            case '[':
+                return array();
+            case '"':
+                return string();
+            case 't':
+                return literal("true", Boolean.TRUE);
+            case 'f':
+                return literal("false", Boolean.FALSE);
+            case 'n':
+                return literal("null", null);
+            default:
+                if(c == '-' || (c >= '0' && c <= '9'))
+                    return number();
+                
+                throw error("Unexpected character '" + c + "'");
+        }
+    }
+    
+    /**@hidden*/
+    private Map<String, Object> object(){
+        Map<String, Object> map = new LinkedHashMap<>();
+        
+        pos++;      //{
+        skipWhitespace();
+        
+        if(peek() == '}'){
+            pos++;
+            return map;
+        }
+        
+        for(;;){
+            skipWhitespace();
+            
+            if(peek() != '"')
+                throw error("Expected string key");
+            
+            String key = string();
+            
+            skipWhitespace();
+            expect(':');
+            
+            map.put(key, value());
+            
+            skipWhitespace();
+            
+            if(peek() == ','){
+                pos++;
+                continue;
+            }
+            
+            expect('}');
+            
+            return map;
+        }
+    }
+    
+    /**@hidden*/
+    private List<Object> array(){
+        List<Object> list = new ArrayList<>();
+        
+        pos++;      //[
+        skipWhitespace();
+        
+        if(peek() == ']'){
+            pos++;
+            return list;
+        }
+        
+        for(;;){
+            list.add(value());
+            
+            skipWhitespace();
+            
+            if(peek() == ','){
+                pos++;
+                continue;
+            }
+            
+            expect(']');
+            
+            return list;
+        }
+    }
+    
+    /**@hidden*/
+    private String string(){
+        StringBuilder sb = new StringBuilder();
+        
+        pos++;      //Opening quote
+        
+        for(;;){
+            if(pos >= src.length())
+                throw error("Unterminated string");
+            
+            char c = src.charAt(pos++);
+            
+            if(c == '"')
+                return sb.toString();
+            
+            if(c != '\\'){
+                sb.append(c);
+                continue;
+            }
+            
+            if(pos >= src.length())
+                throw error("Unterminated string");
+            
+            char e = src.charAt(pos++);
+            
+            switch(e){
+                case '"':
+                case '\\':
+                case '/':
+                    sb.append(e);
+                    break;
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'u':
+                    if(pos + 4 > src.length())
+                        throw error("Bad unicode escape");
+                    
+                    try{
+                        sb.append((char)Integer.parseInt(src.substring(pos, pos + 4), 16));
+                    }
+                    catch(NumberFormatException ex){
+                        throw error("Bad unicode escape");
+                    }
+                    
+                    pos += 4;
+                    break;
+                default:
+                    throw error("Bad escape '\\" + e + "'");
+            }
+        }
+    }
+    
+    /**@hidden*/
+    private Number number(){
+        int start = pos;
+        
+        while(pos < src.length() && "+-0123456789.eE".indexOf(src.charAt(pos)) >= 0)
+            pos++;
+        
+        String num = src.substring(start, pos);
+        
+        try{
+            if(num.indexOf('.') < 0 && num.indexOf('e') < 0 && num.indexOf('E') < 0)
+                return Long.parseLong(num);
+            
+            return Double.parseDouble(num);
+        }
+        catch(NumberFormatException e){
+            throw error("Bad number " + num);
+        }
+    }
+    
+    /**@hidden*/
+    private Object literal(String word, Object value){
+        if(!src.startsWith(word, pos))
+            throw error("Unexpected token");
+        
+        pos += word.length();
+        
+        return value;
+    }
+    
+    /**@hidden*/
+    private void skipWhitespace(){
+        while(pos < src.length() && " \t\r\n".indexOf(src.charAt(pos)) >= 0)
+            pos++;
+    }
+    
+    /**@hidden*/
+    private char peek(){
+        if(pos >= src.length())
+            throw error("Unexpected end of input");
+        
+        return src.charAt(pos);
+    }
+    
+    /**@hidden*/
+    private void expect(char c){
+        if(peek() != c)
+            throw error("Expected '" + c + "'");
+        
+        pos++;
+    }
+    
+    /**@hidden*/
+    private IllegalArgumentException error(String msg){
+        return new IllegalArgumentException("Invalid JSON at offset " + pos + ": " + msg);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,236 @@
+/*Copyright (C) 2022  Riley Kuttruff
+*
+*   This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or
+*   (at your option) any later version.
+*
+*   This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+*   Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+*/
+
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * A message to be sent in one mail transaction: the envelope (sender & recipients) and the message data.
+ * <p>
+ * The message data is made up of any in-memory lines, then any raw text (for example, read back from a {@link Spool}),
+ * then the contents of any files, in order. File name {@code -} indicates standard input.
+ *
+ *  @author     Riley Kuttruff
+ *  @version    1.0
+ */
+public class MailMessage{
+    /**@hidden*/
+    private static final Pattern WS = Pattern.compile("\\s+");
+    
+    /**Sender's address*/
+    private final String sender;
+    /**Recipients' addresses*/
+    private final String[] recipients;
+    /**Lines of message text, sent before any files*/
+    private final List<String> lines;
+    /**Paths of files containing message text*/
+    private final List<String> files;
+    /**Raw message text, sent after the lines; {@code null} if none*/
+    private final ByteBuffer text;
+    
+    /**
+     * Constructor.
+     *
+     * @param sender Sender's address
+     * @param recipients Recipients' addresses
+     * @param lines Lines of message text, sent before any files. May be {@code null}.
+     * @param files Paths of files containing message text. May be {@code null}.
+     */
+    public MailMessage(String sender, String[] recipients, List<String> lines, List<String> files){
+        this.sender = Objects.requireNonNull(sender);
+        this.recipients = recipients.clone();
+        this.lines = (lines != null) ? new ArrayList<>(lines) : Collections.emptyList();
+        this.files = (files != null) ? new ArrayList<>(files) : Collections.emptyList();
+        this.text = null;
+    }
+    
+    /**
+     * Creates a message from raw message text.
+     * <p>
+     * The text is not copied. It is sent as is, apart from escaping leading {@code .}s.
+     *
+     * @param sender Sender's address
+     * @param recipients Recipients' addresses
+     * @param text Message text, from its position to its limit
+     */
+    public MailMessage(String sender, String[] recipients, ByteBuffer text){
+        this.sender = Objects.requireNonNull(sender);
+        this.recipients = recipients.clone();
+        this.lines = Collections.emptyList();
+        this.files = Collections.emptyList();
+        this.text = text.duplicate();
+    }
+    
+    /**@hidden*/
+    private MailMessage(MailMessage msg, String[] recipients){
+        this.sender = msg.sender;
+        this.recipients = recipients.clone();
+        this.lines = msg.lines;
+        this.files = msg.files;
+        this.text = msg.text;
+    }
+    
+    /**
+     * Returns a copy of this message for other recipients.
+     * <p>
+     * The message data is shared, not copied.
+     *
+     * @param recipients Recipients' addresses
+     * @return The message, addressed to {@code recipients}
+     */
+    public MailMessage forRecipients(String... recipients){
+        return new MailMessage(this, recipients);
+    }
+    
+    /**
+     * Returns the sender's address.
+     *
+     * @return Sender's address
+     */
+    public String getSender(){
+        return sender;
+    }
+    
+    /**
+     * Returns the recipients' addresses.
+     *
+     * @return Recipients' addresses
+     */
+    public String[] getRecipients(){
+        return recipients.clone();
+    }
+    
+    /**
+     * Returns the in-memory lines of message text.
+     *
+     * @return Unmodifiable list of lines
+     */
+    public List<String> getLines(){
+        return Collections.unmodifiableList(lines);
+    }
+    
+    /**
+     * Returns the paths of the files containing message text.
+     *
+     * @return Unmodifiable list of paths
+     */
+    public List<String> getFiles(){
+        return Collections.unmodifiableList(files);
+    }
+    
+    /**
+     * Returns the raw message text.
+     *
+     * @return Read-only view of the text, or {@code null} if none
+     */
+    public ByteBuffer getText(){
+        return (text != null) ? text.asReadOnlyBuffer() : null;
+    }
+    
+    /**
+     * Estimates the size of the message data.
+     * <p>
+     * The estimate does not account for line ending conversion or escaping.
+     *
+     * @return Size in octets, or {@code -1} if unknown (the message data includes standard input)
+     */
+    public long getSize(){
+        long size = 0;
+        
+        for(String line : lines)
+            size += line.getBytes().length + 2;
+        
+        if(text != null)
+            size += text.remaining();
+        
+        for(String file : files){
+            if(file.equals("-"))
+                return -1;
+            
+            size += new File(file).length();
+        }
+        
+        return size;
+    }
+    
+    /**
+     * Reads a batch manifest.
+     * <p>
+     * Each non-blank line not starting with {@code #} describes one message:
+     * <pre>
+     * &lt;sender&gt; &lt;rcpt&gt;[;&lt;rcpt&gt;...] &lt;file&gt; [&lt;file&gt;...]
+     * </pre>
+     * A sender of {@code -} is replaced with {@code defaultSender}. Relative file paths are resolved against the
+     * manifest's directory. If {@code path} is a directory, each {@code *.msg} file in it is read as a manifest, in
+     * name order.
+     *
+     * @param path Manifest file or spool directory
+     * @param defaultSender Sender to use for messages with sender {@code -}
+     * @return The messages, in order
+     * @throws IOException If a manifest cannot be read
+     * @throws IllegalArgumentException If a manifest line is malformed or names a file that does not exist
+     */
+    public static List<MailMessage> readManifest(Path path, String defaultSender) throws IOException{
+        List<MailMessage> messages = new ArrayList<>();
+        
+        if(Files.isDirectory(path)){
+            List<Path> manifests = new ArrayList<>();
+            
+            try(DirectoryStream<Path> dir = Files.newDirectoryStream(path, "*.msg")){
+                for(Path p : dir)
+                    manifests.add(p);
+            }
+            
+            Collections.sort(manifests);
+            
+            for(Path p : manifests)
+                messages.addAll(readManifest(p, defaultSender));
+            
+            return messages;
+        }
+        
+        Path base = path.toAbsolutePath().getParent();
+        int lineNo = 0;
+        
+        for(String line : Files.readAllLines(path)){
+            lineNo++;
+            line = line.trim();
+            
+            if(line.isEmpty() || line.startsWith("#"))
+                continue;
+            
+            String[] fields = WS.split(line);
+            
+            if(fields.length < 3)
+                throw new IllegalArgumentException(path + ":" + lineNo + ": expected <sender> <recipients> <file>...");
+            
+            String sender = fields[0].equals("-") ? defaultSender : fields[0];
+            List<String> files = new ArrayList<>();
+            
+            for(int i = 2; i < fields.length; i++){
+                Path file = base.resolve(fields[i]);
+                
+                if(!Files.exists(file))
+                    throw new IllegalArgumentException(path + ":" + lineNo + ": file " + fields[i] + " does not exist");
+                
+                files.add(file.toString());
+            }
+            
+            messages.add(new MailMessage(sender, fields[1].split(";"), null, files));
+        }
+        
+        return messages;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,92 @@
+/*Copyright (C) 2022  Riley Kuttruff
+*
+*   This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or
+*   (at your option) any later version.
+*
+*   This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+*   Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+*/
+
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * Class to handle PLAIN SMTP authentication method.
+ * <p>
+ * Keeps a copy of the user's password so the argument can be rebuilt for every new connection (for instance, by a
+ * {@link SMTPSessionPool}). Call {@link #clear()} once it is no longer needed. See {@link PlainCredentials} to build the
+ * argument once instead.
+ *
+ *  @author     Riley Kuttruff
+ *  @version    1.0
+ */
+public class PlainAuth implements Auth{
+    /**User password*/
+    private final char[] pass;
+    
+    /**
+     * Constructor.
+     *
+     * @param pass User password. A copy is kept, the caller may clear the argument.
+     */
+    public PlainAuth(char[] pass){
+        this.pass = Arrays.copyOf(pass, pass.length);
+    }
+    
+    /**
+     * Creates the argument to the AUTH PLAIN command.
+     * <p>
+     * Encodes {@code \0user\0password}, as UTF-8 (RFC 4616), in Base64; the same bytes as {@link PlainCredentials}.
+     *
+     * @return Argument to AUTH command
+     */
+    @Override
+    public byte[] buildAuthString(String user){
+        int bufSize = 2;
+        
+        byte[] uBytes, pBytes;
+        
+        uBytes = user.getBytes(StandardCharsets.UTF_8);
+        
+        //AVOID using String objects...
+        CharBuffer cbuf = CharBuffer.wrap(pass);
+        ByteBuffer  buf = StandardCharsets.UTF_8.encode(cbuf);
+        
+        pBytes = Arrays.copyOfRange(buf.array(), buf.position(), buf.limit());
+        
+        Arrays.fill(buf.array(), (byte)0);
+        
+        cbuf = null;
+        buf = null;
+        
+        bufSize += (uBytes.length + pBytes.length);
+        
+        byte[] auth = new byte[bufSize];
+        
+        System.arraycopy(uBytes, 0, auth, 1, uBytes.length);                  //auth[0] = 0
+        System.arraycopy(pBytes, 0, auth, uBytes.length + 2, pBytes.length);  //auth[uBytes.length + 1] = 0
+        
+        Arrays.fill(pBytes, (byte)0);
+        
+        pBytes = new byte[0];
+        
+        byte[] authData = Base64.getEncoder().encode(auth);
+        
+        Arrays.fill(auth, (byte)0);
+        
+        return authData;
+    }
+    
+    /**
+     * Clears the stored password.
+     * <p>
+     * {@link #buildAuthString} should not be called afterward.
+     */
+    public void clear(){
+        Arrays.fill(pass, '\0');
+    }
+}
\ No newline at end of file
@@ -0,0 +1,166 @@
+/*Copyright (C) 2022  Riley Kuttruff
+*
+*   This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or
+*   (at your option) any later version.
+*
+*   This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+*   Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+*/
+
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * Precomputed PLAIN authentication data for one user, kept off the heap.
+ * <p>
+ * The Base64 encoded argument to {@code AUTH PLAIN} is built once, when the object is created, in a direct buffer. New
+ * sessions (e.g. reconnects by a {@link SMTPSessionPool}) write it to the connection from there with
+ * {@link SMTPSession#authenticate(String, String, ByteBuffer)}, so the password is not re-encoded and no copies of the
+ * credentials are left on the heap. Call {@link #clear()} once it is no longer needed.
+ * <p>
+ * An alternative to {@link PlainAuth} for pooled or frequently reconnecting sessions.
+ *
+ *  @author     Riley Kuttruff
+ *  @version    1.0
+ */
+public class PlainCredentials implements Auth{
+    /**@hidden*/
+    private static final byte[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+    
+    /**@hidden*/
+    private final String user;
+    /**Base64 of {@code \0user\0password}*/
+    private final ByteBuffer authData;
+    /**@hidden*/
+    private volatile boolean cleared;
+    
+    /**
+     * Constructor. Builds the authentication data.
+     *
+     * @param user Username
+     * @param pass User password. Not kept, the caller may clear the argument.
+     * @throws IllegalArgumentException If the password cannot be encoded
+     */
+    public PlainCredentials(String user, char[] pass){
+        this.user = Objects.requireNonNull(user);
+        
+        CharsetEncoder enc = StandardCharsets.UTF_8.newEncoder()        //RFC 4616 Section 2
+            .onMalformedInput(CodingErrorAction.REPORT)
+            .onUnmappableCharacter(CodingErrorAction.REPORT);
+        
+        byte[] uBytes = user.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer raw = ByteBuffer.allocateDirect(2 + uBytes.length + (int)(pass.length * enc.maxBytesPerChar()));
+        
+        try{
+            raw.put((byte)0).put(uBytes).put((byte)0);
+            
+            CoderResult res = enc.encode(CharBuffer.wrap(pass), raw, true);
+            
+            if(res.isError())
+                throw new IllegalArgumentException("Password cannot be encoded in UTF-8");
+            
+            enc.flush(raw);
+            raw.flip();
+            
+            authData = ByteBuffer.allocateDirect((raw.remaining() + 2) / 3 * 4);
+            encodeBase64(raw, authData);
+            authData.flip();
+        }
+        finally{
+            zero(raw);
+        }
+        
+        cleared = false;
+    }
+    
+    /**
+     * Returns the authentication data.
+     * <p>
+     * The returned buffer is a read-only view; reading from it does not affect later calls.
+     *
+     * @return Argument to the AUTH command, between position & limit
+     * @throws IllegalStateException If the credentials have been cleared
+     */
+    public ByteBuffer getAuthData(){
+        if(cleared)
+            throw new IllegalStateException("Credentials cleared");
+        
+        return authData.asReadOnlyBuffer();
+    }
+    
+    /**
+     * Returns the username.
+     *
+     * @return Username
+     */
+    public String getUser(){
+        return user;
+    }
+    
+    /**
+     * Creates the argument to the AUTH PLAIN command, as a copy on the heap.
+     * <p>
+     * For callers that need a byte array; sessions should use {@link #getAuthData()} instead.
+     *
+     * @param user Username; must be the one these credentials are for
+     * @return Argument to AUTH command
+     * @throws IllegalArgumentException If {@code user} is not the user these credentials are for
+     * @throws IllegalStateException If the credentials have been cleared
+     */
+    @Override
+    public byte[] buildAuthString(String user){
+        if(!this.user.equals(user))
+            throw new IllegalArgumentException("Credentials are for " + this.user);
+        
+        ByteBuffer data = getAuthData();
+        byte[] ret = new byte[data.remaining()];
+        
+        data.get(ret);
+        
+        return ret;
+    }
+    
+    /**
+     * Clears the authentication data.
+     * <p>
+     * The credentials cannot be used afterward.
+     */
+    public void clear(){
+        cleared = true;
+        
+        zero(authData.duplicate().clear());
+    }
+    
+    //Base64 (RFC 4648 Section 4) from src's remaining bytes into dst, without an intermediate array
+    /**@hidden*/
+    private static void encodeBase64(ByteBuffer src, ByteBuffer dst){
+        while(src.remaining() >= 3){
+            int b = (src.get() & 0xff) << 16 | (src.get() & 0xff) << 8 | (src.get() & 0xff);
+            
+            dst.put(BASE64[b >>> 18]).put(BASE64[(b >>> 12) & 0x3f]).put(BASE64[(b >>> 6) & 0x3f]).put(BASE64[b & 0x3f]);
+        }
+        
+        if(src.remaining() == 2){
+            int b = (src.get() & 0xff) << 16 | (src.get() & 0xff) << 8;
+            
+            dst.put(BASE64[b >>> 18]).put(BASE64[(b >>> 12) & 0x3f]).put(BASE64[(b >>> 6) & 0x3f]).put((byte)'=');
+        }
+        else if(src.remaining() == 1){
+            int b = (src.get() & 0xff) << 16;
+            
+            dst.put(BASE64[b >>> 18]).put(BASE64[(b >>> 12) & 0x3f]).put((byte)'=').put((byte)'=');
+        }
+    }
+    
+    /**@hidden*/
+    private static void zero(ByteBuffer buf){
+        buf.clear();
+        
+        while(buf.hasRemaining())
+            buf.put((byte)0);
+    }
+}
\ No newline at end of file
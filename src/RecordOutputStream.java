@@ -0,0 +1,169 @@
+/*Copyright (C) 2022  Riley Kuttruff
+*
+*   This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or
+*   (at your option) any later version.
+*
+*   This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+*   Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+*/
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Buffered output to the server's connection, counting flushes and TLS records.
+ * <p>
+ * Output is gathered into blocks the size of a full TLS record (16K of plaintext) and only written to the connection
+ * when a block fills or the stream is flushed. Every write to an SSL socket produces at least one record, so without
+ * buffering each short command or line of text would be sent in its own record.
+ * <p>
+ * The record count is an estimate: each write to the connection is counted as the number of full size records needed
+ * to carry it.
+ *
+ *  @author     Riley Kuttruff
+ *  @version    1.0
+ */
+public class RecordOutputStream extends FilterOutputStream{
+    /**Largest TLS record plaintext (RFC 8446 Section 5.1)*/
+    public static final int MAX_RECORD_SIZE = 16384;
+    
+    /**Bytes not yet written to the connection*/
+    private final byte[] buf;
+    /**Number of bytes in {@link #buf}*/
+    private int count;
+    /**Bytes have been written since the last flush*/
+    private boolean dirty;
+    
+    /**@hidden*/
+    private long bytes, records, flushes;
+    
+    /**
+     * Constructor.
+     *
+     * @param out The connection's output stream
+     */
+    public RecordOutputStream(OutputStream out){
+        super(out);
+        
+        buf = new byte[MAX_RECORD_SIZE];
+        count = 0;
+        dirty = false;
+        
+        bytes = records = flushes = 0;
+    }
+    
+    @Override
+    public void write(int b) throws IOException{
+        dirty = true;
+        
+        if(count == buf.length)
+            writeBuffer();
+        
+        buf[count++] = (byte)b;
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException{
+        Objects.checkFromIndexSize(off, len, b.length);
+        
+        dirty = true;
+        
+        if(len >= buf.length){      //Already a full record or more: send as is
+            writeBuffer();
+            writeOut(b, off, len);
+            
+            return;
+        }
+        
+        if(len > buf.length - count)
+            writeBuffer();
+        
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+    
+    /**
+     * Writes bytes straight to the connection, without copying them into the buffer.
+     * <p>
+     * For sensitive data (e.g. credentials), which should not be left behind in the buffer. Buffered bytes are written
+     * first to keep the output in order.
+     *
+     * @param b The bytes
+     * @param off Start offset in {@code b}
+     * @param len Number of bytes to write
+     * @throws IOException If an I/O error occurs writing to the connection
+     */
+    public void writeUnbuffered(byte[] b, int off, int len) throws IOException{
+        Objects.checkFromIndexSize(off, len, b.length);
+        
+        dirty = true;
+        
+        writeBuffer();
+        writeOut(b, off, len);
+    }
+    
+    /**
+     * Writes any buffered bytes to the connection and flushes it.
+     * <p>
+     * Does nothing (and is not counted) if nothing has been written since the last flush.
+     *
+     * @throws IOException If an I/O error occurs writing to the connection
+     */
+    @Override
+    public void flush() throws IOException{
+        if(!dirty)
+            return;
+        
+        writeBuffer();
+        out.flush();
+        
+        dirty = false;
+        flushes++;
+    }
+    
+    /**
+     * Returns the number of bytes written to the connection.
+     *
+     * @return Number of bytes
+     */
+    public long getBytes(){
+        return bytes;
+    }
+    
+    /**
+     * Returns the (estimated) number of TLS records written to the connection.
+     *
+     * @return Number of records
+     */
+    public long getRecords(){
+        return records;
+    }
+    
+    /**
+     * Returns the number of times buffered output was flushed to the connection.
+     *
+     * @return Number of flushes
+     */
+    public long getFlushes(){
+        return flushes;
+    }
+    
+    /**@hidden*/
+    private void writeBuffer() throws IOException{
+        if(count > 0){
+            writeOut(buf, 0, count);
+            count = 0;
+        }
+    }
+    
+    /**@hidden*/
+    private void writeOut(byte[] b, int off, int len) throws IOException{
+        out.write(b, off, len);
+        
+        bytes += len;
+        records += (len + MAX_RECORD_SIZE - 1) / MAX_RECORD_SIZE;
+    }
+}
\ No newline at end of file
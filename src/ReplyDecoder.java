@@ -0,0 +1,226 @@
+/*Copyright (C) 2022  Riley Kuttruff
+*
+*   This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or
+*   (at your option) any later version.
+*
+*   This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+*   Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+*/
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Reads SMTP replies from the server's connection.
+ * <p>
+ * Replies are decoded directly from the input bytes: the reply code and the continuation flag ({@code -} or
+ * {@code SP} after the code, RFC 5321 Section 4.2.1) are read from each line without converting it to a String. The
+ * input and reply buffers are reused from reply to reply. The text of the most recent reply is only converted to a
+ * String when asked for, with {@link #getText()} or {@link #toResponse()}.
+ *
+ *  @author     Riley Kuttruff
+ *  @version    1.0
+ */
+public class ReplyDecoder implements Closeable{
+    /**@hidden*/
+    private static final int BUFFER_SIZE = 8192;
+    
+    /**@hidden*/
+    private final InputStream in;
+    
+    /**Bytes read from the connection*/
+    private final byte[] buf;
+    /**Position of the next unread byte in {@link #buf}*/
+    private int pos;
+    /**Number of bytes in {@link #buf}*/
+    private int limit;
+    
+    /**Lines of the current reply, separated by {@code LF}, without line terminators*/
+    private byte[] text;
+    /**Number of bytes in {@link #text}*/
+    private int length;
+    
+    /**Code of the current reply*/
+    private int code;
+    /**Text of the current reply, if it has been asked for*/
+    private String textString;
+    
+    /**
+     * Constructor.
+     *
+     * @param in The connection's input stream
+     */
+    public ReplyDecoder(InputStream in){
+        this.in = in;
+        
+        buf = new byte[BUFFER_SIZE];
+        pos = limit = 0;
+        
+        text = new byte[512];   //Longest reply line allowed (RFC 5321 Section 4.5.3.1.5)
+        length = 0;
+        
+        code = -1;
+        textString = null;
+    }
+    
+    /**
+     * Reads the next reply.
+     *
+     * @return The reply code
+     * @throws EOFException If the server closes the connection before a complete reply is read
+     * @throws InvalidResponseException If a line of the reply is not a valid reply line
+     * @throws IOException If an I/O error occurs reading from the server
+     */
+    public int read() throws IOException{
+        length = 0;
+        code = -1;
+        textString = null;
+        
+        for(;;){
+            if(length > 0)
+                append((byte)'\n');
+            
+            int start = length;
+            
+            readLine();
+            
+            int n = length - start;
+            byte sep = (n > 3) ? text[start + 3] : (byte)' ';
+            
+            if(n < 3 || !isCode(start) || (sep != ' ' && sep != '-'))
+                throw new InvalidResponseException(new String(text, start, n));
+            
+            if(sep == ' '){     //Final line
+                code = (text[start] - '0') * 100 + (text[start + 1] - '0') * 10 + (text[start + 2] - '0');
+                
+                return code;
+            }
+        }
+    }
+    
+    /**
+     * Returns the code of the most recent reply.
+     *
+     * @return The reply code, or {@code -1} if no reply has been read
+     */
+    public int getCode(){
+        return code;
+    }
+    
+    /**
+     * Returns the text of the most recent reply.
+     *
+     * @return The reply's lines (including their codes), separated by line feeds
+     */
+    public String getText(){
+        if(textString == null)
+            textString = new String(text, 0, length).trim();
+        
+        return textString;
+    }
+    
+    /**
+     * Copies the most recent reply into a {@link SMTPClient.Response}.
+     *
+     * @return The reply
+     */
+    public SMTPClient.Response toResponse(){
+        return new SMTPClient.Response(code, Arrays.copyOf(text, length));
+    }
+    
+    /**
+     * Returns the number of bytes read from the connection but not yet decoded.
+     *
+     * @return Number of buffered bytes
+     */
+    public int buffered(){
+        return limit - pos;
+    }
+    
+    /**
+     * Closes the connection's input stream.
+     *
+     * @throws IOException If an I/O error occurs closing the stream
+     */
+    @Override
+    public void close() throws IOException{
+        in.close();
+    }
+    
+    //Appends the next line to text, without its terminator
+    /**@hidden*/
+    private void readLine() throws IOException{
+        boolean empty = true;
+        
+        for(;;){
+            if(pos == limit){
+                limit = in.read(buf, 0, buf.length);
+                pos = 0;
+                
+                if(limit < 0){
+                    limit = 0;
+                    
+                    if(empty)
+                        throw new EOFException("Connection closed by server");
+                    
+                    return;     //Last line not terminated; take it as is
+                }
+            }
+            
+            int start = pos;
+            
+            while(pos < limit && buf[pos] != '\n')
+                pos++;
+            
+            int end = pos;
+            
+            if(pos < limit)     //Found the LF; skip it
+                pos++;
+            else{
+                append(buf, start, end - start);
+                empty &= end == start;
+                
+                continue;
+            }
+            
+            append(buf, start, end - start);
+            
+            if(length > 0 && text[length - 1] == '\r')
+                length--;
+            
+            return;
+        }
+    }
+    
+    //First three bytes of the line at start form a valid reply code
+    /**@hidden*/
+    private boolean isCode(int start){
+        byte a = text[start], b = text[start + 1], c = text[start + 2];
+        
+        return a >= '2' && a <= '5' && b >= '0' && b <= '5' && c >= '0' && c <= '9';
+    }
+    
+    /**@hidden*/
+    private void append(byte b){
+        ensureCapacity(length + 1);
+        
+        text[length++] = b;
+    }
+    
+    /**@hidden*/
+    private void append(byte[] b, int off, int len){
+        ensureCapacity(length + len);
+        
+        System.arraycopy(b, off, text, length, len);
+        length += len;
+    }
+    
+    /**@hidden*/
+    private void ensureCapacity(int capacity){
+        if(capacity > text.length)
+            text = Arrays.copyOf(text, Math.max(capacity, text.length * 2));
+    }
+}
\ No newline at end of file
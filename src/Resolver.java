@@ -0,0 +1,406 @@
+/*Copyright (C) 2022  Riley Kuttruff
+*
+*   This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or
+*   (at your option) any later version.
+*
+*   This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+*   Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+*/
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Caches the addresses of SMTP servers.
+ * <p>
+ * Each host's addresses are kept for its TTL (the default, or one set with {@link #setTTL}). A host that has been used
+ * since it was last resolved is looked up again in the background at {@value #REFRESH_AT_PERCENT}% of its TTL, so
+ * sessions to busy servers rarely wait on DNS. Concurrent lookups of one host are made once.
+ * <p>
+ * If a lookup fails, the last known addresses are served instead, for {@value #DEFAULT_STALE_RETRY} ms at a time before
+ * the next lookup is tried.
+ * <p>
+ * The JDK resolver does not report record TTLs, so TTLs are configured rather than taken from DNS. Lookups still pass
+ * through the JVM's own cache ({@code networkaddress.cache.ttl}).
+ *
+ *  @author     Riley Kuttruff
+ *  @version    1.0
+ */
+public class Resolver{
+    /**Default time (ms) addresses are cached for*/
+    public static final long DEFAULT_TTL = 60_000;
+    /**Time (ms) the last known addresses are served after a failed lookup, before trying again*/
+    public static final long DEFAULT_STALE_RETRY = 5_000;
+    /**Percentage of a host's TTL after which a used host is looked up again in the background*/
+    public static final int REFRESH_AT_PERCENT = 80;
+    
+    /**@hidden*/
+    private static final Resolver DEFAULT = new Resolver();
+    
+    /**Default TTL (ms)*/
+    private final long ttl;
+    /**TTLs (ms) set per host*/
+    private final Map<String, Long> ttls;
+    /**Does the lookups*/
+    private final Lookup lookup;
+    
+    /**Cached hosts, by lower case name*/
+    private final Map<String, Host> hosts;
+    /**Runs background refreshes*/
+    private final ScheduledExecutorService refresher;
+    
+    /*      Metrics     */
+    /**@hidden*/
+    private final AtomicLong requests, hits, misses, staleServed, lookups, failures, lookupNanos, maxLookupNanos;
+    
+    /**
+     * Creates a resolver with the default TTL, using the JDK resolver.
+     */
+    public Resolver(){
+        this(DEFAULT_TTL, InetAddress::getAllByName);
+    }
+    
+    /**
+     * Constructor.
+     *
+     * @param ttl Default time (ms) addresses are cached for
+     * @param lookup Looks up a host's addresses
+     */
+    public Resolver(long ttl, Lookup lookup){
+        if(ttl < 1)
+            throw new IllegalArgumentException("TTL must be positive");
+        
+        this.ttl = ttl;
+        this.lookup = Objects.requireNonNull(lookup);
+        
+        ttls = new ConcurrentHashMap<>();
+        hosts = new ConcurrentHashMap<>();
+        
+        refresher = Executors.newSingleThreadScheduledExecutor((r) -> {
+            Thread t = new Thread(r, "Resolver-Refresh");
+            t.setDaemon(true);
+            return t;
+        });
+        
+        requests = new AtomicLong();
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+        staleServed = new AtomicLong();
+        lookups = new AtomicLong();
+        failures = new AtomicLong();
+        lookupNanos = new AtomicLong();
+        maxLookupNanos = new AtomicLong();
+    }
+    
+    /**
+     * Returns the resolver used by connectors not given one.
+     *
+     * @return The default resolver
+     */
+    public static Resolver getDefault(){
+        return DEFAULT;
+    }
+    
+    /**
+     * Sets how long a host's addresses are cached for.
+     * <p>
+     * Applies from the host's next lookup.
+     *
+     * @param host Host name
+     * @param ttl Time (ms) addresses are cached for
+     */
+    public void setTTL(String host, long ttl){
+        if(ttl < 1)
+            throw new IllegalArgumentException("TTL must be positive");
+        
+        ttls.put(key(host), ttl);
+    }
+    
+    /**
+     * Returns a host's addresses, from the cache if they have not expired.
+     *
+     * @param host Host name
+     * @return The host's addresses
+     * @throws UnknownHostException If the host could not be resolved and has no last known addresses
+     */
+    public InetAddress[] resolve(String host) throws UnknownHostException{
+        Host h = hosts.computeIfAbsent(key(host), Host::new);
+        Entry e = h.entry;
+        
+        requests.incrementAndGet();
+        h.used = true;
+        
+        if(e != null && System.currentTimeMillis() < e.expires){
+            (e.stale ? staleServed : hits).incrementAndGet();
+            
+            return e.addresses.clone();
+        }
+        
+        misses.incrementAndGet();
+        
+        try{
+            return lookup(h).addresses.clone();
+        }
+        catch(UnknownHostException ex){
+            e = h.entry;
+            
+            if(e == null)
+                throw ex;
+            
+            //Serve the last known addresses for a while
+            if(!e.stale || System.currentTimeMillis() >= e.expires)
+                h.entry = e = new Entry(e.addresses, System.currentTimeMillis() + DEFAULT_STALE_RETRY, true);
+            
+            staleServed.incrementAndGet();
+            
+            return e.addresses.clone();
+        }
+    }
+    
+    /**
+     * Drops all cached addresses.
+     */
+    public void clear(){
+        hosts.clear();
+    }
+    
+    /*      Metrics     */
+    
+    /**
+     * Returns the number of calls to {@link #resolve}.
+     *
+     * @return Number of requests
+     */
+    public long getRequests(){
+        return requests.get();
+    }
+    
+    /**
+     * Returns the number of requests answered from unexpired cached addresses.
+     *
+     * @return Number of hits
+     */
+    public long getHits(){
+        return hits.get();
+    }
+    
+    /**
+     * Returns the number of requests that had to wait for a lookup.
+     *
+     * @return Number of misses
+     */
+    public long getMisses(){
+        return misses.get();
+    }
+    
+    /**
+     * Returns the number of requests answered with last known addresses after a lookup failed.
+     *
+     * @return Number of stale answers
+     */
+    public long getStaleServed(){
+        return staleServed.get();
+    }
+    
+    /**
+     * Returns the number of lookups made, in the foreground and background.
+     *
+     * @return Number of lookups
+     */
+    public long getLookups(){
+        return lookups.get();
+    }
+    
+    /**
+     * Returns the number of lookups that failed.
+     *
+     * @return Number of failed lookups
+     */
+    public long getLookupFailures(){
+        return failures.get();
+    }
+    
+    /**
+     * Returns the mean time a lookup took.
+     *
+     * @return Mean lookup time (ms), 0 if no lookups have been made
+     */
+    public double getMeanLookupTime(){
+        long n = lookups.get();
+        
+        return (n == 0) ? 0 : lookupNanos.get() / 1e6 / n;
+    }
+    
+    /**
+     * Returns the longest time a lookup took.
+     *
+     * @return Longest lookup time (ms)
+     */
+    public double getMaxLookupTime(){
+        return maxLookupNanos.get() / 1e6;
+    }
+    
+    //Looks up a host, or waits for the lookup already in flight
+    /**@hidden*/
+    private Entry lookup(Host h) throws UnknownHostException{
+        CompletableFuture<Entry> mine = new CompletableFuture<>(), pending;
+        
+        synchronized(h){
+            pending = h.inFlight;
+            
+            if(pending == null)
+                h.inFlight = mine;
+        }
+        
+        if(pending == null){    //Ours to look up
+            try{
+                mine.complete(lookupNow(h));
+            }
+            catch(UnknownHostException | RuntimeException e){
+                mine.completeExceptionally(e);
+            }
+            finally{
+                synchronized(h){
+                    h.inFlight = null;
+                }
+            }
+            
+            pending = mine;
+        }
+        
+        try{
+            return pending.get();
+        }
+        catch(ExecutionException e){
+            Throwable cause = e.getCause();
+            
+            if(cause instanceof UnknownHostException)
+                throw (UnknownHostException)cause;
+            
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            
+            throw new UnknownHostException(h.name);
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException("Interrupted resolving " + h.name);
+        }
+    }
+    
+    //Does the lookup, records it & schedules the refresh
+    /**@hidden*/
+    private Entry lookupNow(Host h) throws UnknownHostException{
+        long start = System.nanoTime();
+        
+        lookups.incrementAndGet();
+        
+        try{
+            InetAddress[] addresses = lookup.lookup(h.name);
+            
+            if(addresses == null || addresses.length == 0)
+                throw new UnknownHostException(h.name);
+            
+            long hostTTL = ttls.getOrDefault(h.name, ttl);
+            Entry e = new Entry(addresses.clone(), System.currentTimeMillis() + hostTTL, false);
+            
+            h.entry = e;
+            h.used = false;
+            
+            try{
+                refresher.schedule(() -> refresh(h), hostTTL * REFRESH_AT_PERCENT / 100, TimeUnit.MILLISECONDS);
+            }
+            catch(RejectedExecutionException ex){}
+            
+            return e;
+        }
+        catch(UnknownHostException e){
+            failures.incrementAndGet();
+            throw e;
+        }
+        finally{
+            long t = System.nanoTime() - start;
+            
+            lookupNanos.addAndGet(t);
+            maxLookupNanos.accumulateAndGet(t, Math::max);
+        }
+    }
+    
+    //Background refresh: only for hosts in use & still cached
+    /**@hidden*/
+    private void refresh(Host h){
+        if(!h.used || hosts.get(h.name) != h)
+            return;
+        
+        try{
+            lookup(h);
+        }
+        catch(UnknownHostException | RuntimeException e){}  //Retried in the foreground on expiry
+    }
+    
+    /**@hidden*/
+    private static String key(String host){
+        return host.toLowerCase(Locale.ROOT);
+    }
+    
+    /**
+     * Looks up a host's addresses.
+     */
+    @FunctionalInterface
+    public interface Lookup{
+        /**
+         * Looks up a host's addresses.
+         *
+         * @param host Host name
+         * @return The host's addresses
+         * @throws UnknownHostException If the host could not be resolved
+         */
+        InetAddress[] lookup(String host) throws UnknownHostException;
+    }
+    
+    /**
+     * Cache state of a host.
+     */
+    private static class Host{
+        /**Lower case host name*/
+        private final String name;
+        /**Current addresses, {@code null} until first resolved*/
+        private volatile Entry entry;
+        /**Resolved since the last lookup*/
+        private volatile boolean used;
+        /**Lookup in flight, {@code null} if none. Guarded by this*/
+        private CompletableFuture<Entry> inFlight;
+        
+        /**@hidden*/
+        private Host(String name){
+            this.name = name;
+            this.entry = null;
+            this.used = false;
+            this.inFlight = null;
+        }
+    }
+    
+    /**
+     * Addresses and when they expire.
+     */
+    private static class Entry{
+        /**@hidden*/
+        private final InetAddress[] addresses;
+        /**Expiry (epoch ms)*/
+        private final long expires;
+        /**Last known addresses, served after a failed lookup*/
+        private final boolean stale;
+        
+        /**@hidden*/
+        private Entry(InetAddress[] addresses, long expires, boolean stale){
+            this.addresses = addresses;
+            this.expires = expires;
+            this.stale = stale;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,580 @@
+/*Copyright (C) 2022  Riley Kuttruff
+*
+*   This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or
+*   (at your option) any later version.
+*
+*   This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+*   Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+*/
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Sends messages, retrying temporary failures later.
+ * <p>
+ * A message is sent with an {@link AsyncSMTPClient}. Recipients that fail temporarily ({@code 4xx}, for the recipient
+ * or for the whole transaction, or an I/O error) are sent the message again after a delay; recipients accepted or
+ * rejected permanently are not. Any other error (e.g. failed authentication, or a {@code 5xx} reply refusing the
+ * session) fails the message without a retry, the error being kept as {@link Delivery#getCause()}. The delay doubles
+ * with each attempt, from the initial delay up to the maximum, and is jittered (a random time between half the delay
+ * and the whole of it) so messages deferred together do not all come back together. After the last attempt,
+ * recipients still failing temporarily are given up on.
+ * <p>
+ * Deferred messages wait in a queue ordered by when they are due, which a single thread serves; no thread is held
+ * while a message waits.
+ * <p>
+ * A message whose data includes standard input ({@code "-"} among its files) is not sent again, as standard input
+ * cannot be read again: recipients failing temporarily on the first attempt are given up on.
+ *
+ *  @author     Riley Kuttruff
+ *  @version    1.0
+ */
+public class RetryScheduler implements Closeable{
+    /**Default delay (ms) before the first retry*/
+    public static final long DEFAULT_INITIAL_DELAY = 60_000;
+    /**Default longest delay (ms) between attempts*/
+    public static final long DEFAULT_MAX_DELAY = 3_600_000;
+    /**Default number of attempts (including the first) before giving up*/
+    public static final int DEFAULT_MAX_ATTEMPTS = 10;
+    
+    /**@hidden*/
+    private final AsyncSMTPClient client;
+    /**@hidden*/
+    private final long initialDelay, maxDelay;
+    /**@hidden*/
+    private final int maxAttempts;
+    
+    /**Guards queue & closed*/
+    private final ReentrantLock lock;
+    /**Signalled when the head of the queue changes, or on close*/
+    private final Condition changed;
+    /**Deferred messages, soonest due first*/
+    private final PriorityQueue<Retry> queue;
+    /**Sends deferred messages when due*/
+    private final Thread dispatcher;
+    /**@hidden*/
+    private boolean closed;
+    
+    /**Orders retries due at the same time*/
+    private final AtomicLong sequence;
+    
+    /*      Metrics     */
+    /**@hidden*/
+    private final AtomicLong attempts, deferrals, givenUp;
+    
+    /**
+     * Creates a scheduler with the default delays and attempts.
+     * <p>
+     * The client is not closed by {@link #close()}.
+     *
+     * @param client Client to send with
+     */
+    public RetryScheduler(AsyncSMTPClient client){
+        this(client, DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY, DEFAULT_MAX_ATTEMPTS);
+    }
+    
+    /**
+     * Constructor.
+     * <p>
+     * The client is not closed by {@link #close()}.
+     *
+     * @param client Client to send with
+     * @param initialDelay Delay (ms) before the first retry
+     * @param maxDelay Longest delay (ms) between attempts
+     * @param maxAttempts Number of attempts (including the first) before giving up
+     */
+    public RetryScheduler(AsyncSMTPClient client, long initialDelay, long maxDelay, int maxAttempts){
+        if(initialDelay < 1 || maxAttempts < 1)
+            throw new IllegalArgumentException("Delay and attempts must be positive");
+        
+        this.client = Objects.requireNonNull(client);
+        this.initialDelay = initialDelay;
+        this.maxDelay = Math.max(initialDelay, maxDelay);
+        this.maxAttempts = maxAttempts;
+        
+        lock = new ReentrantLock();
+        changed = lock.newCondition();
+        queue = new PriorityQueue<>();
+        closed = false;
+        
+        sequence = new AtomicLong();
+        
+        attempts = new AtomicLong();
+        deferrals = new AtomicLong();
+        givenUp = new AtomicLong();
+        
+        dispatcher = new Thread(this::dispatch, "RetryScheduler");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+    
+    /**
+     * Sends a message, retrying temporary failures.
+     *
+     * @param msg Message to send
+     * @return Future for the outcome, once every recipient has been accepted, rejected or given up on. Completes
+     * exceptionally with an {@link IllegalStateException} if the scheduler is closed first.
+     */
+    public CompletableFuture<Delivery> submit(MailMessage msg){
+        Delivery d = new Delivery(msg);
+        
+        lock.lock();
+        
+        try{
+            if(closed){
+                d.future.completeExceptionally(new IllegalStateException("Scheduler closed"));
+                return d.future;
+            }
+        }
+        finally{
+            lock.unlock();
+        }
+        
+        attempt(new Retry(d, msg.getRecipients(), 1, 0));
+        
+        return d.future;
+    }
+    
+    /**
+     * Returns the number of messages waiting to be sent again.
+     *
+     * @return Number of deferred messages
+     */
+    public int getDeferred(){
+        lock.lock();
+        
+        try{
+            return queue.size();
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the number of transactions attempted, first attempts included.
+     *
+     * @return Number of attempts
+     */
+    public long getAttempts(){
+        return attempts.get();
+    }
+    
+    /**
+     * Returns the number of times a message was deferred.
+     *
+     * @return Number of deferrals
+     */
+    public long getDeferrals(){
+        return deferrals.get();
+    }
+    
+    /**
+     * Returns the number of recipients given up on after the last attempt.
+     *
+     * @return Number of recipients
+     */
+    public long getGivenUp(){
+        return givenUp.get();
+    }
+    
+    /**
+     * Stops the scheduler.
+     * <p>
+     * Deferred messages are not sent again; their futures complete exceptionally with an
+     * {@link IllegalStateException}. Attempts in progress finish, but are not retried.
+     *
+     * @throws InterruptedIOException If interrupted while waiting for the dispatcher to stop
+     */
+    @Override
+    public void close() throws InterruptedIOException{
+        List<Retry> dropped;
+        
+        lock.lock();
+        
+        try{
+            if(closed)
+                return;
+            
+            closed = true;
+            dropped = new ArrayList<>(queue);
+            queue.clear();
+            changed.signalAll();
+        }
+        finally{
+            lock.unlock();
+        }
+        
+        for(Retry r : dropped)
+            r.delivery.future.completeExceptionally(new IllegalStateException("Scheduler closed"));
+        
+        try{
+            dispatcher.join();
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the retry scheduler to stop");
+        }
+    }
+    
+    /**
+     * Returns the recipients of a transaction that failed temporarily, and may succeed if tried again.
+     * <p>
+     * These are the recipients rejected with a {@code 4xx} reply, and, if the transaction failed with a {@code 4xx}
+     * reply (e.g. {@code 421} or {@code 451}), those it would otherwise have been sent to.
+     *
+     * @param result Outcome of the transaction
+     * @return The recipients to try again, in order
+     */
+    public static List<String> getTransientFailures(SendResult result){
+        List<String> ret = new ArrayList<>();
+        
+        for(String r : result.getMessage().getRecipients()){
+            if(isTransient(code(result, r)))
+                ret.add(r);
+        }
+        
+        return ret;
+    }
+    
+    //Sends one attempt; the outcome is handled on completion, without waiting for it
+    /**@hidden*/
+    private void attempt(Retry r){
+        Delivery d = r.delivery;
+        MailMessage msg = (r.attempt == 1) ? d.message : d.message.forRecipients(r.recipients);
+        
+        attempts.incrementAndGet();
+        
+        client.send(msg).whenComplete((result, t) -> handle(r, result, t));
+    }
+    
+    //Records the outcome of an attempt, then defers what failed temporarily or completes the delivery
+    /**@hidden*/
+    private void handle(Retry r, SendResult result, Throwable t){
+        Delivery d = r.delivery;
+        List<String> retry = new ArrayList<>();
+        
+        if(t instanceof CompletionException && t.getCause() != null)
+            t = t.getCause();
+        
+        d.attempted(result, t);
+        
+        for(String rcpt : r.recipients){
+            int code = (result != null) ? code(result, rcpt) : -1;
+            
+            if((result != null) ? isTransient(code) : isTransient(t))
+                retry.add(rcpt);
+            
+            d.setCode(rcpt, code, (result != null) ? status(result, rcpt) : null);
+        }
+        
+        if(retry.isEmpty()){
+            d.future.complete(d);
+            return;
+        }
+        
+        if(r.attempt >= maxAttempts || readsStdin(d.message)){
+            givenUp.addAndGet(retry.size());
+            d.future.complete(d);
+            return;
+        }
+        
+        Retry next = new Retry(d, retry.toArray(new String[0]), r.attempt + 1, System.nanoTime() + backoff(r.attempt) * 1_000_000);
+        
+        lock.lock();
+        
+        try{
+            if(!closed){
+                queue.add(next);
+                deferrals.incrementAndGet();
+                
+                if(queue.peek() == next)
+                    changed.signal();
+                
+                return;
+            }
+        }
+        finally{
+            lock.unlock();
+        }
+        
+        d.future.completeExceptionally(new IllegalStateException("Scheduler closed"));
+    }
+    
+    //Dispatcher loop: waits until the soonest retry is due, then sends it
+    /**@hidden*/
+    private void dispatch(){
+        for(;;){
+            Retry r;
+            
+            lock.lock();
+            
+            try{
+                for(;;){
+                    if(closed)
+                        return;
+                    
+                    r = queue.peek();
+                    
+                    if(r == null)
+                        changed.awaitUninterruptibly();
+                    else if(r.due - System.nanoTime() > 0)
+                        changed.awaitNanos(r.due - System.nanoTime());
+                    else
+                        break;
+                }
+                
+                queue.poll();
+            }
+            catch(InterruptedException e){
+                continue;   //Only close() stops the dispatcher
+            }
+            finally{
+                lock.unlock();
+            }
+            
+            attempt(r);
+        }
+    }
+    
+    //Delay (ms) after the given attempt: exponential, with equal jitter
+    /**@hidden*/
+    private long backoff(int attempt){
+        long delay = Math.min(maxDelay, initialDelay << Math.min(attempt - 1, 30));
+        
+        if(delay < 0)   //Overflow
+            delay = maxDelay;
+        
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+    
+    //The code deciding a recipient's outcome: its RCPT reply, unless the transaction failed otherwise
+    /**@hidden*/
+    private static int code(SendResult result, String rcpt){
+        int code = result.getRecipientCode(rcpt);
+        
+        if(code / 100 == 2 && !result.isSuccess())  //Accepted, but the message was not (DATA or final .)
+            return result.getReplyCode();
+        
+        if(code < 0)                                //Not attempted: MAIL failed
+            return result.getReplyCode();
+        
+        return code;
+    }
+    
+    //The enhanced status code of the reply code() took the code from
+    /**@hidden*/
+    private static String status(SendResult result, String rcpt){
+        int code = result.getRecipientCode(rcpt);
+        
+        if(code < 0 || (code / 100 == 2 && !result.isSuccess()))
+            return result.getEnhancedStatus();
+        
+        return result.getRecipientStatus(rcpt);
+    }
+    
+    /**@hidden*/
+    private static boolean isTransient(int code){
+        return code / 100 == 4;
+    }
+    
+    //If an attempt that threw may succeed if tried again: an I/O error, or a 4xx reply (e.g. 421 on connecting)
+    /**@hidden*/
+    private static boolean isTransient(Throwable t){
+        if(t instanceof IOException)
+            return true;
+        
+        return t instanceof SMTPReplyException && isTransient(((SMTPReplyException)t).getReplyCode());
+    }
+    
+    //If the message data includes standard input, which cannot be read again
+    /**@hidden*/
+    private static boolean readsStdin(MailMessage msg){
+        return msg.getFiles().contains("-");
+    }
+    
+    /**
+     * Outcome of sending a message with retries.
+     */
+    public static class Delivery{
+        /**@hidden*/
+        private final MailMessage message;
+        /**Last reply code for each recipient, in order*/
+        private final Map<String, Integer> codes;
+        /**Enhanced status code of the last reply for each recipient, if any*/
+        private final Map<String, String> statuses;
+        /**@hidden*/
+        private final CompletableFuture<Delivery> future;
+        /**Transactions attempted*/
+        private int attempts;
+        /**Outcome of the last attempt, {@code null} if it threw*/
+        private SendResult last;
+        /**What the last attempt threw, {@code null} if it did not*/
+        private Throwable cause;
+        
+        /**@hidden*/
+        private Delivery(MailMessage message){
+            this.message = message;
+            this.future = new CompletableFuture<>();
+            this.attempts = 0;
+            this.last = null;
+            this.cause = null;
+            
+            codes = new LinkedHashMap<>();
+            statuses = new HashMap<>();
+            
+            for(String r : message.getRecipients())
+                codes.put(r, -1);
+        }
+        
+        /**
+         * Returns the message sent.
+         *
+         * @return The message
+         */
+        public MailMessage getMessage(){
+            return message;
+        }
+        
+        /**
+         * Returns if the message was delivered to every recipient.
+         *
+         * @return {@code true} if every recipient was accepted
+         */
+        public synchronized boolean isSuccess(){
+            for(int code : codes.values())
+                if(code / 100 != 2)
+                    return false;
+            
+            return true;
+        }
+        
+        /**
+         * Returns the recipients the message was delivered to.
+         *
+         * @return Accepted recipients, in order
+         */
+        public synchronized List<String> getDelivered(){
+            return filter(true);
+        }
+        
+        /**
+         * Returns the recipients the message was not delivered to: rejected permanently, or given up on.
+         *
+         * @return Failed recipients, in order
+         */
+        public synchronized List<String> getFailed(){
+            return filter(false);
+        }
+        
+        /**
+         * Returns the last reply code deciding a recipient's outcome.
+         *
+         * @param recipient Recipient address
+         * @return Reply code, or {@code -1} if the last attempt failed without a reply
+         */
+        public synchronized int getRecipientCode(String recipient){
+            return codes.getOrDefault(recipient, -1);
+        }
+        
+        /**
+         * Returns the enhanced status code (RFC 3463) of the last reply deciding a recipient's outcome.
+         *
+         * @param recipient Recipient address
+         * @return The status code (e.g. {@code 4.2.2}), or {@code null} if the reply had none
+         */
+        public synchronized String getRecipientStatus(String recipient){
+            return statuses.get(recipient);
+        }
+        
+        /**
+         * Returns the number of transactions attempted.
+         *
+         * @return Number of attempts
+         */
+        public synchronized int getAttempts(){
+            return attempts;
+        }
+        
+        /**
+         * Returns the outcome of the last transaction.
+         *
+         * @return The last result, or {@code null} if the last attempt threw
+         */
+        public synchronized SendResult getLastResult(){
+            return last;
+        }
+        
+        /**
+         * Returns the error the last transaction failed with, e.g. why a message failed without a retry.
+         *
+         * @return The error, or {@code null} if the last attempt did not throw
+         */
+        public synchronized Throwable getCause(){
+            return cause;
+        }
+        
+        /**@hidden*/
+        private synchronized void attempted(SendResult result, Throwable t){
+            attempts++;
+            last = result;
+            cause = t;
+        }
+        
+        /**@hidden*/
+        private synchronized void setCode(String recipient, int code, String status){
+            codes.put(recipient, code);
+            statuses.put(recipient, status);
+        }
+        
+        /**@hidden*/
+        private List<String> filter(boolean delivered){
+            List<String> ret = new ArrayList<>();
+            
+            for(Map.Entry<String, Integer> e : codes.entrySet())
+                if((e.getValue() / 100 == 2) == delivered)
+                    ret.add(e.getKey());
+            
+            return ret;
+        }
+    }
+    
+    /**
+     * A message waiting to be sent again.
+     */
+    private class Retry implements Comparable<Retry>{
+        /**@hidden*/
+        private final Delivery delivery;
+        /**Recipients to send to*/
+        private final String[] recipients;
+        /**Number of this attempt, from 1*/
+        private final int attempt;
+        /**When due ({@link System#nanoTime()})*/
+        private final long due;
+        /**Tie-breaker: order deferred*/
+        private final long seq;
+        
+        /**@hidden*/
+        private Retry(Delivery delivery, String[] recipients, int attempt, long due){
+            this.delivery = delivery;
+            this.recipients = recipients;
+            this.attempt = attempt;
+            this.due = due;
+            this.seq = sequence.getAndIncrement();
+        }
+        
+        @Override
+        public int compareTo(Retry o){
+            int c = Long.compare(due - o.due, 0);     //nanoTime may wrap; compare differences
+            
+            return (c != 0) ? c : Long.compare(seq, o.seq);
+        }
+    }
+}
\ No newline at end of file
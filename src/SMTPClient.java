@@ -15,10 +15,6 @@ import java.net.*;
 import java.nio.*;
 import java.nio.charset.*;
 import java.util.*;
-import java.util.regex.*;
-
-import javax.net.SocketFactory;
-import javax.net.ssl.*;
 
 import javax.swing.JOptionPane;
 import javax.swing.JLabel;
@@ -35,22 +31,16 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
     /*      Basic constants     */
     /**SMTP uses Carriage return-line feed.*/
     private static final String CRLF = "\r\n";
-    /**URL for GMail SMTP server*/
+    /**URL for GMail SMTP server, the default server*/
     private static final String SMTP_SERVER_URL = "smtp.gmail.com";
-    /**GMail SMTP port number*/
-    private static final int SMTP_SERVER_PORT = 465;
     
     /*      I/O variables       */
-    /**Connection to SMTP server*/
-    private static Socket socket;
-    /**Output stream to the server*/
-    private static PrintWriter out;
+    /**Session with the SMTP server*/
+    private static SMTPSession session;
     /**Standard output*/
     private static PrintStream stdOut;
     /**Standard error*/
     private static PrintStream stdErr;
-    /**Input stream from the server*/
-    private static BufferedReader in;
     /**Standard input*/
     private static BufferedReader stdIn;
     
@@ -65,6 +55,16 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
     private static char[] pass;         //-pass=password
     /**Input file paths to file client*/
     private static List<String> files;
+    /**Batch manifest or spool directory for file client*/
+    private static String batch;        //-batch=path
+    /**Spool directory messages are queued in before sending*/
+    private static String spoolDir;     //-spool=path
+    /**Size of BDAT chunks, 0 to always use DATA*/
+    private static int chunkSize;       //-chunk=size
+    /**SMTP servers to connect to*/
+    private static EndpointBalancer servers;    //-server=host[:port][/weight](,host[:port][/weight])*
+    /**Whether and how the connection is encrypted*/
+    private static TLSPolicy tlsPolicy;         //-tls=implicit|required|opportunistic|none
     /**Authenication method to be used*/
     private static String authMethod;
     /**Valid authenication methods (both implemented and accepted)*/
@@ -92,10 +92,6 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
     /**Default client: RAW*/
     private static final int TYPE_DEFAULT = TYPE_RAW_SMTP;
     
-    /**@hidden*/
-    //Used for pretty-printing IPv6 addresses
-    private static final Pattern COLON = Pattern.compile(":");
-    
     /**Currently implemented authenication methods*/
     private static final String[] AUTH_METHODS = {
         "PLAIN",
@@ -114,15 +110,18 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
         pipe = false;
         type = TYPE_DEFAULT;
         
-        socket = null;
-        out = null;
-        in = null;
+        session = null;
         
         uName = null;
         recipients = null;
         authData = null;
         pass = null;
         files = null;
+        batch = null;
+        spoolDir = null;
+        chunkSize = SMTPSession.DEFAULT_CHUNK_SIZE;
+        servers = null;
+        tlsPolicy = TLSPolicy.IMPLICIT;
         
         authMethod = null;
         validAuthMethods = null;
@@ -132,181 +131,176 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
         //A shutdown hook to make sure the socket is closed when the program exits
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             try{
-                if(in != null)
-                    in.close();
-                
-                if(out != null)
-                    out.close();
-                
-                if(socket != null && !socket.isClosed())
-                    socket.close();
+                if(session != null)
+                    session.close();
             }
             catch(IOException e){}
         }, "Shutdown-Cleanup"));
     }
     
     /**@hidden*/
+    //The only place the program exits: failures are thrown up to here & turned into exit codes
     public static void main(String[] args) throws Exception{
-        splitCommandLine(args);
-        
-        switch(type){
-            case TYPE_CLI:
-                cliClient();
-                break;
-            case TYPE_GUI:
-                guiClient();
-                break;
-            case TYPE_RAW_SMTP:
-                rawClient();
-                break;
-            case TYPE_FILE:
-                fileClient();
-                break;
-        }
-    }
-    
-    //Tries to create a TCP socket to url:port with SSL
-    /**
-     * Opens TCP socket to a given server.
-     * <p>
-     * Opens a TCP socket with SSL to {@code url:port}. First attempts to resolve the server hostname into 
-     * IP addresses, then tries to open the connection with each. If no IP addresses can be resolved or all 
-     * resolved IP addresses fail to connect, the program will exit.
-     * 
-     * @param url Server domain name
-     * @param port Port number to connect on
-     * @return {@link Socket} object to the remote server
-     */
-    private static Socket openConnection(String url, int port){
-        InetAddress[] addresses = new InetAddress[0];
-        Socket sock = null;
+        int code = ERR_OK;
         
-        if(verbose)
-            stdOut.print("Resolving hostname " + url + "...");
-        
-		//Try to resolve hostname
         try{
-            addresses = InetAddress.getAllByName(url);
+            splitCommandLine(args);
+            
+            switch(type){
+                case TYPE_CLI:
+                    cliClient();
+                    break;
+                case TYPE_GUI:
+                    guiClient();
+                    break;
+                case TYPE_RAW_SMTP:
+                    rawClient();
+                    break;
+                case TYPE_FILE:
+                    if(batch != null)
+                        batchClient();
+                    else
+                        fileClient();
+                    break;
+            }
+        }
+        catch(Exit e){
+            code = e.code;
+        }
+        catch(AuthException e){
+            stdErr.println(e.getMessage());
+            code = exitCode(e.getReason());
+        }
+        catch(TLSUnavailableException e){
+            stdErr.println(e.getMessage());
+            code = ERR_TLS_UNAVAILABLE;
+        }
+        catch(SMTPReplyException e){
+            stdErr.println(e.getMessage());
+            code = e.getReplyCode();
         }
         catch(UnknownHostException e){
-            stdErr.println("\nCannot resolve hostname: " + url);
-            System.exit(ERR_NO_HOST);
+            stdErr.println(e.getMessage());
+            code = ERR_NO_HOST;
         }
-        
-        if(verbose){
-            stdOut.println("done\n");
-            
-            stdOut.println("Resolved addresses:");
-            
-            for(InetAddress addr : addresses)
-                stdOut.println("  " + inetAddressToHostString(addr));
-            
-            stdOut.println();
+        catch(ConnectException e){
+            stdErr.println(e.getMessage());
+            code = ERR_CONNECTION_FAILED;
         }
-        
-        SocketFactory factory = SSLSocketFactory.getDefault();
-        
-		//Loop through the resolved addresses and try to connect on the given port
-		//Return on first success
-        for(InetAddress addr : addresses){
-            String addrString = inetAddressToHostString(addr);
+        catch(IOException | InvalidResponseException e){
+            stdErr.println("An IO error occurred - " + e.getMessage());
             
             if(verbose)
-                stdOut.print("Connecting to " + addrString + ":" + port + "...");
+                e.printStackTrace(stdErr);
             
-            try{
-                sock = factory.createSocket(addr, port);
-                sock.setKeepAlive(true);
-                
-                logVerbose("done\n");
-                
-                in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-                out = new PrintWriter(sock.getOutputStream(), true);
-                
-                return sock;
-            }
-            catch(IOException e){
-                logVerbose("failed");
-                
-                sock = null;
-            }
+            code = ERR_IO_ERROR;
         }
         
-        stdErr.println("Failed to connect!");
-        System.exit(ERR_CONNECTION_FAILED);
-        
-        return null;
+        System.exit(code);
     }
     
-    //Formats printing of IP addresses
+    //Exit code for an authentication failure
     /**@hidden*/
-    private static String inetAddressToHostString(InetAddress addr){
-        return (addr instanceof Inet4Address) ? addr.getHostAddress() : "[" + shortenInet6Addr(addr.getHostAddress()) + "]";
+    private static int exitCode(AuthException.Reason reason){
+        switch(reason){
+            case NO_METHOD:
+                return ERR_NO_VALID_AUTHS;
+            case INFO_NOT_FOUND:
+                return ERR_AUTH_INFO_NOT_FOUND;
+            case INFO_INCOMPLETE:
+                return ERR_AUTH_INFO_INCOMPLETE;
+            case TOKEN_FAILED:
+                return ERR_AUTH_SUBPROC_FAILED;
+            default:
+                return ERR_AUTH_FAILED;
+        }
     }
     
-    //Shortens in IPv6 address into a more readable format
-    /**@hidden*/
-    private static String shortenInet6Addr(String ip){
-        if(ip == null)
-            return ip;
-        
-        String[] hextets = COLON.split(ip);
-        
-        if(hextets.length != 8)
-            return ip;
-        
-        int curStart = -1, maxStart = -1, curLength = 0, maxLength = 0;
-        
-        for(int i = 0; i < hextets.length; i++){
-            String h = hextets[i];
+    //Tries to open a session to url:port
+    /**
+     * Opens an SMTP session to one of the configured servers.
+     * <p>
+     * Picks a server from {@link #servers}, connects to it and reads its greeting. A server that cannot be reached or
+     * replies {@code 421} is ejected and the next one is tried.
+     * 
+     * @return {@link SMTPSession} object to the remote server
+     * @throws UnknownHostException If no server's hostname could be resolved
+     * @throws ConnectException If no server could be connected to
+     * @throws SMTPReplyException If the server is not ready
+     */
+    private static SMTPSession openConnection() throws IOException{
+        Set<Endpoint> tried = new HashSet<>();
+        int count = servers.getEndpoints().size();
+        boolean resolved = false;   //Some server's hostname could be resolved
+        
+        while(tried.size() < count){
+            Endpoint ep = servers.acquire(tried);
+            SMTPSession sess = new SMTPSession(ep.getHost(), ep.getPort());
             
-            if(h.equals("0")){
-                if(curStart == -1)
-                    curStart = i;
-                else
-                    curLength++;
+            tried.add(ep);
+            sess.setTLSPolicy(tlsPolicy);
+            
+            if(verbose)
+                sess.setLog(stdOut, type != TYPE_RAW_SMTP);     //The raw client prints the trace itself
+            
+            if(chunkSize > 0)
+                sess.setTransferMode(TransferMode.BDAT, chunkSize);
+            
+            Response resp;
+            
+            try{
+                resp = sess.open();
             }
-            else if(curStart != -1){
-                if(curLength > maxLength){
-                    maxLength = curLength;
-                    maxStart = curStart;
-                }
-                
-                curStart = -1;
-                curLength = 0;
+            catch(UnknownHostException e){
+                stdErr.println("\nCannot resolve hostname: " + ep.getHost());
+                servers.reportFailure(ep);
+                continue;
             }
-        }
-        
-        if(curLength > maxLength){
-            maxLength = curLength;
-            maxStart = curStart;
-        }
-        
-        if(maxLength == 0)
-            maxStart = -1;
-        
-        StringBuilder sb = new StringBuilder(39);
-        
-        for(int i = 0; i < hextets.length; i++){
-            if(i == maxStart){
-                int l = sb.length();
+            catch(IOException e){
+                stdErr.println("Failed to connect to " + ep.getHost() + ":" + ep.getPort());
+                servers.reportFailure(ep);
+                resolved = true;
+                continue;
+            }
+            finally{
+                servers.release(ep);    //Only one session at a time here: balance on availability alone
+            }
+            
+            resolved = true;
+            
+            if(type == TYPE_RAW_SMTP)
+                resp.print();
+            
+            if(resp.getResponseCode() == SMTP_UNAVAILABLE_CONNECTION_PROBLEM){
+                stdErr.println("SMTP server unavailable - " + ep.getHost() + ":" + ep.getPort());
+                servers.reportFailure(ep);
                 
-                if(l > 0)
-                    if(sb.charAt(l - 1) == ':')
-                        sb.deleteCharAt(l - 1);
+                try{
+                    sess.close();
+                }
+                catch(IOException e){}
                 
-                sb.append("::");
-                i += maxLength;
+                continue;
             }
-            else{
-                sb.append(hextets[i]);
+            
+            if(resp.getResponseCode() != SMTP_READY){
+                try{
+                    sess.close();
+                }
+                catch(IOException e){}
                 
-                if(i < hextets.length - 1)
-                    sb.append(':');
+                throw new SMTPReplyException("SMTP server not ready - " + resp.getResponseCode(), resp.getResponseCode());
             }
+            
+            servers.reportSuccess(ep);
+            
+            return sess;
         }
         
-        return sb.toString();
+        if(resolved)
+            throw new ConnectException("Failed to connect!");
+        
+        throw new UnknownHostException("Failed to connect!");
     }
     
     /**
@@ -314,7 +308,7 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
      * <p>
      * Stores in {@link #authData}.
      */
-    private static void getXOAuth2Data(){
+    private static void getXOAuth2Data() throws IOException{
         Auth auth = new XOAuth2Auth(useLocalAuth);
         
         if(uName == null)
@@ -329,60 +323,26 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
      * <p>
      * Stores in {@link #authData}.
      */
-    private static void buildPlainAuthData(){
+    private static void buildPlainAuthData() throws IOException{
         if(uName == null)
             getUser();
         
         if(pass == null)
             getPass();
         
-        int bufSize = 2;
-        
-        byte[] uBytes, pBytes;
-        
-        uBytes = uName.getBytes();
-        
-        //AVOID using String objects...
-        CharBuffer cbuf = CharBuffer.wrap(pass);
-        ByteBuffer  buf = Charset.defaultCharset().encode(cbuf);
-        
-        pBytes = Arrays.copyOfRange(buf.array(), buf.position(), buf.limit());
-        
-        Arrays.fill(cbuf.array(), '\0');
-        Arrays.fill(buf.array(), (byte)0);
+        PlainAuth auth = new PlainAuth(pass);
         
-        cbuf = null;
-        buf = null;
+        Arrays.fill(pass, '\0');
         
-        bufSize += (uBytes.length + pBytes.length);
-        
-        byte[] auth = new byte[bufSize];
-        
-        int pos = 0;
-        
-        auth[pos++] = 0;
-        
-        for(byte b : uBytes)
-            auth[pos++] = b;
-        
-        auth[pos++] = 0;
-        
-        for(byte b : pBytes)
-            auth[pos++] = b;
-        
-        Arrays.fill(pBytes, (byte)0);
-        
-        pBytes = new byte[0];
-        
-        authData = Base64.getEncoder().encode(auth);
+        authData = auth.buildAuthString(uName);
         
-        Arrays.fill(auth, (byte)0);
+        auth.clear();
     }
     
     /**
      * Builds the authenication method argument for the selected method.
      */
-    private static void buildAuthData(){
+    private static void buildAuthData() throws IOException{
         switch(authMethod){
             case "PLAIN":
                 buildPlainAuthData();
@@ -396,42 +356,22 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
     //Actually submit the authentication and return the response.
     /**
      * Submits the authenication command and handles the results
-     * <p>
-     * Program will exit upon I/O error or response code of type {@code 5xx} (Permanent Negative Completion)
      * 
      * @return A {@link Response} object containing the server's reply to the command.
+     * @throws AuthException On a response code of type {@code 5xx} (Permanent Negative Completion)
      */
-    private static Response submitAuthentication(){
+    private static Response submitAuthentication() throws IOException{
         Response resp;
         
         try{
-            out.printf("AUTH %s ", authMethod);
-            out.flush();
-            
-            OutputStream os = socket.getOutputStream();
-            os.write(authData);
-            os.flush();
-            
-            out.println();
-            
-            resp = Response.getResponse(in);
-            Arrays.fill(authData, (byte)0);
-            authData = new byte[0];
+            resp = session.authenticate(authMethod, uName, authData);
         }
-        catch(IOException e){
-            resp = null;
+        finally{
+            authData = new byte[0];
         }
         
-        if(resp == null){
-            stdErr.println("An IO error occurred!");
-            System.exit(ERR_IO_ERROR);
-        }
-        
-        if(resp.getResponseCodeType() == 5){
-            stdErr.println("Authentication failed!");
-            stdErr.println(resp);
-            System.exit(ERR_AUTH_FAILED);
-        }
+        if(resp.getResponseCodeType() == 5)
+            throw new AuthException("Authentication failed!\n" + resp, resp.getResponseCode());
         
         return resp;
     }
@@ -442,16 +382,15 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
      * <p>
      * Stores in {@link #uName}.
      */
-    private static void getUser(){
+    private static void getUser() throws IOException{
         stdOut.print("Enter gmail address (Ex: username@gmail.com): ");
         
-        try{
-            uName = stdIn.readLine().trim();
-        }
-        catch(IOException e){
-            stdErr.println("An IO error occurred...");
-            System.exit(ERR_IO_ERROR);
-        }
+        String line = stdIn.readLine();
+        
+        if(line == null)
+            throw new EOFException("No gmail address entered");
+        
+        uName = line.trim();
     }
     
     //Prompt for the password (through GUI, if necessary)
@@ -469,7 +408,7 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
                 if(verbose)
                     stdErr.println("(java.awt.GraphicsEnvironment.isHeadless() == true)");
                 
-                System.exit(ERR_NO_GUI);
+                throw new Exit(ERR_NO_GUI);
             }
             
             char[] buf;
@@ -492,8 +431,7 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
                                                    
                 if(ret == 1){
                     stdOut.println("No password provided, cannot authenticate.");
-                    System.exit(ERR_AUTH_FAILED);
-                    return;
+                    throw new Exit(ERR_AUTH_FAILED);
                 }
                 else
                     buf = passField.getPassword();
@@ -508,30 +446,21 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
     /**
      * Determine valid authenication methods.
      * <p>
-     * Parses server response to {@code EHLO} command to determine the server's accepted authenication 
-     * methods. These are intersected with the methods implemented by the program. If there are no valid 
-     * methods, the program exits. If there is only one valid method, it is selected for use automatically. 
+     * The server's accepted authenication methods (from its reply to {@code EHLO}) are intersected with the 
+     * methods implemented by the program. If there is only one valid method, it is selected for use automatically.
      * 
-     * @param r {@link Response} object read from server after {@code EHLO} command is sent.
+     * @param caps {@link Capabilities} parsed from the server's reply to {@code EHLO}.
+     * @throws AuthException If there are no valid methods
      */
-    private static void getValidAuths(Response r){
-        String methods = null;
-        
-        for(String l : r)
-            if(l.contains("AUTH"))
-                methods = l.split("AUTH", 2)[1].trim();
-            
+    private static void getValidAuths(Capabilities caps){
         Set<String> implemented = new HashSet<>(Arrays.asList(AUTH_METHODS));
-        Set<String> accepted = new HashSet<>(Arrays.asList(methods.split(" ")));
         
-        implemented.retainAll(accepted);
+        implemented.retainAll(caps.getAuthMethods());
         
         validAuthMethods = implemented.toArray(new String[implemented.size()]);
         
-        if(validAuthMethods.length == 0){
-            System.err.println("No accepted AUTH methods by this server have been implemented");
-            System.exit(ERR_NO_VALID_AUTHS);
-        }
+        if(validAuthMethods.length == 0)
+            throw new AuthException(AuthException.Reason.NO_METHOD, "No accepted AUTH methods by this server have been implemented", null);
         else if(validAuthMethods.length == 1)
             authMethod = validAuthMethods[0];
     }
@@ -548,7 +477,7 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
             if(verbose)
                 stdErr.println("(java.awt.GraphicsEnvironment.isHeadless() == true)");
             
-            System.exit(ERR_NO_GUI);
+            throw new Exit(ERR_NO_GUI);
         }
         else if(!pipe)
             authMethod = selectOption("AUTH Method", validAuthMethods);
@@ -566,7 +495,7 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
             
             if(choice == JOptionPane.CLOSED_OPTION){
                 System.err.println("No auth method chosen, closing");
-                System.exit(ERR_OK);
+                throw new Exit(ERR_OK);
             }
             
             authMethod = validAuthMethods[choice];
@@ -586,6 +515,12 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
         boolean rcptSet = false;        //-to option has been set
         boolean passSet = false;        //-pass option has been set
         boolean authSet = false;        //-auth option has been set
+        boolean batchSet = false;       //-batch option has been set
+        boolean spoolSet = false;       //-spool option has been set
+        boolean chunkSet = false;       //-chunk option has been set
+        boolean serverSet = false;      //-server option has been set
+        boolean tlsSet = false;         //-tls option has been set
+        String serverList = null;       //-server value, parsed once the default port (from -tls) is known
         
         for(String arg : args){
             String originalArg = arg;   //Save the value of the argument (for error messages)
@@ -602,7 +537,7 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
                 else if(arg.startsWith("from=")){
                     if(userSet){
                         stdErr.println("Repeated argument: " + originalArg);
-                        System.exit(ERR_BAD_COMMAND_LINE);
+                        throw new Exit(ERR_BAD_COMMAND_LINE);
                     }
                     
                     arg = splitKeyValue(arg);
@@ -610,7 +545,7 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
                     if(arg == null){
                         stdErr.println("Invalid argument: " + originalArg);
                         
-                        System.exit(ERR_BAD_COMMAND_LINE);
+                        throw new Exit(ERR_BAD_COMMAND_LINE);
                     }
                     
                     uName = arg;
@@ -619,7 +554,7 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
                 else if(arg.startsWith("to=")){
                     if(rcptSet){
                         stdErr.println("Repeated argument: " + originalArg);
-                        System.exit(ERR_BAD_COMMAND_LINE);
+                        throw new Exit(ERR_BAD_COMMAND_LINE);
                     }
                     
                     arg = splitKeyValue(arg);
@@ -627,7 +562,7 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
                     if(arg == null){
                         stdErr.println("Invalid argument: " + originalArg);
                         
-                        System.exit(ERR_BAD_COMMAND_LINE);
+                        throw new Exit(ERR_BAD_COMMAND_LINE);
                     }
                     
                     recipients = arg.split(";");
@@ -636,7 +571,7 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
                 else if(arg.startsWith("pass=")){
                     if(passSet){
                         stdErr.println("Repeated argument: " + originalArg);
-                        System.exit(ERR_BAD_COMMAND_LINE);
+                        throw new Exit(ERR_BAD_COMMAND_LINE);
                     }
                     
                     arg = splitKeyValue(arg);
@@ -644,7 +579,7 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
                     if(arg == null){
                         stdErr.println("Invalid argument: " + originalArg);
                         
-                        System.exit(ERR_BAD_COMMAND_LINE);
+                        throw new Exit(ERR_BAD_COMMAND_LINE);
                     }
                     
                     pass = arg.toCharArray();
@@ -653,7 +588,7 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
                 else if(arg.equalsIgnoreCase("askpass")){
                     if(passSet){
                         stdErr.println("Repeated argument: " + originalArg);
-                        System.exit(ERR_BAD_COMMAND_LINE);
+                        throw new Exit(ERR_BAD_COMMAND_LINE);
                     }
                     
                     passSet = true;
@@ -661,7 +596,7 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
                 else if(arg.startsWith("auth=")){
                     if(authSet){
                         stdErr.println("Repeated argument: " + originalArg);
-                        System.exit(ERR_BAD_COMMAND_LINE);
+                        throw new Exit(ERR_BAD_COMMAND_LINE);
                     }
                     
                     arg = splitKeyValue(arg);
@@ -669,7 +604,7 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
                     if(arg == null){
                         stdErr.println("Invalid argument: " + originalArg);
                         
-                        System.exit(ERR_BAD_COMMAND_LINE);
+                        throw new Exit(ERR_BAD_COMMAND_LINE);
                     }
                     
                     String am = arg;
@@ -685,12 +620,108 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
                     if(!valid){
                         stdErr.println("Invalid auth method: " + am);
                         
-                        System.exit(ERR_BAD_COMMAND_LINE);
+                        throw new Exit(ERR_BAD_COMMAND_LINE);
                     }
                     
                     authMethod = am;
                     authSet = true;
                 }
+                else if(arg.startsWith("batch=")){
+                    if(batchSet){
+                        stdErr.println("Repeated argument: " + originalArg);
+                        throw new Exit(ERR_BAD_COMMAND_LINE);
+                    }
+                    
+                    arg = splitKeyValue(arg);
+                    
+                    if(arg == null){
+                        stdErr.println("Invalid argument: " + originalArg);
+                        
+                        throw new Exit(ERR_BAD_COMMAND_LINE);
+                    }
+                    
+                    batch = arg;
+                    batchSet = true;
+                }
+                else if(arg.startsWith("spool=")){
+                    if(spoolSet){
+                        stdErr.println("Repeated argument: " + originalArg);
+                        throw new Exit(ERR_BAD_COMMAND_LINE);
+                    }
+                    
+                    arg = splitKeyValue(arg);
+                    
+                    if(arg == null || arg.isEmpty()){
+                        stdErr.println("Invalid argument: " + originalArg);
+                        
+                        throw new Exit(ERR_BAD_COMMAND_LINE);
+                    }
+                    
+                    spoolDir = arg;
+                    spoolSet = true;
+                }
+                else if(arg.startsWith("chunk=")){
+                    if(chunkSet){
+                        stdErr.println("Repeated argument: " + originalArg);
+                        throw new Exit(ERR_BAD_COMMAND_LINE);
+                    }
+                    
+                    arg = splitKeyValue(arg);
+                    
+                    try{
+                        chunkSize = Integer.parseInt(arg);
+                    }
+                    catch(NumberFormatException e){
+                        chunkSize = -1;
+                    }
+                    
+                    if(chunkSize < 0){
+                        stdErr.println("Invalid argument: " + originalArg);
+                        
+                        throw new Exit(ERR_BAD_COMMAND_LINE);
+                    }
+                    
+                    chunkSet = true;
+                }
+                else if(arg.startsWith("server=")){
+                    if(serverSet){
+                        stdErr.println("Repeated argument: " + originalArg);
+                        throw new Exit(ERR_BAD_COMMAND_LINE);
+                    }
+                    
+                    arg = splitKeyValue(arg);
+                    
+                    try{
+                        Endpoint.parseList(arg);
+                    }
+                    catch(IllegalArgumentException | NullPointerException e){
+                        stdErr.println("Invalid argument: " + originalArg);
+                        
+                        throw new Exit(ERR_BAD_COMMAND_LINE);
+                    }
+                    
+                    serverList = arg;
+                    serverSet = true;
+                }
+                else if(arg.startsWith("tls=")){
+                    if(tlsSet){
+                        stdErr.println("Repeated argument: " + originalArg);
+                        throw new Exit(ERR_BAD_COMMAND_LINE);
+                    }
+                    
+                    arg = splitKeyValue(arg);
+                    
+                    try{
+                        tlsPolicy = TLSPolicy.valueOf(arg.toUpperCase(Locale.ROOT));
+                    }
+                    catch(IllegalArgumentException | NullPointerException e){
+                        stdErr.println("Invalid argument: " + originalArg);
+                        
+                        throw new Exit(ERR_BAD_COMMAND_LINE);
+                    }
+                    
+                    tlsSet = true;
+                }
                 else if(arg.equalsIgnoreCase("help")){
                     help();
                 }
@@ -700,12 +731,12 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
                     for(String m : AUTH_METHODS)
                         stdOut.println("\t" + m);
                     
-                    System.exit(ERR_OK);
+                    throw new Exit(ERR_OK);
                 }
                 else if(arg.startsWith("type=")){
                     if(typeSet){
                         stdErr.println("Repeated argument: " + originalArg);
-                        System.exit(ERR_BAD_COMMAND_LINE);
+                        throw new Exit(ERR_BAD_COMMAND_LINE);
                     }
                     
                     arg = splitKeyValue(arg);
@@ -713,7 +744,7 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
                     if(arg == null){
                         stdErr.println("Invalid argument: " + originalArg);
                         
-                        System.exit(ERR_BAD_COMMAND_LINE);
+                        throw new Exit(ERR_BAD_COMMAND_LINE);
                     }
                     
                     switch(arg){
@@ -733,7 +764,7 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
                             break;
                         default:
                             stdErr.println("Invalid argument: " + originalArg);
-                            System.exit(ERR_BAD_COMMAND_LINE);
+                            throw new Exit(ERR_BAD_COMMAND_LINE);
                     }
                     
                     typeSet = true;
@@ -741,14 +772,14 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
                 else if(arg.equals("-")){
                     if(!(fileSet && userSet && rcptSet/* && passSet*/)){    //Switching to file list: check type=file and all needed data has been provided
                         stdErr.println("Command line missing required arguments");
-                        System.exit(ERR_BAD_COMMAND_LINE);
+                        throw new Exit(ERR_BAD_COMMAND_LINE);
                     }
                     
                     fileListStart = true;
                 }
                 else{
                     stdErr.println("Nonexistant option: " + originalArg);
-                    System.exit(ERR_INVALID_OPT);
+                    throw new Exit(ERR_INVALID_OPT);
                 }
             }
             else if(fileListStart){
@@ -759,9 +790,34 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
         if(!typeSet)
             help();
         
+        //Servers without a port use the usual port for the TLS policy
+        if(serverSet)
+            servers = new EndpointBalancer(Endpoint.parseList(serverList, tlsPolicy.getDefaultPort()));
+        else
+            servers = new EndpointBalancer(Collections.singletonList(new Endpoint(SMTP_SERVER_URL, tlsPolicy.getDefaultPort(), 1)));
+        
+        if(spoolSet && (batchSet || (type != TYPE_FILE && type != TYPE_GUI))){
+            stdErr.println("-spool requires -type=file or -type=gui, and cannot be used with -batch");
+            throw new Exit(ERR_BAD_COMMAND_LINE);
+        }
+        
+        if(batchSet){   //Batch mode: messages come from the manifest, only the user is needed
+            if(!fileSet || !userSet || fileListStart){
+                stdErr.println("-batch requires -type=file and -from, and no file list");
+                throw new Exit(ERR_BAD_COMMAND_LINE);
+            }
+            
+            if(!new File(batch).exists()){
+                stdErr.printf("File %s does not exist!\n", batch);
+                throw new Exit(404 /*ERR_FILE_NOT_FOUND*/);
+            }
+            
+            return;
+        }
+        
         if(fileSet && files.size() == 0){   //If type=file, there MUST be files...
             stdErr.println("No files specified!");
-            System.exit(ERR_BAD_COMMAND_LINE);
+            throw new Exit(ERR_BAD_COMMAND_LINE);
         }
         
         if(fileSet){
@@ -769,14 +825,14 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
                 if(file.equals("-")){
                     if(pipe){           //stdin cannot be used more than once
                         stdErr.println("stdin specified twice!");
-                        System.exit(ERR_BAD_COMMAND_LINE);
+                        throw new Exit(ERR_BAD_COMMAND_LINE);
                     }
                     else
                         pipe = true;
                 }
                 else if(!new File(file).exists()){  //All files must exist
                     stdErr.printf("File %s does not exist!\n", file);
-                    System.exit(404 /*ERR_FILE_NOT_FOUND*/);
+                    throw new Exit(404 /*ERR_FILE_NOT_FOUND*/);
                 }
             }
         }
@@ -802,7 +858,7 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
         for(String helpLn : HELP_MSG)
             stdOut.println(helpLn);
         
-        System.exit(ERR_OK);
+        throw new Exit(ERR_OK);
     }
     
 	//Convenience method
@@ -868,7 +924,7 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
     /**
      * Runs the raw SMTP interaction client
      */
-    private static void rawClient(){
+    private static void rawClient() throws IOException{
         String inputString;
         
         stdOut.println("Raw SMTP client:");
@@ -880,27 +936,25 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
         autoAUTH = autoEHLO ? yesNo("Automatically generate & submit authentication? ") : false;	//Don't auto sent AUTH if EHLO hasn't been sent & processed
         
 		//Open the connection...
-        socket = openConnection(SMTP_SERVER_URL, SMTP_SERVER_PORT);
-        
-        Response resp = Response.getResponse(in);
-        
-        resp.print();
+        session = openConnection();
         
-        if(resp.getResponseCode() != SMTP_READY){
-            stdErr.println("SMTP server not ready - " + resp.getResponseCode());
-            System.exit(resp.getResponseCode());
-        }
+        Response resp = null;
         
         boolean msgBody = false;
         
         for(;;){	//Main loop
-            if(autoEHLO){		//Send EHLO if user wants
-                inputString = EHLO + "localhost";
-                stdOut.println(inputString);
+            if(autoEHLO){		//Send EHLO if user wants; upgrades with STARTTLS if the policy calls for it
+                stdOut.println(EHLO + "localhost");
+                resp = session.ehlo("localhost");
+                resp.print();
                 autoEHLO = false;
+                if(resp.getResponseCodeType() == 5)
+                    throw new SMTPReplyException("SMTP Error - " + resp.getResponseCode(), resp.getResponseCode());
+                
+                continue;
             }
             else if(autoAUTH){
-                getValidAuths(resp);
+                getValidAuths(Capabilities.parse(resp));
         
                 if(authMethod == null)
                     getAuthMethod();
@@ -910,10 +964,8 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
                 resp = submitAuthentication();
                 resp.print();
                 autoAUTH = false;
-                if(resp.getResponseCodeType() == 5){
-                    stdErr.println("SMTP Error - " + resp.getResponseCode());
-                    System.exit(resp.getResponseCode());
-                }
+                if(resp.getResponseCodeType() == 5)
+                    throw new SMTPReplyException("SMTP Error - " + resp.getResponseCode(), resp.getResponseCode());
 
                 continue;
             }
@@ -921,46 +973,32 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
                 inputString = readLine(stdIn);
             
             
-            if(inputString == null){
-                stdErr.println("IO error!");
-                System.exit(ERR_IO_ERROR);
-            }
+            if(inputString == null)
+                throw new EOFException("IO error!");
             
 			//In the message body, terminate message body (resume waiting for responses) on single '.'
             if(msgBody && inputString.trim().equals("."))
                 msgBody = false;
             
-            out.println(inputString);	//Send what the user types
+            session.sendLine(inputString);	//Send what the user types
             
 			//If we're in the message body, loop instead of waiting for the server to respond
             if(msgBody)
                 continue;   //Since server does not reply between DATA and ., skip getting the response
                             //since it will block forever trying to read from the socket
             
-            resp = Response.getResponse(in);
+            resp = session.readResponse();
             resp.print();
             
-            if(resp.getResponseCodeType() == 5){	//Exit if an error occurs
-                stdErr.println("SMTP Error - " + resp.getResponseCode());
-                System.exit(resp.getResponseCode());
-            }
+            if(resp.getResponseCodeType() == 5)	//Exit if an error occurs
+                throw new SMTPReplyException("SMTP Error - " + resp.getResponseCode(), resp.getResponseCode());
             else if(resp.getResponseCode() == SMTP_CLOSING){	//When we're done
                 if(verbose)
                     stdOut.println("Transaction complete - closing...");
                 
-                try{
-                    in.close();
-                    out.close();
-                    socket.close();
-                }
-                catch(IOException e){
-                    if(verbose){
-                        stdErr.println("An exception occurred when closing streams/socket:");
-                        e.printStackTrace(stdErr);
-                    }
-                }
+                closeSession();
                 
-                System.exit(ERR_OK);
+                return;
             }
             else if(resp.getResponseCode() == SMTP_START_MAIL)	//Start message body when the server is ready
                 msgBody = true;
@@ -971,21 +1009,21 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
     /**@hidden*/
     private static void cliClient(){
         stdOut.println("CLI not implemented yet");
-        System.exit(-1 /*ERR_NOT_IMPLEMENTED*/);
+        throw new Exit(-1 /*ERR_NOT_IMPLEMENTED*/);
     }
     
     //GUI client implementation
     /**
      * Runs the GUI SMTP client
      */
-    private static void guiClient(){
+    private static void guiClient() throws IOException{
         if(headless()){     //MUST be able to use GUIs in the first place...
             stdErr.println("Current environment does not support GUI!");
             
             if(verbose)
                 stdErr.println("(java.awt.GraphicsEnvironment.isHeadless() == true)");
             
-            System.exit(ERR_NO_GUI);
+            throw new Exit(ERR_NO_GUI);
         }
         
         //Container class for message data
@@ -1001,7 +1039,7 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
         
         if(!data.isDone()){
             stdOut.println("Form incomplete. Mail not sent.");
-            System.exit(ERR_OK);
+            throw new Exit(ERR_OK);
         }
         
         List<String> message = data.messageLines;
@@ -1015,281 +1053,311 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
         
         subject = (subject != null) ? subject : "";
         
-		//Open the connection...
-        socket = openConnection(SMTP_SERVER_URL, SMTP_SERVER_PORT);
-        Response resp = Response.getResponse(in);
-        
-        if(resp.getResponseCode() != SMTP_READY){	//...if we're ready...
-            stdErr.println("SMTP server not ready - " + resp.getResponseCode());
-            System.exit(resp.getResponseCode());
-        }
+		//Header (subject line), blank line, then the message body
+        List<String> lines = new ArrayList<>();
         
-		//Send & process EHLO
-        logVerbose(EHLO + "localhost");
-        out.println(EHLO + "localhost");
+        lines.add("Subject:" + subject);
+        lines.add("");
+        lines.addAll(message);
         
-        resp = Response.getResponse(in);
-        logVerbose(resp);
+        MailMessage msg = new MailMessage(uName, recipients, lines, null);
         
-        if(resp.getResponseCode() != SMTP_OK){
-            stdErr.println("SMTP Error - " + resp.getResponseCode());
-            System.exit(resp.getResponseCode());
+        if(spoolDir != null){
+            spoolClient(msg);
+            return;
         }
         
-        getValidAuths(resp);
+        login();
         
-        if(authMethod == null)
-            getAuthMethod();
+        finish(session.send(msg));
+    }
+    
+    //File client
+    /**
+     * Runs the SMTP file based input client
+     */
+    private static void fileClient() throws IOException{
+        MailMessage msg = new MailMessage(uName, recipients, null, files);
         
-		//Authenication
-        buildAuthData();
-        logVerbose(String.format("AUTH %s ****", authMethod));
-        resp = submitAuthentication();
-        logVerbose(resp);
-        
-        logVerbose(String.format(MAIL, uName));
-        out.println(String.format(MAIL, uName));
-        resp = Response.getResponse(in);
-        logVerbose(resp);
-        
-        if(resp.getResponseCode() != SMTP_OK){
-            stdErr.println("SMTP Error - " + resp.getResponseCode());
-            System.exit(resp.getResponseCode());
+        if(spoolDir != null){
+            spoolClient(msg);
+            return;
         }
         
-        //Check the recipients
-        boolean atLeastOne = false;
+        login();
         
-        for(String recipient : recipients){
-            logVerbose(String.format(RCPT, recipient));
-            out.println(String.format(RCPT, recipient));
-            resp = Response.getResponse(in);
-            logVerbose(resp);
-            
-            if(resp.getResponseCodeType() != 2){
-                if(resp.getResponseCodeType() == 5){
-                    stdErr.println("SMTP Error - " + resp.getResponseCode());
-                    System.exit(resp.getResponseCode());
-                }
-                else
-                    stdErr.println("Cannot sent to " + recipient + " skipping...");
-            }
-            else
-                atLeastOne = true;
-        }
+        finish(session.send(msg));
+    }
+    
+    //Spooled send
+    /**
+     * Queues a message in the spool given by {@code -spool}, then sends everything pending in the spool.
+     * <p>
+     * The message is on disk before the server is contacted. If the session cannot be established, or the server fails
+     * a message temporarily, the messages not yet sent stay in the spool and are sent on the next run. Recipients the
+     * server fails temporarily ({@code 4xx}) are spooled again on their own, to be sent on the next run; those it
+     * rejects permanently are dropped. If the server closes the connection ({@code 421}) or it is lost, the run ends
+     * there, leaving the rest in the spool.
+     */
+    private static void spoolClient(MailMessage msg) throws IOException{
+        int remaining;
         
-        if(!atLeastOne){
-            stdOut.println("No valid recipient addresses given, quitting...");
+        try(Spool spool = new Spool(new File(spoolDir).toPath())){
+            long last = spool.enqueue(msg);
             
-            logVerbose(QUIT);
-            out.println(QUIT);
-            resp = Response.getResponse(in);
-            logVerbose(resp);
-
-            try{
-                in.close();
-                out.close();
-                socket.close();
-            }
-            catch(IOException e){
-                if(verbose){
-                    stdErr.println("An exception occurred when closing streams/socket:");
-                    e.printStackTrace(stdErr);
+            logVerbose(String.format("Message spooled; %d message(s) pending in %s", spool.size(), spoolDir));
+            
+            login();
+            
+            int sent = 0;
+            boolean open = true;    //Until the server closes the connection or it is lost
+            Spool.Entry e;
+            
+            while((e = spool.poll()) != null){
+                if(e.getId() > last){   //Recipients deferred on this run; not again until the next
+                    spool.release(e);
+                    break;
+                }
+                
+                SendResult result;
+                
+                try{
+                    result = session.send(e.getMessage());
+                }
+                catch(IOException ex){
+                    stdErr.println("Connection lost, message left in spool");
+                    spool.release(e);
+                    open = false;
+                    break;
+                }
+                
+                logWriteCounts(result);
+                reportRecipients(result);
+                
+                List<String> deferred = RetryScheduler.getTransientFailures(result);
+                
+                if(deferred.size() == e.getMessage().getRecipients().length){   //Leave it, and the rest, for the next run
+                    stdErr.println("SMTP Error - " + failureCode(result) + ", message left in spool");
+                    spool.release(e);
+                    open = !closedByServer(result);
+                    break;
+                }
+                
+                //Spool the deferred recipients before dropping the original, so none are lost
+                if(!deferred.isEmpty()){
+                    spool.enqueue(e.getMessage().forRecipients(deferred.toArray(new String[0])));
+                    stdErr.println("Temporary failure for " + String.join(";", deferred) + ", left in spool");
                 }
+                
+                if(result.isSuccess())
+                    sent++;
+                else if(deferred.isEmpty())
+                    stdErr.println("SMTP Error - " + failureCode(result) + ", message from " + e.getMessage().getSender() + " dropped");
+                
+                spool.complete(e);
             }
             
-            System.exit(ERR_NO_RECIPIENTS);
-        }
-        
-		//All good! Time to enter the message
-        logVerbose(DATA);
-        out.println(DATA);
-        resp = Response.getResponse(in);
-        logVerbose(resp);
-        
-        if(resp.getResponseCode() != SMTP_START_MAIL){
-            stdErr.println("SMTP Error - " + resp.getResponseCode());
-            System.exit(resp.getResponseCode());
+            if(open)
+                session.quit();
+            
+            remaining = spool.size();
+            
+            logVerbose(String.format("%d message(s) sent, %d left in spool", sent, remaining));
         }
         
-		//Server's ready for the message. Write the header (subject line)
-        String subjectHeader = String.format("Subject:%s" + CRLF, subject);
-        logVerbose(subjectHeader);
-        out.println(subjectHeader);
+        if(remaining > 0)
+            throw new Exit(ERR_BATCH_INCOMPLETE);
+    }
+    
+    //The reply that ended a failed transaction or, if no recipient was accepted (no such reply), the first recipient's
+    /**@hidden*/
+    private static int failureCode(SendResult result){
+        String[] recipients = result.getMessage().getRecipients();
         
-		//Message body
-        for(String line : message){
-            if(line.startsWith("."))
-                line = "." + line;  //Escape leading '.'
-            
-            logVerbose(line);
-            out.println(line);
-        }
+        if(result.getReplyCode() != -1 || recipients.length == 0)
+            return result.getReplyCode();
         
-		//Terminate the message...
-        logVerbose(".");
-        out.println(".");
-        resp = Response.getResponse(in);
-        logVerbose(resp);
+        return result.getRecipientCode(recipients[0]);
+    }
+    
+    //Whether the server closed the connection (421) during the transaction
+    /**@hidden*/
+    private static boolean closedByServer(SendResult result){
+        if(result.getReplyCode() == SMTP_UNAVAILABLE_CONNECTION_PROBLEM)
+            return true;
         
-        if(resp.getResponseCode() != SMTP_OK){
-            stdErr.println("SMTP Error - " + resp.getResponseCode());
-            System.exit(resp.getResponseCode());
+        for(String recipient : result.getMessage().getRecipients()){
+            if(result.getRecipientCode(recipient) == SMTP_UNAVAILABLE_CONNECTION_PROBLEM)
+                return true;
         }
         
-		//...and close the connection
-        logVerbose(QUIT);
-        out.println(QUIT);
-        resp = Response.getResponse(in);
-        logVerbose(resp);
+        return false;
     }
     
-    //File client
+    //Batch file client
     /**
-     * Runs the SMTP file based input client
+     * Runs the SMTP file based input client on a batch of messages.
+     * <p>
+     * All messages listed in the manifest (or spool directory) given by {@code -batch} are sent over a single 
+     * session, one transaction after another. A failed transaction does not stop the rest of the batch.
      */
-    private static void fileClient(){
-		//Open the connection...
-        socket = openConnection(SMTP_SERVER_URL, SMTP_SERVER_PORT);
+    private static void batchClient() throws IOException{
+        List<MailMessage> messages = null;
+        
+        try{
+            messages = MailMessage.readManifest(new File(batch).toPath(), uName);
+        }
+        catch(IllegalArgumentException e){
+            stdErr.println(e.getMessage());
+            throw new Exit(ERR_BAD_COMMAND_LINE);
+        }
         
-        BufferedReader reader;
+        login();
         
-        Response resp = Response.getResponse(in);
+        int sent = 0;
         
-        if(resp.getResponseCode() != SMTP_READY){
-            stdErr.println("SMTP server not ready - " + resp.getResponseCode());
-            System.exit(resp.getResponseCode());
+        for(MailMessage msg : messages){
+            SendResult result = session.send(msg);
+            
+            logWriteCounts(result);
+            reportRecipients(result);
+            
+            if(result.isSuccess())
+                sent++;
+            else if(result.getAccepted().isEmpty())
+                stdErr.println("No valid recipient addresses for message from " + msg.getSender() + ", skipping...");
+            else
+                stdErr.println("SMTP Error - " + result.getReplyCode());
         }
         
-		//Send & process EHLO
-        logVerbose(EHLO + "localhost");
-        out.println(EHLO + "localhost");
+        session.quit();
         
-        resp = Response.getResponse(in);
-        logVerbose(resp);
+        logVerbose(String.format("%d of %d messages sent", sent, messages.size()));
         
-        if(resp.getResponseCode() != SMTP_OK){
-            stdErr.println("SMTP Error - " + resp.getResponseCode());
-            System.exit(resp.getResponseCode());
-        }
+        if(sent != messages.size())
+            throw new Exit(ERR_BATCH_INCOMPLETE);
+    }
+    
+    //Connect, EHLO & AUTH
+    /**
+     * Opens an authenticated session to the SMTP server.
+     * <p>
+     * Stores in {@link #session}.
+     *
+     * @throws IOException If the session cannot be established
+     */
+    private static void login() throws IOException{
+		//Open the connection...
+        session = openConnection();
         
-        getValidAuths(resp);
+		//Send & process EHLO; upgrades with STARTTLS if the TLS policy calls for it
+        Response resp = session.ehlo("localhost");
+        expect(resp, SMTP_OK);
+        
+        getValidAuths(session.getCapabilities());
         
         if(authMethod == null)
             getAuthMethod();
         
 		//Authenication
         buildAuthData();
-        logVerbose(String.format("AUTH %s ****", authMethod));
-        resp = submitAuthentication();
-        logVerbose(resp);
-        
-        logVerbose(String.format(MAIL, uName));
-        out.println(String.format(MAIL, uName));
-        resp = Response.getResponse(in);
-        logVerbose(resp);
-        
-        if(resp.getResponseCode() != SMTP_OK){
-            stdErr.println("SMTP Error - " + resp.getResponseCode());
-            System.exit(resp.getResponseCode());
-        }
-        
-		//Check the recipients
-        boolean atLeastOne = false;
+        submitAuthentication();
+    }
+    
+    //Report the transaction & QUIT
+    /**
+     * Reports the outcome of the (only) transaction and ends the session.
+     * <p>
+     * Program will exit if no recipient is accepted, the message is not accepted, or any recipient was 
+     * permanently rejected.
+     * 
+     * @param result Outcome of the transaction
+     */
+    private static void finish(SendResult result) throws IOException{
+        logWriteCounts(result);
         
-        for(String recipient : recipients){
-            logVerbose(String.format(RCPT, recipient));
-            out.println(String.format(RCPT, recipient));
-            resp = Response.getResponse(in);
-            logVerbose(resp);
-            
-            if(resp.getResponseCodeType() != 2){
-                if(resp.getResponseCodeType() == 5){
-                    stdErr.println("SMTP Error - " + resp.getResponseCode());
-                    System.exit(resp.getResponseCode());
-                }
-                else
-                    stdErr.println("Cannot sent to " + recipient + " skipping...");
-            }
-            else
-                atLeastOne = true;
-        }
+        int rejectedCode = reportRecipients(result);
         
-        if(!atLeastOne){
+        if(result.getAccepted().isEmpty()){
             stdOut.println("No valid recipient addresses given, quitting...");
             
-            logVerbose(QUIT);
-            out.println(QUIT);
-            resp = Response.getResponse(in);
-            logVerbose(resp);
-
-            try{
-                in.close();
-                out.close();
-                socket.close();
-            }
-            catch(IOException e){
-                if(verbose){
-                    stdErr.println("An exception occurred when closing streams/socket:");
-                    e.printStackTrace(stdErr);
-                }
-            }
+            session.quit();
+            closeSession();
             
-            System.exit(ERR_NO_RECIPIENTS);
+            throw new Exit(ERR_NO_RECIPIENTS);
         }
         
-		//All good! Time to enter the message
-        logVerbose(DATA);
-        out.println(DATA);
-        resp = Response.getResponse(in);
-        logVerbose(resp);
+        if(result.getReplyCode() != SMTP_OK)
+            throw new SMTPReplyException("SMTP Error - " + result.getReplyCode(), result.getReplyCode());
         
-        if(resp.getResponseCode() != SMTP_START_MAIL){
-            stdErr.println("SMTP Error - " + resp.getResponseCode());
-            System.exit(resp.getResponseCode());
-        }
+		//...and close the connection
+        session.quit();
         
-		//Server's ready for the message. Write the header (subject line)
-        String line;
+        if(rejectedCode != ERR_OK)
+            throw new Exit(rejectedCode);
+    }
+    
+    //Verbose output of how the message was written to the connection, and where the time went
+    /**@hidden*/
+    private static void logWriteCounts(SendResult result){
+        logVerbose(String.format(Locale.ROOT, "Message written in %d flush(es), %d TLS record(s)", result.getFlushes(), result.getRecords()));
         
-        try{
-            for(String file : files){   //Iterate through the files provided
-                reader = file.equals("-") ? stdIn : new BufferedReader(new FileReader(new File(file))); //Open a Reader for the file or stdin
-                
-                for(;;){    //Read each line, escape it if necessary, and send it
-                    line = reader.readLine();
-                    
-                    if(line == null)
-                        break;
-                    
-                    if(line.startsWith("."))
-                        line = "." + line;
-                    
-                    logVerbose(line);
-                    out.println(line);
-                }
-                
-                reader.close(); //Then close the reader
-            }
-        }
-        catch(IOException e){}
+        if(!verbose)
+            return;
         
-		//Terminate the message...
-        logVerbose(".");
-        out.println(".");
-        resp = Response.getResponse(in);
-        logVerbose(resp);
+        StringBuilder sb = new StringBuilder("Time (ms):");
         
-        if(resp.getResponseCode() != SMTP_OK){
-            stdErr.println("SMTP Error - " + resp.getResponseCode());
-            System.exit(resp.getResponseCode());
+        for(SendResult.Stage stage : SendResult.Stage.values())
+            sb.append(String.format(Locale.ROOT, " %s %.1f,", stage.name().toLowerCase(Locale.ROOT), result.getTime(stage)));
+        
+        sb.append(String.format(Locale.ROOT, " total %.1f", result.getTotalTime()));
+        
+        logVerbose(sb.toString());
+    }
+    
+    //Print rejected recipients
+    /**
+     * Reports the recipients the server rejected.
+     * 
+     * @param result Outcome of the transaction
+     * @return The reply code of the last permanently rejected recipient, or {@link #ERR_OK} if there is none
+     */
+    private static int reportRecipients(SendResult result){
+        int code = ERR_OK;
+        
+        for(String recipient : result.getRejected()){
+            int rc = result.getRecipientCode(recipient);
+            
+            if(rc / 100 == 5){
+                stdErr.println("SMTP Error - " + rc);
+                code = rc;
+            }
+            
+            stdErr.println("Cannot sent to " + recipient + " skipping...");
         }
         
-		//...and close the connection
-        logVerbose(QUIT);
-        out.println(QUIT);
-        resp = Response.getResponse(in);
-        logVerbose(resp);
+        return code;
+    }
+    
+    //Throws with the reply code if it isn't the expected one
+    /**@hidden*/
+    private static void expect(Response resp, int code) throws SMTPReplyException{
+        if(resp.getResponseCode() != code)
+            throw new SMTPReplyException("SMTP Error - " + resp.getResponseCode(), resp.getResponseCode());
+    }
+    
+    //Closes the session, reporting (verbose) any errors
+    /**@hidden*/
+    private static void closeSession(){
+        try{
+            session.close();
+        }
+        catch(IOException e){
+            if(verbose){
+                stdErr.println("An exception occurred when closing streams/socket:");
+                e.printStackTrace(stdErr);
+            }
+        }
     }
     
     /**@hidden*/
@@ -1328,35 +1396,48 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
         
     }
     
+    //Ends the program from anywhere in the client with an exit code; caught in main
+    /**@hidden*/
+    private static class Exit extends RuntimeException{
+        /**@hidden*/
+        private final int code;
+        
+        /**@hidden*/
+        private Exit(int code){
+            super(null, null, false, false);
+            
+            this.code = code;
+        }
+    }
+    
     /**
      * Container for server responses. 
      * <p>
-     * Provides a static method to handle waiting for and reading responses.
+     * Responses are read by {@link ReplyDecoder}. The lines of text are only split out when asked for.
      * 
      *  @author     Riley Kuttruff
      *  @version    1.0
      */
-    private static class Response implements Iterable<String>{
+    static class Response implements Iterable<String>{
         /**@hidden*/
         private int respCode, respType;
+        /**Raw text of the response: lines separated by LF*/
+        private final byte[] respText;
         /**@hidden*/
-        private List<String> respLines;
-        
-        /**@hidden*/
-        private static final Pattern RESP_NONFINAL, RESP_FINAL, SP;
-        
-        static{
-            RESP_NONFINAL = Pattern.compile("[2-5][0-5][0-9]-.*$");
-            RESP_FINAL = Pattern.compile("[2-5][0-5][0-9]( .*)?$");
-            SP = Pattern.compile(" ");
-        }
+        private List<String> respLines;     //Split from respText when first needed
         
         /**
-         * Default constructor.
+         * Constructor.
+         * 
+         * @param code Response code
+         * @param text Lines of the response, separated by line feeds
+         * @see ReplyDecoder#toResponse()
          */
-        private Response(){
-            respCode = respType = -1;
-            respLines = new ArrayList<String>();
+        Response(int code, byte[] text){
+            respCode = code;
+            respType = code / 100;
+            respText = text;
+            respLines = null;
         }
         
         /**
@@ -1386,9 +1467,70 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
          * @see Collections##unmodifiableList(java.util.List)
          */
         public List<String> getResponseLines(){
+            if(respLines == null){
+                List<String> lines = new ArrayList<String>();
+                int start = 0;
+                
+                for(int i = 0; i <= respText.length; i++){
+                    if(i == respText.length || respText[i] == '\n'){
+                        lines.add(new String(respText, start, i - start));
+                        start = i + 1;
+                    }
+                }
+                
+                respLines = lines;
+            }
+            
             return Collections.unmodifiableList(respLines);
         }
         
+        /**
+         * Returns the enhanced status code (RFC 3463) at the start of the response text, e.g. {@code 5.1.1}.
+         * 
+         * @return The enhanced status code, or {@code null} if the response has none
+         */
+        public String getEnhancedStatus(){
+            return parseEnhancedStatus(new String(respText, 0, Math.min(respText.length, 16)));
+        }
+        
+        /**
+         * Reads the enhanced status code (RFC 3463) from the first line of a reply: {@code class.subject.detail}
+         * after the reply code, with a class of 2, 4 or 5, and a subject and detail of 1-3 digits.
+         * 
+         * @param text Reply text, starting with the reply code
+         * @return The enhanced status code, or {@code null} if the reply has none
+         */
+        static String parseEnhancedStatus(String text){
+            if(text == null || text.length() < 9)
+                return null;
+            
+            int i = 4;
+            char c = text.charAt(i++);
+            
+            if(c != '2' && c != '4' && c != '5')
+                return null;
+            
+            for(int part = 0; part < 2; part++){
+                if(i >= text.length() || text.charAt(i++) != '.')
+                    return null;
+                
+                int digits = 0;
+                
+                while(i < text.length() && digits < 3 && text.charAt(i) >= '0' && text.charAt(i) <= '9'){
+                    i++;
+                    digits++;
+                }
+                
+                if(digits == 0)
+                    return null;
+            }
+            
+            if(i < text.length() && !Character.isWhitespace(text.charAt(i)))
+                return null;
+            
+            return text.substring(4, i);
+        }
+        
         /**
          * Print this response to standard output.
          */
@@ -1403,12 +1545,7 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
          */
         @Override
         public String toString(){
-            StringBuilder sb = new StringBuilder();
-            
-            for(String str : respLines)
-                sb.append(str + "\n");
-            
-            return sb.toString().trim();
+            return new String(respText).trim();
         }
         
         /**
@@ -1438,57 +1575,6 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
             };
         }
         
-        /**
-         * Parses server response.
-         * 
-         * @param reader {@link BufferedReader} object around the server's output
-         * @return Parsed Response object
-         */
-        public static Response getResponse(BufferedReader reader){
-            Response resp = new Response();
-            List<String> lines = resp.respLines;
-            String line;
-            
-            try{
-                while(true){
-                    line = reader.readLine();
-                    
-                    if(matches(line, RESP_NONFINAL))
-                        lines.add(line);
-                    else if(matches(line, RESP_FINAL)){
-                        lines.add(line);
-                        resp.respCode = Integer.parseInt(split(SP, line, 2)[0].trim());
-                        resp.respType = resp.respCode / 100;
-                        break;
-                    }
-                    else
-                        throw new InvalidResponseException(line);
-                }
-            }
-            catch(IOException e){
-                stdErr.println("An IO error occurred...");
-                System.exit(ERR_IO_ERROR);
-            }
-            
-            return resp;
-        }
-        
-		//Regex convenience methods
-		
-        /**@hidden*/
-        private static boolean matches(CharSequence seq, Pattern p){
-            return p.matcher(seq).matches();
-        }
-        
-        /**@hidden*/
-        private static String[] split(Pattern p, CharSequence seq){
-            return split(p, seq, 0);
-        }
-        
-        /**@hidden*/
-        private static String[] split(Pattern p, CharSequence seq, int limit){
-            return p.split(seq, limit);
-        }
     }
 
     /**@hidden*/
@@ -1499,6 +1585,10 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
         "  java SMTPClient -type=raw|cli|gui [OPTIONS...]",
         "  java SMTPClient -type=file [-v] [-from=<usr gmail addr>] \\",
         "                  [-to=<rcpt addr>[(;<rcpt addr>)*]] [-pass=<usr passwd>] -- FILE...",
+        "  java SMTPClient -type=file [-v] -from=<usr gmail addr> [-pass=<usr passwd>] \\",
+        "                  -batch=<manifest|directory>",
+        "  java SMTPClient -type=file [-v] [-from=<usr gmail addr>] \\",
+        "                  [-to=<rcpt addr>[(;<rcpt addr>)*]] -spool=<directory> -- FILE...",
         "",
         "Options:",
         "",
@@ -1531,6 +1621,37 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
         "  -auth=<AUTH method>",
         "    Sets the authentication method to use. Consult option -list-auth for valid options.",
         "",
+        "  -batch=<manifest|directory>",
+        "    For -type=file: sends every message listed in a manifest over one connection, instead",
+        "    of a single message from a file list. Each manifest line is",
+        "      <sender> <rcpt>[;<rcpt>...] <file> [<file>...]",
+        "    where sender - means the -from address. If a directory is given, each *.msg file",
+        "    in it is read as a manifest. Requires -from; -to and the file list are not used.",
+        "",
+        "  -spool=<directory>",
+        "    For -type=file and -type=gui: writes the message to a journal in the directory before",
+        "    connecting, then sends it along with any messages left there by earlier runs. Messages",
+        "    not sent (the server cannot be reached, or fails them temporarily) stay in the spool",
+        "    for the next run. Fails (IO error) if another run is using the directory. Cannot be",
+        "    used with -batch.",
+        "",
+        "  -chunk=<size>",
+        "    Sends message text in BDAT chunks of the given size (in bytes) if the server supports",
+        "    CHUNKING, instead of with DATA. 0 always uses DATA. Default is 65536.",
+        "",
+        "  -server=<host>[:<port>][/<weight>][,<host>[:<port>][/<weight>]...]",
+        "    Sets the SMTP server(s) to send through (port defaults to that of -tls, weight to 1).",
+        "    With several, each connection goes to the server with the fewest sessions in progress",
+        "    relative to its weight; servers that fail to connect or reply 421 are skipped for a",
+        "    while. Default is smtp.gmail.com.",
+        "",
+        "  -tls=implicit|required|opportunistic|none",
+        "    Sets how the connection is encrypted. implicit starts TLS on connecting (default port",
+        "    465). The others connect in plaintext (default port 587): required upgrades with",
+        "    STARTTLS or fails, opportunistic upgrades if the server offers STARTTLS, and none",
+        "    never encrypts, for trusted internal links. Default is implicit. With TLS, the",
+        "    server's certificate must be valid for its host name.",
+        "",
         "  -list-auth",
         "    Prints all implemented AUTH methods, then exits.",
         "",
@@ -1552,6 +1673,8 @@ public class SMTPClient implements SMTPConstants, ExitCodes{
         "  10 Authentication info file (.env) does not contain needed fields.",
         "  11 Authentication subprocess failure.",
         "  12 No valid authentication methods.",
+        "  13 One or more messages in a batch or spool were not sent.",
+        "  14 STARTTLS required but not offered by the server.",
         "",
         "  404  File not found. (for type=file)",
         "",
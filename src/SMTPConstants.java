@@ -260,4 +260,12 @@ public interface SMTPConstants{
     static final String NOOP = "NOOP";
     /**Closes the communication channel*/
     static final String QUIT = "QUIT";
+    
+    /*      Service extension commands      */
+    /**RFC 3030: Chunk of message data of the given size*/
+    static final String BDAT = "BDAT %d";
+    /**RFC 3030: Marks the last chunk of message data*/
+    static final String BDAT_LAST = " LAST";
+    /**RFC 3207: Starts TLS on the connection*/
+    static final String STARTTLS = "STARTTLS";
 }
\ No newline at end of file
@@ -0,0 +1,36 @@
+/*Copyright (C) 2022  Riley Kuttruff
+*
+*   This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or
+*   (at your option) any later version.
+*
+*   This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+*   Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+*/
+
+/**
+ * SMTP exception for an unexpected reply from the server.
+ *
+ *  @author     Riley Kuttruff
+ *  @version    1.0
+ */
+public class SMTPReplyException extends SMTPException{
+    /**@hidden*/
+    private final int replyCode;
+    
+    public SMTPReplyException(String msg, int replyCode){
+        super(msg);
+        this.replyCode = replyCode;
+    }
+    
+    /**
+     * Returns the reply code sent by the server.
+     *
+     * @return Server's reply code
+     */
+    public int getReplyCode(){
+        return replyCode;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,1048 @@
+/*Copyright (C) 2022  Riley Kuttruff
+*
+*   This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or
+*   (at your option) any later version.
+*
+*   This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+*   Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+*/
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.*;
+
+import javax.net.ssl.*;
+
+/**
+ * A single conversation with an SMTP server.
+ * <p>
+ * Each session owns its own connection, reader, writer and authentication state, so any number of sessions may be open
+ * at once. A session is opened with {@link #open()}, can carry any number of mail transactions, and is ended with
+ * {@link #quit()} and/or {@link #close()}.
+ * <p>
+ * Sessions are not thread safe; a session should only be driven by one thread at a time.
+ *
+ *  @author     Riley Kuttruff
+ *  @version    1.0
+ */
+public class SMTPSession implements SMTPConstants, Closeable{
+    /**Default size of {@code BDAT} chunks*/
+    public static final int DEFAULT_CHUNK_SIZE = 65536;
+    
+    /**SMTP uses Carriage return-line feed.*/
+    private static final String CRLF = "\r\n";
+    /**Size of the buffer message files are read into*/
+    private static final int READ_BUFFER_SIZE = 65536;
+    /**Most {@code BDAT} chunks sent ahead of their replies when pipelining*/
+    private static final int MAX_CHUNKS_IN_FLIGHT = 8;
+    /**Room kept in front of each {@code BDAT} chunk for the command*/
+    private static final int CHUNK_HEADER_ROOM = 32;
+    
+    /**@hidden*/
+    //Used for pretty-printing IPv6 addresses
+    private static final Pattern COLON = Pattern.compile(":");
+    
+    /*      Server      */
+    /**Server domain name*/
+    private final String host;
+    /**Server port number*/
+    private final int port;
+    /**Opens the connection*/
+    private Connector connector;
+    /**Whether and how the connection is encrypted*/
+    private TLSPolicy tlsPolicy;
+    
+    /*      I/O variables       */
+    /**Connection to SMTP server*/
+    private Socket socket;
+    /**Output stream to the server. Buffered; flushed when a reply is awaited*/
+    private RecordOutputStream out;
+    /**Replies from the server*/
+    private ReplyDecoder in;
+    /**Message text encoder, writing straight to the connection*/
+    private DotStuffingOutputStream body;
+    /**Buffer message files are read into; allocated on first use*/
+    private ByteBuffer readBuffer;
+    /**Writes {@code BDAT} chunks; created on first use*/
+    private ChunkOutputStream chunks;
+    /**Message text encoder for {@code BDAT}, writing to {@link #chunks}*/
+    private DotStuffingOutputStream chunkBody;
+    
+    /*      Transfer        */
+    /**How message text is sent*/
+    private TransferMode transferMode;
+    /**Size of {@code BDAT} chunks*/
+    private int chunkSize;
+    
+    /*      Session data        */
+    /**Extensions from the server's reply to the most recent {@code EHLO} command*/
+    private Capabilities capabilities;
+    /**Authenticated username, {@code null} if not authenticated*/
+    private String uName;
+    /**Authenication method used*/
+    private String authMethod;
+    
+    /*      Timing      */
+    /**Time (ns) spent setting up the session, not yet counted in a transaction's result*/
+    private long connectNanos, tlsNanos, authNanos;
+    
+    /*      Logging     */
+    /**Stream for connection progress & protocol trace. {@code null} for no output*/
+    private PrintStream log;
+    /**Echo commands and replies to {@link #log}*/
+    private boolean trace;
+    
+    /**
+     * Constructor.
+     * <p>
+     * Does not connect; see {@link #open()}.
+     *
+     * @param host Server domain name
+     * @param port Port number to connect on
+     */
+    public SMTPSession(String host, int port){
+        this.host = host;
+        this.port = port;
+        
+        connector = Connector.getDefault();
+        tlsPolicy = TLSPolicy.IMPLICIT;
+        
+        socket = null;
+        out = null;
+        in = null;
+        body = null;
+        readBuffer = null;
+        chunks = null;
+        chunkBody = null;
+        
+        transferMode = TransferMode.DATA;
+        chunkSize = DEFAULT_CHUNK_SIZE;
+        
+        capabilities = Capabilities.NONE;
+        uName = null;
+        authMethod = null;
+        
+        connectNanos = tlsNanos = authNanos = 0;
+        
+        log = null;
+        trace = false;
+    }
+    
+    /**
+     * Sets where connection progress and (optionally) the protocol trace are written.
+     *
+     * @param log Stream to write to, or {@code null} to disable output
+     * @param trace If {@code true}, commands and replies are also written
+     */
+    public void setLog(PrintStream log, boolean trace){
+        this.log = log;
+        this.trace = trace;
+    }
+    
+    /**
+     * Sets the connector used by {@link #open()}.
+     *
+     * @param connector Connector to open the connection with
+     */
+    public void setConnector(Connector connector){
+        this.connector = Objects.requireNonNull(connector);
+    }
+    
+    /**
+     * Sets whether and how the connection is encrypted.
+     * <p>
+     * With {@link TLSPolicy#IMPLICIT} (the default), {@link #open()} starts TLS as soon as it connects. With
+     * {@link TLSPolicy#REQUIRED} or {@link TLSPolicy#OPPORTUNISTIC}, it connects in plaintext and {@link #ehlo} upgrades
+     * the connection with {@code STARTTLS}.
+     *
+     * @param policy TLS policy
+     */
+    public void setTLSPolicy(TLSPolicy policy){
+        this.tlsPolicy = Objects.requireNonNull(policy);
+    }
+    
+    /**
+     * Sets how {@link #send} transfers message text.
+     * <p>
+     * {@link TransferMode#BDAT} is only used with servers that advertise {@code CHUNKING}; {@code DATA} is used
+     * otherwise.
+     *
+     * @param mode Transfer mode
+     * @param chunkSize Size (octets) of each {@code BDAT} chunk
+     */
+    public void setTransferMode(TransferMode mode, int chunkSize){
+        if(chunkSize < 1)
+            throw new IllegalArgumentException("Chunk size must be positive");
+        
+        this.transferMode = Objects.requireNonNull(mode);
+        this.chunkSize = chunkSize;
+    }
+    
+    //Tries to create a TCP socket to host:port with SSL
+    /**
+     * Opens the connection to the server and reads its greeting.
+     * <p>
+     * First resolves the server hostname into IP addresses with the connector's {@link Resolver}, then races connections to them with the
+     * session's {@link Connector}, keeping the first to succeed.
+     *
+     * @return The server's greeting
+     * @throws UnknownHostException If no IP addresses could be resolved for the host
+     * @throws IOException If all resolved IP addresses fail to connect, or the TLS handshake fails
+     */
+    public SMTPClient.Response open() throws IOException{
+        if(isOpen())
+            throw new IllegalStateException("Session already open");
+        
+        InetAddress[] addresses;
+        long start = System.nanoTime(), tls = 0;
+        
+        if(log != null)
+            log.print("Resolving hostname " + host + "...");
+        
+        try{
+            addresses = connector.getResolver().resolve(host);
+        }
+        catch(UnknownHostException e){
+            logLine("failed");
+            throw e;
+        }
+        
+        if(log != null){
+            log.println("done\n");
+            
+            log.println("Resolved addresses:");
+            
+            for(InetAddress addr : addresses)
+                log.println("  " + inetAddressToHostString(addr));
+            
+            log.println();
+        }
+        
+        Socket sock;
+        
+        try{
+            sock = connector.connectPlain(addresses, port, log);
+            
+            if(tlsPolicy == TLSPolicy.IMPLICIT){
+                long t = System.nanoTime();
+                
+                sock = connector.startTLS(sock, host, port, log);
+                tls = System.nanoTime() - t;
+            }
+        }
+        catch(InterruptedIOException e){
+            throw e;
+        }
+        catch(IOException e){
+            ConnectException ce = new ConnectException("Failed to connect to " + host + ":" + port);
+            ce.initCause(e);
+            throw ce;
+        }
+        
+        socket = sock;
+        in = new ReplyDecoder(sock.getInputStream());
+        out = new RecordOutputStream(sock.getOutputStream());
+        body = new DotStuffingOutputStream(out);
+        
+        SMTPClient.Response resp = readResponse();
+        
+        connectNanos += System.nanoTime() - start - tls;
+        tlsNanos += tls;
+        
+        return resp;
+    }
+    
+    /**
+     * Sends {@code EHLO} and records the server's capabilities.
+     * <p>
+     * If the TLS policy calls for it and the connection is not yet encrypted, the connection is then upgraded with
+     * {@code STARTTLS} and {@code EHLO} is sent again (RFC 3207 Section 4.2); the reply to the second {@code EHLO} is
+     * returned.
+     *
+     * @param domain Client domain to identify as
+     * @return The server's reply
+     * @throws IOException If an I/O error occurs communicating with the server, or the TLS handshake fails
+     * @throws TLSUnavailableException If the policy is {@link TLSPolicy#REQUIRED} and the server does not offer
+     * {@code STARTTLS}
+     * @throws SMTPReplyException If the policy is {@link TLSPolicy#REQUIRED} and the server refuses {@code STARTTLS}
+     */
+    public SMTPClient.Response ehlo(String domain) throws IOException{
+        long start = System.nanoTime(), tls = tlsNanos;
+        SMTPClient.Response resp = command(EHLO + domain);
+        
+        capabilities = Capabilities.parse(resp);
+        
+        if(resp.getResponseCode() == SMTP_OK && !isTLS() && (tlsPolicy == TLSPolicy.REQUIRED || tlsPolicy == TLSPolicy.OPPORTUNISTIC)
+           && startTLS()){
+            resp = command(EHLO + domain);
+            
+            capabilities = Capabilities.parse(resp);
+        }
+        
+        connectNanos += System.nanoTime() - start - (tlsNanos - tls);   //STARTTLS counts as TLS
+        
+        return resp;
+    }
+    
+    /**
+     * Returns if the connection is encrypted.
+     *
+     * @return {@code true} if TLS is in use
+     */
+    public boolean isTLS(){
+        return socket instanceof SSLSocket;
+    }
+    
+    //Upgrades the connection with STARTTLS, if offered
+    //Returns false if the session continues in plaintext (opportunistic policy only)
+    /**@hidden*/
+    private boolean startTLS() throws IOException{
+        if(!capabilities.isStartTLS()){
+            if(tlsPolicy == TLSPolicy.REQUIRED)
+                throw new TLSUnavailableException("Server does not offer STARTTLS");
+            
+            logLine("Server does not offer STARTTLS, continuing without TLS\n");
+            
+            return false;
+        }
+        
+        long start = System.nanoTime();
+        SMTPClient.Response resp = command(STARTTLS);
+        
+        if(resp.getResponseCode() != SMTP_READY){
+            if(tlsPolicy == TLSPolicy.REQUIRED)
+                throw new SMTPReplyException("STARTTLS refused - " + resp, resp.getResponseCode());
+            
+            logLine("STARTTLS refused, continuing without TLS\n");
+            
+            return false;
+        }
+        
+        //Anything sent before the handshake is unprotected, and must not be read as if it came after (RFC 3207 Section 5)
+        if(in.buffered() > 0)
+            throw new IOException("Server sent data after the STARTTLS reply");
+        
+        socket = connector.startTLS(socket, host, port, log);
+        in = new ReplyDecoder(socket.getInputStream());
+        out = new RecordOutputStream(socket.getOutputStream());
+        body = new DotStuffingOutputStream(out);
+        
+        //Discard what was learned before TLS (RFC 3207 Section 4.2)
+        capabilities = Capabilities.NONE;
+        
+        tlsNanos += System.nanoTime() - start;
+        
+        return true;
+    }
+    
+    /**
+     * Submits the {@code AUTH} command.
+     * <p>
+     * The authentication data is written to the server as raw bytes, bypassing the output buffer, and cleared
+     * afterward.
+     *
+     * @param method Authentication method
+     * @param user Username being authenticated
+     * @param authData Argument to the AUTH command (Base64 encoded)
+     * @return The server's reply
+     * @throws IOException If an I/O error occurs communicating with the server
+     */
+    public SMTPClient.Response authenticate(String method, String user, byte[] authData) throws IOException{
+        try{
+            return authenticate(method, user, ByteBuffer.wrap(authData));
+        }
+        finally{
+            Arrays.fill(authData, (byte)0);
+        }
+    }
+    
+    /**
+     * Submits the {@code AUTH} command, with authentication data from a buffer (e.g. {@link PlainCredentials}).
+     * <p>
+     * The authentication data is written to the server as raw bytes, bypassing the output buffer. The buffer's contents
+     * and position are left as they are, so it can be reused for later sessions.
+     *
+     * @param method Authentication method
+     * @param user Username being authenticated
+     * @param authData Argument to the AUTH command (Base64 encoded), between position & limit
+     * @return The server's reply
+     * @throws IOException If an I/O error occurs communicating with the server
+     */
+    public SMTPClient.Response authenticate(String method, String user, ByteBuffer authData) throws IOException{
+        long start = System.nanoTime();
+        
+        traceLine(String.format("AUTH %s ****", method));
+        
+        byte[] prefix = String.format("AUTH %s ", method).getBytes();
+        byte[] line = new byte[prefix.length + authData.remaining() + 2];
+        
+        //Socket streams only take arrays: the command is assembled in one, which is cleared as soon as it is written
+        try{
+            System.arraycopy(prefix, 0, line, 0, prefix.length);
+            authData.duplicate().get(line, prefix.length, authData.remaining());
+            line[line.length - 2] = '\r';
+            line[line.length - 1] = '\n';
+            
+            out.writeUnbuffered(line, 0, line.length);  //Whole command in one record
+        }
+        finally{
+            Arrays.fill(line, (byte)0);
+        }
+        
+        SMTPClient.Response resp = readResponse();
+        
+        authNanos += System.nanoTime() - start;
+        
+        if(resp.getResponseCodeType() == 2){
+            uName = user;
+            authMethod = method;
+        }
+        
+        return resp;
+    }
+    
+    /**
+     * Sends {@code MAIL FROM}.
+     *
+     * @param sender Sender address
+     * @return The server's reply
+     * @throws IOException If an I/O error occurs communicating with the server
+     */
+    public SMTPClient.Response mailFrom(String sender) throws IOException{
+        return command(String.format(MAIL, sender));
+    }
+    
+    /**
+     * Sends {@code RCPT TO}.
+     *
+     * @param recipient Recipient address
+     * @return The server's reply
+     * @throws IOException If an I/O error occurs communicating with the server
+     */
+    public SMTPClient.Response rcptTo(String recipient) throws IOException{
+        return command(String.format(RCPT, recipient));
+    }
+    
+    /**
+     * Sends {@code DATA}.
+     *
+     * @return The server's reply
+     * @throws IOException If an I/O error occurs communicating with the server
+     */
+    public SMTPClient.Response data() throws IOException{
+        return command(DATA);
+    }
+    
+    /**
+     * Writes a line of message text, escaping a leading '.'.
+     * <p>
+     * Only valid between a {@code 354} reply to {@code DATA} and {@link #endData()}. The line is buffered, and sent
+     * with the rest of the message text when the reply to {@link #endData()} is awaited.
+     *
+     * @param line Line of message text
+     * @throws IOException If an I/O error occurs communicating with the server
+     */
+    public void writeBodyLine(String line) throws IOException{
+        if(line.startsWith("."))
+            line = "." + line;  //Escape leading '.'
+        
+        queueLine(line);
+    }
+    
+    /**
+     * Terminates the message text.
+     *
+     * @return The server's reply
+     * @throws IOException If an I/O error occurs communicating with the server
+     */
+    public SMTPClient.Response endData() throws IOException{
+        return command(".");
+    }
+    
+    /**
+     * Runs one complete mail transaction.
+     * <p>
+     * Sends the envelope, skipping any recipients the server rejects, then the message data if at least one recipient
+     * was accepted. If the transaction fails before the message data is sent, it is aborted with {@code RSET} so the
+     * session can be used for the next message.
+     * <p>
+     * If the server supports {@code PIPELINING} (RFC 2920), {@code MAIL FROM}, every {@code RCPT TO} and {@code DATA}
+     * are sent together and the replies are matched to the commands in order afterward. If the server advertises a
+     * {@code SIZE} limit (RFC 1870) the message is known to exceed, it is not sent at all.
+     * <p>
+     * The message text is sent with {@code DATA} or, if so set with {@link #setTransferMode} and the server supports
+     * {@code CHUNKING}, with {@code BDAT} (RFC 3030). When pipelining, several {@code BDAT} chunks are sent before
+     * waiting for their replies.
+     * <p>
+     * Output is only flushed to the server when a reply is awaited; the result records how many flushes and TLS
+     * records the transaction took, and the time spent in each stage. The first transaction on the session is also
+     * given the time spent setting the session up.
+     *
+     * @param msg Message to send
+     * @return Outcome of the transaction
+     * @throws IOException If an I/O error occurs communicating with the server or reading the message data
+     */
+    public SendResult send(MailMessage msg) throws IOException{
+        long flushes = out.getFlushes(), records = out.getRecords();
+        
+        SendResult result = transact(msg);
+        result.setWriteCounts(out.getFlushes() - flushes, out.getRecords() - records);
+        
+        result.addTime(SendResult.Stage.CONNECT, connectNanos);
+        result.addTime(SendResult.Stage.TLS, tlsNanos);
+        result.addTime(SendResult.Stage.AUTH, authNanos);
+        connectNanos = tlsNanos = authNanos = 0;
+        
+        return result;
+    }
+    
+    //Runs the transaction for send()
+    /**@hidden*/
+    private SendResult transact(MailMessage msg) throws IOException{
+        SendResult result = new SendResult(msg);
+        String[] recipients = msg.getRecipients();
+        
+        String mail = String.format(MAIL, msg.getSender());
+        long size = msg.getSize();
+        long limit = capabilities.getSizeLimit();
+        
+        if(limit > 0 && size > limit){      //Don't bother sending what the server will refuse
+            result.setReply(SMTP_EXCEEDED_STORAGE_ALLOCATION, "Message size exceeds server limit of " + limit + " octets");
+            
+            return result;
+        }
+        
+        if(limit >= 0 && size >= 0)
+            mail += " SIZE=" + size;
+        
+        boolean pipelining = capabilities.isPipelining();
+        boolean chunking = transferMode == TransferMode.BDAT && capabilities.isChunking();
+        
+        if(pipelining){     //Whole envelope & DATA in one write
+            queueLine(mail);
+            
+            for(String recipient : recipients)
+                queueLine(String.format(RCPT, recipient));
+            
+            if(!chunking)
+                queueLine(DATA);
+        }
+        
+        long start = System.nanoTime();
+        
+        //Replies to MAIL & DATA are only copied out of the decoder on failure; each RCPT reply is kept in the result
+        int code = pipelining ? readCode() : commandCode(mail);
+        boolean mailOk = code == SMTP_OK;
+        
+        if(!mailOk)
+            result.setReply(code, in.getText());
+        
+        //Pipelined replies must be read whether or not MAIL was accepted
+        if(mailOk || pipelining){
+            for(String recipient : recipients){
+                code = pipelining ? readCode() : commandCode(String.format(RCPT, recipient));
+                
+                if(mailOk)
+                    result.addRecipient(recipient, in.toResponse());
+            }
+        }
+        
+        boolean ready = mailOk && !result.getAccepted().isEmpty();
+        
+        if(!chunking && (ready || pipelining)){
+            code = pipelining ? readCode() : commandCode(DATA);
+            
+            if(ready && code != SMTP_START_MAIL){
+                result.setReply(code, in.getText());
+                ready = false;
+            }
+            else if(!ready && code == SMTP_START_MAIL)
+                commandCode(".");   //No one to send to, but the server wants the message anyway (RFC 2920 3.1): send it empty
+        }
+        
+        if(!ready){
+            commandCode(RSET);
+            result.addTime(SendResult.Stage.ENVELOPE, System.nanoTime() - start);
+            
+            return result;
+        }
+        
+        long data = System.nanoTime();
+        
+        result.addTime(SendResult.Stage.ENVELOPE, data - start);
+        
+        if(chunking){
+            writeChunks(msg, pipelining);
+            
+            long end = System.nanoTime();
+            
+            result.addTime(SendResult.Stage.DATA, end - data);
+            
+            SMTPClient.Response resp = chunks.finish();
+            
+            result.setReply(resp.getResponseCode(), resp.toString());
+            
+            if(resp.getResponseCode() != SMTP_OK)   //Server discards the message; leave no transaction open
+                commandCode(RSET);
+            
+            result.addTime(SendResult.Stage.FINAL, System.nanoTime() - end);
+        }
+        else{
+            writeBody(msg, body);
+            
+            long end = System.nanoTime();
+            
+            result.addTime(SendResult.Stage.DATA, end - data);
+            
+            code = commandCode(".");
+            result.setReply(code, in.getText());
+            result.addTime(SendResult.Stage.FINAL, System.nanoTime() - end);
+        }
+        
+        return result;
+    }
+    
+    //Writes the message text in BDAT chunks; the last is sent by chunks.finish()
+    /**@hidden*/
+    private void writeChunks(MailMessage msg, boolean pipelining) throws IOException{
+        if(chunks == null || chunks.chunkSize() != chunkSize){
+            chunks = new ChunkOutputStream(chunkSize);
+            chunkBody = new DotStuffingOutputStream(chunks, DotStuffingOutputStream.DEFAULT_BUFFER_SIZE, false);
+        }
+        
+        chunks.reset(pipelining);
+        
+        writeBody(msg, chunkBody);
+    }
+    
+    //Writes the message text: lines, then raw text, then files
+    //Files are streamed as raw bytes in fixed size blocks, so memory use doesn't grow with the message
+    /**@hidden*/
+    private void writeBody(MailMessage msg, DotStuffingOutputStream body) throws IOException{
+        body.reset();
+        
+        for(String line : msg.getLines())
+            body.write((line + CRLF).getBytes());
+        
+        ByteBuffer text = msg.getText();
+        
+        if(readBuffer == null && (text != null || !msg.getFiles().isEmpty()))
+            readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        
+        if(text != null){
+            while(text.hasRemaining()){
+                int n = Math.min(text.remaining(), readBuffer.capacity());
+                
+                text.get(readBuffer.array(), 0, n);
+                body.write(readBuffer.array(), 0, n);
+            }
+            
+            body.endLine();
+        }
+        
+        for(String file : msg.getFiles()){
+            boolean stdin = file.equals("-");
+            ReadableByteChannel channel = stdin ? Channels.newChannel(System.in) : FileChannel.open(Paths.get(file));
+            
+            try{
+                for(;;){
+                    readBuffer.clear();
+                    
+                    int n = channel.read(readBuffer);
+                    
+                    if(n < 0)
+                        break;
+                    
+                    body.write(readBuffer.array(), 0, n);
+                }
+            }
+            finally{
+                if(!stdin)  //Leave stdin open
+                    channel.close();
+            }
+            
+            body.endLine();     //Don't join the last line of one file to the first of the next
+        }
+        
+        body.finish();
+        
+        traceLine("<" + body.getWritten() + " octets of message text>");
+    }
+    
+    /**
+     * Sends {@code RSET}, aborting the current transaction.
+     *
+     * @return The server's reply
+     * @throws IOException If an I/O error occurs communicating with the server
+     */
+    public SMTPClient.Response rset() throws IOException{
+        return command(RSET);
+    }
+    
+    /**
+     * Sends {@code NOOP}.
+     *
+     * @return The server's reply
+     * @throws IOException If an I/O error occurs communicating with the server
+     */
+    public SMTPClient.Response noop() throws IOException{
+        return command(NOOP);
+    }
+    
+    /**
+     * Sends {@code QUIT}.
+     * <p>
+     * Does not close the connection; see {@link #close()}.
+     *
+     * @return The server's reply
+     * @throws IOException If an I/O error occurs communicating with the server
+     */
+    public SMTPClient.Response quit() throws IOException{
+        return command(QUIT);
+    }
+    
+    /**
+     * Sends a command line and reads the reply.
+     *
+     * @param cmd Command line, without line terminator
+     * @return The server's reply
+     * @throws IOException If an I/O error occurs communicating with the server
+     */
+    public SMTPClient.Response command(String cmd) throws IOException{
+        queueLine(cmd);
+        
+        return readResponse();
+    }
+    
+    /**
+     * Sends a line to the server without waiting for a reply.
+     *
+     * @param line Line to send, without line terminator
+     * @throws IOException If an I/O error occurs communicating with the server
+     */
+    public void sendLine(String line) throws IOException{
+        queueLine(line);
+        out.flush();
+    }
+    
+    //Buffers a line without sending it; it is sent with the next flush
+    /**@hidden*/
+    private void queueLine(String line) throws IOException{
+        traceLine(line);
+        out.write((line + CRLF).getBytes());
+    }
+    
+    /**
+     * Reads the next reply from the server.
+     * <p>
+     * Any buffered output is flushed first.
+     *
+     * @return The server's reply
+     * @throws IOException If an I/O error occurs communicating with the server
+     */
+    public SMTPClient.Response readResponse() throws IOException{
+        readCode();
+        
+        return in.toResponse();
+    }
+    
+    //Sends a command and reads the reply, returning only the reply code
+    /**@hidden*/
+    private int commandCode(String cmd) throws IOException{
+        queueLine(cmd);
+        
+        return readCode();
+    }
+    
+    //Reads the next reply, returning only the reply code. The reply stays in the decoder until the next read
+    /**@hidden*/
+    private int readCode() throws IOException{
+        out.flush();    //The only place output is flushed: whatever is buffered is what the reply depends on
+        
+        int code = in.read();
+        
+        if(log != null && trace)    //Only make the text if it will be printed
+            traceLine(in.getText());
+        
+        return code;
+    }
+    
+    /**
+     * Returns the server's capabilities, as parsed from the reply to the most recent {@code EHLO}.
+     *
+     * @return The capabilities, or {@link Capabilities#NONE} if {@code EHLO} has not been sent
+     */
+    public Capabilities getCapabilities(){
+        return capabilities;
+    }
+    
+    /**
+     * Returns the authenticated username.
+     *
+     * @return The username, or {@code null} if the session is not authenticated
+     */
+    public String getUser(){
+        return uName;
+    }
+    
+    /**
+     * Returns the authentication method used.
+     *
+     * @return The method, or {@code null} if the session is not authenticated
+     */
+    public String getAuthMethod(){
+        return authMethod;
+    }
+    
+    /**
+     * Returns the server domain name.
+     *
+     * @return Server domain name
+     */
+    public String getHost(){
+        return host;
+    }
+    
+    /**
+     * Returns the server port.
+     *
+     * @return Server port
+     */
+    public int getPort(){
+        return port;
+    }
+    
+    /**
+     * Returns if the connection is open.
+     *
+     * @return {@code true} if the session has been opened and not yet closed
+     */
+    public boolean isOpen(){
+        return socket != null && !socket.isClosed();
+    }
+    
+    /**
+     * Closes the connection without sending {@code QUIT}.
+     *
+     * @throws IOException If an I/O error occurs closing the connection
+     */
+    @Override
+    public void close() throws IOException{
+        try{
+            if(in != null)
+                in.close();
+            
+            if(out != null)
+                out.close();
+        }
+        finally{
+            if(socket != null && !socket.isClosed())
+                socket.close();
+        }
+    }
+    
+    /**
+     * Message text in {@code BDAT} chunks.
+     * <p>
+     * Text is buffered until a full chunk is ready; the last chunk is sent by {@link #finish()}. Without pipelining each
+     * chunk's reply is read before the next chunk is sent. Once a chunk is rejected, the rest of the text is discarded.
+     */
+    private class ChunkOutputStream extends OutputStream{
+        /**{@code BDAT} command & chunk. The command is written just in front of the chunk so both go in one write*/
+        private final byte[] buf;
+        /**Bytes of text in the current chunk*/
+        private int count;
+        
+        /**@hidden*/
+        private boolean pipelining;
+        /**Chunks sent whose replies have not been read*/
+        private int inFlight;
+        /**Reply rejecting a chunk, {@code null} if none*/
+        private SMTPClient.Response failure;
+        
+        /**@hidden*/
+        private ChunkOutputStream(int size){
+            buf = new byte[CHUNK_HEADER_ROOM + size];
+        }
+        
+        /**@hidden*/
+        private int chunkSize(){
+            return buf.length - CHUNK_HEADER_ROOM;
+        }
+        
+        //Readies for a new message
+        /**@hidden*/
+        private void reset(boolean pipelining){
+            this.pipelining = pipelining;
+            
+            count = 0;
+            inFlight = 0;
+            failure = null;
+        }
+        
+        @Override
+        public void write(int b) throws IOException{
+            if(count == chunkSize())
+                sendChunk(false);
+            
+            buf[CHUNK_HEADER_ROOM + count++] = (byte)b;
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException{
+            Objects.checkFromIndexSize(off, len, b.length);
+            
+            while(len > 0){
+                if(count == chunkSize())    //Only sent once more text arrives, so the last chunk can be marked LAST
+                    sendChunk(false);
+                
+                int n = Math.min(len, chunkSize() - count);
+                
+                System.arraycopy(b, off, buf, CHUNK_HEADER_ROOM + count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+        
+        /**
+         * Sends the last chunk and reads all outstanding replies.
+         *
+         * @return The reply to the last chunk, or the reply rejecting a chunk
+         * @throws IOException If an I/O error occurs communicating with the server
+         */
+        private SMTPClient.Response finish() throws IOException{
+            sendChunk(true);
+            
+            while(inFlight > 0)
+                readReply();
+            
+            return (failure != null) ? failure : in.toResponse();     //Without a failure, the last reply read is to LAST
+        }
+        
+        /**@hidden*/
+        private void sendChunk(boolean last) throws IOException{
+            if(failure != null){    //Transaction has failed: no more chunks may be sent (RFC 3030 Section 4.2)
+                count = 0;
+                return;
+            }
+            
+            String cmd = String.format(BDAT, count) + (last ? BDAT_LAST : "");
+            byte[] header = (cmd + CRLF).getBytes();
+            int start = CHUNK_HEADER_ROOM - header.length;
+            
+            traceLine(cmd);
+            
+            System.arraycopy(header, 0, buf, start, header.length);
+            out.write(buf, start, header.length + count);
+            
+            count = 0;
+            inFlight++;
+            
+            if(!last && (!pipelining || inFlight >= MAX_CHUNKS_IN_FLIGHT))
+                readReply();
+        }
+        
+        /**@hidden*/
+        private void readReply() throws IOException{
+            int code = readCode();
+            
+            inFlight--;
+            
+            if(code != SMTP_OK && failure == null)
+                failure = in.toResponse();
+        }
+    }
+    
+    //Verbose output only if a log is set
+    /**@hidden*/
+    private void logLine(String str){
+        if(log != null)
+            log.println(str);
+    }
+    
+    //Protocol trace only if a log is set & tracing
+    /**@hidden*/
+    private void traceLine(Object str){
+        if(log != null && trace)
+            log.println(str.toString());
+    }
+    
+    //Formats printing of IP addresses
+    /**@hidden*/
+    static String inetAddressToHostString(InetAddress addr){
+        return (addr instanceof Inet4Address) ? addr.getHostAddress() : "[" + shortenInet6Addr(addr.getHostAddress()) + "]";
+    }
+    
+    //Shortens in IPv6 address into a more readable format
+    /**@hidden*/
+    private static String shortenInet6Addr(String ip){
+        if(ip == null)
+            return ip;
+        
+        String[] hextets = COLON.split(ip);
+        
+        if(hextets.length != 8)
+            return ip;
+        
+        int curStart = -1, maxStart = -1, curLength = 0, maxLength = 0;
+        
+        for(int i = 0; i < hextets.length; i++){
+            String h = hextets[i];
+            
+            if(h.equals("0")){
+                if(curStart == -1)
+                    curStart = i;
+                else
+                    curLength++;
+            }
+            else if(curStart != -1){
+                if(curLength > maxLength){
+                    maxLength = curLength;
+                    maxStart = curStart;
+                }
+                
+                curStart = -1;
+                curLength = 0;
+            }
+        }
+        
+        if(curLength > maxLength){
+            maxLength = curLength;
+            maxStart = curStart;
+        }
+        
+        if(maxLength == 0)
+            maxStart = -1;
+        
+        StringBuilder sb = new StringBuilder(39);
+        
+        for(int i = 0; i < hextets.length; i++){
+            if(i == maxStart){
+                int l = sb.length();
+                
+                if(l > 0)
+                    if(sb.charAt(l - 1) == ':')
+                        sb.deleteCharAt(l - 1);
+                
+                sb.append("::");
+                i += maxLength;
+            }
+            else{
+                sb.append(hextets[i]);
+                
+                if(i < hextets.length - 1)
+                    sb.append(':');
+            }
+        }
+        
+        return sb.toString();
+    }
+}
\ No newline at end of file
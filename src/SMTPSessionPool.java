@@ -0,0 +1,526 @@
+/*Copyright (C) 2022  Riley Kuttruff
+*
+*   This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or
+*   (at your option) any later version.
+*
+*   This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+*   Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+*/
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Bounded pool of open, authenticated {@link SMTPSession}s.
+ * <p>
+ * Sessions are pooled by server, port and user. A borrowed session is ready for {@code MAIL FROM}; returning it with
+ * {@link #release} resets it with {@code RSET} for the next borrower. Sessions that have sat idle are checked with
+ * {@code NOOP} before being handed out, and sessions past the idle timeout or maximum lifetime are closed.
+ * <p>
+ * Borrowers waiting for a session block on a {@link Condition} rather than a monitor, so waiting virtual threads do not
+ * pin their carrier threads.
+ *
+ *  @author     Riley Kuttruff
+ *  @version    1.0
+ */
+public class SMTPSessionPool implements SMTPConstants, Closeable{
+    /**Default maximum number of sessions per server/port/user*/
+    public static final int DEFAULT_MAX_PER_KEY = 4;
+    /**Default time (ms) a session may sit idle before it is closed*/
+    public static final long DEFAULT_IDLE_TIMEOUT = 60_000;
+    /**Default maximum time (ms) a session is kept open*/
+    public static final long DEFAULT_MAX_LIFETIME = 600_000;
+    /**Default time (ms) a session may sit idle before it is validated with {@code NOOP} when borrowed*/
+    public static final long DEFAULT_VALIDATE_AFTER = 2_000;
+    
+    /**@hidden*/
+    private final int maxPerKey;
+    /**@hidden*/
+    private final long idleTimeout, maxLifetime, validateAfter;
+    /**Opens the connections of new sessions*/
+    private volatile Connector connector;
+    /**Whether and how new sessions encrypt their connections*/
+    private volatile TLSPolicy tlsPolicy;
+    
+    /**Pooled sessions by key*/
+    private final Map<Key, Partition> partitions;
+    /**Borrowed sessions*/
+    private final Map<SMTPSession, Entry> leased;
+    
+    /**Periodically evicts expired idle sessions*/
+    private final ScheduledExecutorService reaper;
+    
+    /**@hidden*/
+    private volatile boolean closed;
+    
+    /**
+     * Creates a pool with the default limits.
+     */
+    public SMTPSessionPool(){
+        this(DEFAULT_MAX_PER_KEY, DEFAULT_IDLE_TIMEOUT, DEFAULT_MAX_LIFETIME);
+    }
+    
+    /**
+     * Constructor.
+     *
+     * @param maxPerKey Maximum number of sessions (idle & borrowed) per server/port/user
+     * @param idleTimeout Time (ms) a session may sit idle before it is closed
+     * @param maxLifetime Maximum time (ms) a session is kept open
+     */
+    public SMTPSessionPool(int maxPerKey, long idleTimeout, long maxLifetime){
+        if(maxPerKey < 1)
+            throw new IllegalArgumentException("maxPerKey must be positive");
+        
+        this.maxPerKey = maxPerKey;
+        this.idleTimeout = idleTimeout;
+        this.maxLifetime = maxLifetime;
+        this.validateAfter = Math.min(DEFAULT_VALIDATE_AFTER, idleTimeout);
+        
+        partitions = new HashMap<>();
+        leased = new IdentityHashMap<>();
+        
+        connector = Connector.getDefault();
+        tlsPolicy = TLSPolicy.IMPLICIT;
+        closed = false;
+        
+        reaper = Executors.newSingleThreadScheduledExecutor((r) -> {
+            Thread t = new Thread(r, "SMTPSessionPool-Reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        
+        long period = Math.max(1000, Math.min(idleTimeout, maxLifetime) / 2);
+        
+        reaper.scheduleWithFixedDelay(this::evictExpired, period, period, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Borrows an authenticated session, opening one if needed.
+     * <p>
+     * Blocks while the pool is at capacity for this server/port/user.
+     *
+     * @param host Server domain name
+     * @param port Server port number
+     * @param user Username to authenticate as
+     * @param method Authentication method
+     * @param auth Builds the authentication data for new sessions
+     * @return Session, ready for {@code MAIL FROM}
+     * @throws IOException If a new session could not be opened
+     * @throws SMTPReplyException If the server rejects the greeting or {@code EHLO}
+     * @throws AuthException If authentication fails
+     * @throws InterruptedException If interrupted while waiting for a session
+     * @throws IllegalStateException If the pool is closed
+     */
+    public SMTPSession borrow(String host, int port, String user, String method, Auth auth) throws IOException, InterruptedException{
+        Key key = new Key(host, port, user);
+        Partition part;
+        Entry entry = null;
+        
+        synchronized(this){
+            if(closed)
+                throw new IllegalStateException("Pool closed");
+            
+            part = partitions.computeIfAbsent(key, (k) -> new Partition());
+        }
+        
+        for(;;){
+            boolean create = false;
+            
+            part.lock.lock();
+            
+            try{
+                while(part.idle.isEmpty() && part.total >= maxPerKey && !closed)
+                    part.available.await();
+                
+                if(closed)  //Closed while waiting
+                    throw new IllegalStateException("Pool closed");
+                
+                if(!part.idle.isEmpty())
+                    entry = part.idle.pollFirst();     //Most recently used first
+                else{
+                    part.total++;
+                    create = true;
+                }
+            }
+            finally{
+                part.lock.unlock();
+            }
+            
+            if(create){
+                try{
+                    entry = new Entry(key, connect(host, port, user, method, auth));
+                }
+                catch(IOException | RuntimeException e){
+                    discard(part, null);
+                    throw e;
+                }
+                
+                break;
+            }
+            
+            long now = System.currentTimeMillis();
+            
+            if(entry.expired(now)){
+                discard(part, entry);
+                continue;
+            }
+            
+            if(now - entry.lastUsed >= validateAfter && !validate(entry.session)){
+                discard(part, entry);
+                continue;
+            }
+            
+            break;
+        }
+        
+        if(closed){     //Closed while connecting or validating; close() has already passed this session by
+            discard(part, entry);
+            throw new IllegalStateException("Pool closed");
+        }
+        
+        entry.lastUsed = System.currentTimeMillis();
+        
+        synchronized(leased){
+            leased.put(entry.session, entry);
+        }
+        
+        return entry.session;
+    }
+    
+    /**
+     * Returns a borrowed session to the pool.
+     * <p>
+     * The session is reset with {@code RSET}. If that fails, or the session is closed or expired, it is discarded.
+     *
+     * @param session Session previously returned by {@link #borrow}
+     */
+    public void release(SMTPSession session){
+        Entry entry = removeLease(session);
+        Partition part = partition(entry.key);
+        
+        boolean reusable = !closed && session.isOpen() && !entry.pastLifetime(System.currentTimeMillis());
+        
+        if(reusable){
+            try{
+                reusable = session.rset().getResponseCode() == SMTP_OK;
+            }
+            catch(IOException | SMTPException e){
+                reusable = false;
+            }
+        }
+        
+        if(!reusable){
+            discard(part, entry);
+            return;
+        }
+        
+        entry.lastUsed = System.currentTimeMillis();
+        
+        part.lock.lock();
+        
+        try{
+            part.idle.addFirst(entry);
+            part.available.signal();
+        }
+        finally{
+            part.lock.unlock();
+        }
+    }
+    
+    /**
+     * Removes a borrowed session from the pool and closes it.
+     * <p>
+     * Use instead of {@link #release} when the session is known to be unusable.
+     *
+     * @param session Session previously returned by {@link #borrow}
+     */
+    public void invalidate(SMTPSession session){
+        Entry entry = removeLease(session);
+        
+        discard(partition(entry.key), entry);
+    }
+    
+    /**
+     * Returns the maximum number of sessions per server/port/user.
+     *
+     * @return Maximum sessions per key
+     */
+    public int getMaxPerKey(){
+        return maxPerKey;
+    }
+    
+    /**
+     * Sets the connector new sessions open their connections with.
+     *
+     * @param connector Connector to use
+     */
+    public void setConnector(Connector connector){
+        this.connector = Objects.requireNonNull(connector);
+    }
+    
+    /**
+     * Sets whether and how new sessions encrypt their connections.
+     *
+     * @param policy TLS policy
+     * @see SMTPSession#setTLSPolicy
+     */
+    public void setTLSPolicy(TLSPolicy policy){
+        this.tlsPolicy = Objects.requireNonNull(policy);
+    }
+    
+    /**
+     * Closes idle sessions past the idle timeout or maximum lifetime.
+     * <p>
+     * Called periodically by the pool; may also be called directly.
+     */
+    public void evictExpired(){
+        List<Partition> parts;
+        
+        synchronized(this){
+            parts = new ArrayList<>(partitions.values());
+        }
+        
+        long now = System.currentTimeMillis();
+        
+        for(Partition part : parts){
+            List<Entry> expired = new ArrayList<>();
+            
+            part.lock.lock();
+            
+            try{
+                for(Iterator<Entry> itr = part.idle.iterator(); itr.hasNext();){
+                    Entry e = itr.next();
+                    
+                    if(e.expired(now)){
+                        itr.remove();
+                        expired.add(e);
+                    }
+                }
+            }
+            finally{
+                part.lock.unlock();
+            }
+            
+            for(Entry e : expired)
+                discard(part, e);
+        }
+    }
+    
+    /**
+     * Closes all idle sessions and stops the pool.
+     * <p>
+     * Borrowed sessions are closed when they are released. Borrowers waiting for a session, or opening one, fail with
+     * {@link IllegalStateException}.
+     */
+    @Override
+    public void close(){
+        List<Partition> parts;
+        
+        synchronized(this){
+            if(closed)
+                return;
+            
+            closed = true;
+            parts = new ArrayList<>(partitions.values());
+        }
+        
+        reaper.shutdownNow();
+        
+        for(Partition part : parts){
+            List<Entry> idle;
+            
+            part.lock.lock();
+            
+            try{
+                idle = new ArrayList<>(part.idle);
+                part.idle.clear();
+                part.available.signalAll();     //Waiting borrowers give up
+            }
+            finally{
+                part.lock.unlock();
+            }
+            
+            for(Entry e : idle)
+                discard(part, e);
+        }
+    }
+    
+    //Opens, greets & authenticates a new session
+    /**@hidden*/
+    private SMTPSession connect(String host, int port, String user, String method, Auth auth) throws IOException{
+        SMTPSession session = new SMTPSession(host, port);
+        
+        session.setConnector(connector);
+        session.setTLSPolicy(tlsPolicy);
+        
+        try{
+            SMTPClient.Response resp = session.open();
+            
+            if(resp.getResponseCode() != SMTP_READY)
+                throw new SMTPReplyException("SMTP server not ready - " + resp, resp.getResponseCode());
+            
+            resp = session.ehlo("localhost");
+            
+            if(resp.getResponseCode() != SMTP_OK)
+                throw new SMTPReplyException("EHLO rejected - " + resp, resp.getResponseCode());
+            
+            if(auth instanceof PlainCredentials)    //Written from its own buffer; no copy to build
+                resp = session.authenticate(method, user, ((PlainCredentials)auth).getAuthData());
+            else
+                resp = session.authenticate(method, user, auth.buildAuthString(user));
+            
+            if(resp.getResponseCodeType() != 2)
+                throw new AuthException("Authentication failed - " + resp, resp.getResponseCode());
+            
+            return session;
+        }
+        catch(IOException | RuntimeException e){
+            session.close();
+            throw e;
+        }
+    }
+    
+    //Checks an idle session is still alive
+    /**@hidden*/
+    private static boolean validate(SMTPSession session){
+        try{
+            return session.isOpen() && session.noop().getResponseCode() == SMTP_OK;
+        }
+        catch(IOException | SMTPException e){
+            return false;
+        }
+    }
+    
+    //Politely closes a session & frees its slot
+    /**@hidden*/
+    private void discard(Partition part, Entry entry){
+        if(entry != null){
+            SMTPSession session = entry.session;
+            
+            try{
+                if(session.isOpen())
+                    session.quit();
+            }
+            catch(IOException | SMTPException e){}
+            
+            try{
+                session.close();
+            }
+            catch(IOException e){}
+        }
+        
+        part.lock.lock();
+        
+        try{
+            part.total--;
+            part.available.signal();
+        }
+        finally{
+            part.lock.unlock();
+        }
+    }
+    
+    /**@hidden*/
+    private Entry removeLease(SMTPSession session){
+        Entry entry;
+        
+        synchronized(leased){
+            entry = leased.remove(session);
+        }
+        
+        if(entry == null)
+            throw new IllegalArgumentException("Session not borrowed from this pool");
+        
+        return entry;
+    }
+    
+    /**@hidden*/
+    private synchronized Partition partition(Key key){
+        return partitions.get(key);
+    }
+    
+    /**
+     * Pool key: server, port & user.
+     */
+    private static class Key{
+        /**@hidden*/
+        private final String host, user;
+        /**@hidden*/
+        private final int port;
+        
+        /**@hidden*/
+        private Key(String host, int port, String user){
+            this.host = host.toLowerCase(Locale.ROOT);
+            this.port = port;
+            this.user = user;
+        }
+        
+        @Override
+        public boolean equals(Object o){
+            if(!(o instanceof Key))
+                return false;
+            
+            Key k = (Key)o;
+            
+            return port == k.port && host.equals(k.host) && Objects.equals(user, k.user);
+        }
+        
+        @Override
+        public int hashCode(){
+            return Objects.hash(host, port, user);
+        }
+    }
+    
+    /**
+     * Idle sessions and session count for one key.
+     */
+    private static class Partition{
+        /**Guards the fields below*/
+        private final ReentrantLock lock = new ReentrantLock();
+        /**Signalled when a session is returned or a slot is freed*/
+        private final Condition available = lock.newCondition();
+        /**Idle sessions, most recently used first*/
+        private final Deque<Entry> idle = new ArrayDeque<>();
+        /**Number of open sessions (idle & borrowed)*/
+        private int total = 0;
+    }
+    
+    /**
+     * A pooled session & its bookkeeping.
+     */
+    private class Entry{
+        /**@hidden*/
+        private final Key key;
+        /**@hidden*/
+        private final SMTPSession session;
+        /**@hidden*/
+        private final long created;
+        /**@hidden*/
+        private long lastUsed;
+        
+        /**@hidden*/
+        private Entry(Key key, SMTPSession session){
+            this.key = key;
+            this.session = session;
+            
+            created = lastUsed = System.currentTimeMillis();
+        }
+        
+        //Past max lifetime or idle timeout
+        /**@hidden*/
+        private boolean expired(long now){
+            return pastLifetime(now) || now - lastUsed >= idleTimeout;
+        }
+        
+        //Past max lifetime
+        /**@hidden*/
+        private boolean pastLifetime(long now){
+            return now - created >= maxLifetime;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,260 @@
+/*Copyright (C) 2022  Riley Kuttruff
+*
+*   This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or
+*   (at your option) any later version.
+*
+*   This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+*   Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+*/
+
+import java.util.*;
+
+/**
+ * Outcome of one mail transaction.
+ * <p>
+ * Holds the server's reply to each recipient and the reply that ended the transaction: the reply to the final
+ * {@code .} if the message was sent, otherwise the reply to the command that failed. Replies carry enhanced status
+ * codes (RFC 3463) if the server sends them.
+ * <p>
+ * Also holds the time spent in each {@link Stage} of the transaction. The stages of setting up the session (connect,
+ * TLS, AUTH) are counted in the result of the first transaction on the session, the one that waited for them; on a
+ * reused (e.g. pooled) session they are 0.
+ *
+ *  @author     Riley Kuttruff
+ *  @version    1.0
+ */
+public class SendResult implements SMTPConstants{
+    /**The message sent*/
+    private final MailMessage message;
+    /**Recipients attempted, in order, repeats included*/
+    private final List<String> recipients;
+    /**Reply to each of {@link #recipients}, by index*/
+    private final List<SMTPClient.Response> replies;
+    /**Code of the reply ending the transaction*/
+    private int replyCode;
+    /**Text of the reply ending the transaction*/
+    private String replyText;
+    /**Times output was flushed to the server during the transaction*/
+    private long flushes;
+    /**TLS records written during the transaction (estimated)*/
+    private long records;
+    /**Time (ns) spent in each stage, by ordinal*/
+    private final long[] stageNanos;
+    
+    /**
+     * Constructor.
+     *
+     * @param message The message being sent
+     */
+    SendResult(MailMessage message){
+        this.message = message;
+        
+        recipients = new ArrayList<>();
+        replies = new ArrayList<>();
+        replyCode = -1;
+        replyText = null;
+        flushes = records = 0;
+        stageNanos = new long[Stage.values().length];
+    }
+    
+    /**@hidden*/
+    void addRecipient(String recipient, SMTPClient.Response reply){
+        recipients.add(recipient);
+        replies.add(reply);
+    }
+    
+    /**@hidden*/
+    void setReply(int code, String text){
+        replyCode = code;
+        replyText = text;
+    }
+    
+    /**@hidden*/
+    void addTime(Stage stage, long nanos){
+        stageNanos[stage.ordinal()] += nanos;
+    }
+    
+    /**@hidden*/
+    void setWriteCounts(long flushes, long records){
+        this.flushes = flushes;
+        this.records = records;
+    }
+    
+    /**
+     * Returns the message sent.
+     *
+     * @return The message
+     */
+    public MailMessage getMessage(){
+        return message;
+    }
+    
+    /**
+     * Returns if the server accepted the message for at least one recipient.
+     *
+     * @return {@code true} if the message was sent
+     */
+    public boolean isSuccess(){
+        return replyCode == SMTP_OK && !getAccepted().isEmpty();
+    }
+    
+    /**
+     * Returns the code of the reply that ended the transaction.
+     *
+     * @return Reply code, or {@code -1} if no recipient was accepted
+     */
+    public int getReplyCode(){
+        return replyCode;
+    }
+    
+    /**
+     * Returns the text of the reply that ended the transaction.
+     *
+     * @return Reply text, or {@code null} if no recipient was accepted
+     */
+    public String getReplyText(){
+        return replyText;
+    }
+    
+    /**
+     * Returns the server's reply code to {@code RCPT TO} for a recipient.
+     * <p>
+     * If the recipient was listed more than once, this is the reply to the first {@code RCPT TO} for it.
+     *
+     * @param recipient Recipient address
+     * @return Reply code, or {@code -1} if the recipient was not attempted
+     */
+    public int getRecipientCode(String recipient){
+        SMTPClient.Response reply = getRecipientReply(recipient);
+        
+        return (reply != null) ? reply.getResponseCode() : -1;
+    }
+    
+    /**
+     * Returns the server's reply to {@code RCPT TO} for a recipient.
+     * <p>
+     * If the recipient was listed more than once, this is the reply to the first {@code RCPT TO} for it.
+     *
+     * @param recipient Recipient address
+     * @return The reply, or {@code null} if the recipient was not attempted
+     */
+    public SMTPClient.Response getRecipientReply(String recipient){
+        int i = recipients.indexOf(recipient);
+        
+        return (i >= 0) ? replies.get(i) : null;
+    }
+    
+    /**
+     * Returns the enhanced status code (RFC 3463) of the server's reply to {@code RCPT TO} for a recipient.
+     *
+     * @param recipient Recipient address
+     * @return The status code (e.g. {@code 5.1.1}), or {@code null} if the reply has none or the recipient was not
+     * attempted
+     */
+    public String getRecipientStatus(String recipient){
+        SMTPClient.Response reply = getRecipientReply(recipient);
+        
+        return (reply != null) ? reply.getEnhancedStatus() : null;
+    }
+    
+    /**
+     * Returns the enhanced status code (RFC 3463) of the reply that ended the transaction.
+     *
+     * @return The status code (e.g. {@code 2.0.0}), or {@code null} if the reply has none or no recipient was accepted
+     */
+    public String getEnhancedStatus(){
+        return SMTPClient.Response.parseEnhancedStatus(replyText);
+    }
+    
+    /**
+     * Returns the time spent in a stage.
+     *
+     * @param stage The stage
+     * @return Time (ms)
+     */
+    public double getTime(Stage stage){
+        return stageNanos[stage.ordinal()] / 1e6;
+    }
+    
+    /**
+     * Returns the time spent in all stages.
+     *
+     * @return Time (ms)
+     */
+    public double getTotalTime(){
+        long total = 0;
+        
+        for(long t : stageNanos)
+            total += t;
+        
+        return total / 1e6;
+    }
+    
+    /**
+     * Returns the recipients accepted by the server.
+     *
+     * @return Accepted recipients, in order; a recipient listed more than once appears once for each acceptance
+     */
+    public List<String> getAccepted(){
+        return filter(true);
+    }
+    
+    /**
+     * Returns the recipients rejected by the server.
+     *
+     * @return Rejected recipients, in order; a recipient listed more than once appears once for each rejection
+     */
+    public List<String> getRejected(){
+        return filter(false);
+    }
+    
+    /**
+     * Returns the number of times output was flushed to the server during the transaction.
+     *
+     * @return Number of flushes
+     */
+    public long getFlushes(){
+        return flushes;
+    }
+    
+    /**
+     * Returns the (estimated) number of TLS records written during the transaction.
+     *
+     * @return Number of records
+     */
+    public long getRecords(){
+        return records;
+    }
+    
+    /**@hidden*/
+    private List<String> filter(boolean accepted){
+        List<String> ret = new ArrayList<>();
+        
+        for(int i = 0; i < recipients.size(); i++)
+            if((replies.get(i).getResponseCodeType() == 2) == accepted)
+                ret.add(recipients.get(i));
+        
+        return ret;
+    }
+    
+    /**
+     * Stages of sending a message.
+     */
+    public enum Stage{
+        /**Resolving the server, connecting and reading the greeting, and {@code EHLO}*/
+        CONNECT,
+        /**The TLS handshake, and {@code STARTTLS} if used*/
+        TLS,
+        /**Authenticating*/
+        AUTH,
+        /**{@code MAIL FROM}, {@code RCPT TO} and {@code DATA}, up to the server being ready for the message text*/
+        ENVELOPE,
+        /**Writing the message text*/
+        DATA,
+        /**Ending the message text and waiting for the server to accept it*/
+        FINAL
+    }
+}
\ No newline at end of file
@@ -0,0 +1,793 @@
+/*Copyright (C) 2022  Riley Kuttruff
+*
+*   This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or
+*   (at your option) any later version.
+*
+*   This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+*   Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+*/
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+import java.util.zip.*;
+
+/**
+ * A durable queue of outbound messages.
+ * <p>
+ * Messages are appended to a journal of memory-mapped segment files in a spool directory, and are on disk before
+ * {@link #enqueue} returns; enqueueing never waits on the network. Senders take messages with {@link #take}, and
+ * either {@link #complete} them (sent, or permanently rejected) or {@link #release} them to be tried again. Completions
+ * are appended to the journal too.
+ * <p>
+ * A checkpoint file records where the oldest message still pending starts. It is updated every
+ * {@value #CHECKPOINT_INTERVAL} completions, when a segment fills, and on {@link #close()}; segments wholly before it are
+ * deleted. When a spool is opened, the journal is replayed from the checkpoint, so messages pending when the process
+ * stopped (or crashed) are queued again. Segments are found by number from the checkpoint's, so the directory is never
+ * listed.
+ * <p>
+ * A message's text is copied into the journal when it is enqueued, including files and standard input. It is written
+ * straight into the mapped segment, with room reserved from the sizes of its parts; only standard input, whose size is
+ * not known up front, is read into memory first. Completions are not forced to disk one by one, so after a crash a
+ * message may be sent again (at least once delivery).
+ * <p>
+ * Spools are thread safe. A spool directory is only opened by one {@code Spool} at a time, in any process: the spool
+ * holds a lock on a file in the directory while it is open, and opening a spool whose directory is locked fails.
+ *
+ *  @author     Riley Kuttruff
+ *  @version    1.0
+ */
+public class Spool implements Closeable{
+    /**Default size (octets) of a journal segment; larger messages get a segment of their own*/
+    public static final int DEFAULT_SEGMENT_SIZE = 16 << 20;
+    /**Completions between checkpoints*/
+    public static final int CHECKPOINT_INTERVAL = 256;
+    
+    /**@hidden*/
+    private static final int MAGIC = 0x53504f4f;       //"SPOO"
+    /**Segment header: magic, segment size*/
+    private static final int SEGMENT_HEADER = 8;
+    /**Record header: length, CRC-32 (of the rest), type, message ID*/
+    private static final int RECORD_HEADER = 17;
+    /**Record types*/
+    private static final byte ENQUEUE = 1, DONE = 2;
+    /**@hidden*/
+    private static final byte[] CRLF = {'\r', '\n'};
+    /**Checkpoint file name*/
+    private static final String CHECKPOINT = "checkpoint";
+    /**Lock file name*/
+    private static final String LOCK = "lock";
+    
+    /**Spool directory*/
+    private final Path dir;
+    /**Size of new segments*/
+    private final int segmentSize;
+    /**Lock file, locked while the spool is open*/
+    private final FileChannel lockFile;
+    
+    /**Guards all state below*/
+    private final ReentrantLock lock;
+    /**Signalled when a message becomes ready*/
+    private final Condition available;
+    
+    /**Mapped segments, by number, from the checkpoint's on*/
+    private final TreeMap<Long, Segment> segments;
+    /**Segment being appended to*/
+    private Segment current;
+    /**Offset of the next record in {@link #current}*/
+    private int appendPos;
+    /**ID of the next message*/
+    private long nextId;
+    
+    /**Messages not yet completed, by ID (i.e. in journal order)*/
+    private final TreeMap<Long, Entry> pending;
+    /**Pending messages not taken by a sender*/
+    private final Deque<Entry> ready;
+    /**Completions since the last checkpoint*/
+    private int sinceCheckpoint;
+    /**@hidden*/
+    private boolean closed;
+    
+    /**
+     * Opens a spool with the default segment size, creating it if needed.
+     *
+     * @param dir Spool directory
+     * @throws IOException If the spool cannot be created or read
+     */
+    public Spool(Path dir) throws IOException{
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+    
+    /**
+     * Opens a spool, creating it if needed, and queues the messages pending in it.
+     *
+     * @param dir Spool directory
+     * @param segmentSize Size (octets) of new journal segments
+     * @throws IOException If the spool cannot be created or read, or is open elsewhere
+     */
+    public Spool(Path dir, int segmentSize) throws IOException{
+        if(segmentSize < 4096)
+            throw new IllegalArgumentException("Segment size too small");
+        
+        this.dir = Files.createDirectories(dir);
+        this.segmentSize = segmentSize;
+        
+        lockFile = lockDirectory(this.dir);
+        
+        lock = new ReentrantLock();
+        available = lock.newCondition();
+        
+        segments = new TreeMap<>();
+        pending = new TreeMap<>();
+        ready = new ArrayDeque<>();
+        
+        sinceCheckpoint = 0;
+        closed = false;
+        
+        try{
+            recover();
+        }
+        catch(IOException | RuntimeException e){
+            lockFile.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Adds a message to the spool.
+     * <p>
+     * The message text (lines, then files) is read and written to the journal, which is forced to disk, before
+     * returning.
+     *
+     * @param msg Message to send
+     * @return The message's ID in the spool
+     * @throws IOException If the message text cannot be read, changes while it is read, or the journal cannot be
+     *                     written
+     */
+    public long enqueue(MailMessage msg) throws IOException{
+        byte[] envelope = encodeEnvelope(msg);
+        List<String> files = msg.getFiles();
+        ByteBuffer stdin = null;
+        long[] sizes = new long[files.size()];
+        
+        long max = envelope.length;
+        
+        for(String line : msg.getLines())
+            max += line.getBytes().length + 2;
+        
+        ByteBuffer text = msg.getText();
+        
+        if(text != null)
+            max += text.remaining();
+        
+        for(int i = 0; i < sizes.length; i++){
+            if(files.get(i).equals("-")){
+                if(stdin == null)
+                    stdin = ByteBuffer.wrap(System.in.readAllBytes());  //Size unknown until read; before taking the lock
+                
+                sizes[i] = stdin.remaining();
+            }
+            else
+                sizes[i] = Files.size(Paths.get(files.get(i)));
+            
+            max += sizes[i] + 2;    //Room to end a line
+        }
+        
+        if(max > Integer.MAX_VALUE - SEGMENT_HEADER - RECORD_HEADER)
+            throw new IOException("Message too large to spool");
+        
+        lock.lock();
+        
+        try{
+            checkOpen();
+            
+            long id = nextId++;
+            int pos = reserve(RECORD_HEADER + (int)max);
+            int len;
+            
+            ByteBuffer d = current.buf.duplicate();
+            d.position(pos + RECORD_HEADER).limit(pos + RECORD_HEADER + (int)max);
+            
+            try{
+                d.put(envelope);
+                writeText(d, msg, stdin, sizes);
+                
+                len = d.position() - pos;
+            }
+            catch(IOException | RuntimeException ex){
+                for(int i = pos + RECORD_HEADER; i < d.position(); i++)   //Not left to be mistaken for a record
+                    current.buf.put(i, (byte)0);
+                
+                throw ex;
+            }
+            
+            seal(pos, ENQUEUE, id, len);
+            current.buf.force();
+            
+            Entry e = new Entry(id, current.number, pos, decode(current.buf, pos + RECORD_HEADER, len - RECORD_HEADER));
+            
+            pending.put(id, e);
+            ready.add(e);
+            available.signal();
+            
+            return id;
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Takes the next message to send, waiting for one if there are none.
+     *
+     * @return The message
+     * @throws InterruptedException If interrupted while waiting
+     * @throws IllegalStateException If the spool is closed
+     */
+    public Entry take() throws InterruptedException{
+        lock.lock();
+        
+        try{
+            while(ready.isEmpty()){
+                checkOpen();
+                available.await();
+            }
+            
+            return ready.poll();
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Takes the next message to send, if there is one.
+     *
+     * @return The message, or {@code null} if none is ready
+     */
+    public Entry poll(){
+        lock.lock();
+        
+        try{
+            return ready.poll();
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Marks a taken message as done: sent, or not to be tried again.
+     *
+     * @param e Message from {@link #take} or {@link #poll}
+     * @throws IOException If the journal cannot be written
+     */
+    public void complete(Entry e) throws IOException{
+        lock.lock();
+        
+        try{
+            checkOpen();
+            
+            if(pending.remove(e.id) == null)
+                return;
+            
+            seal(reserve(RECORD_HEADER), DONE, e.id, RECORD_HEADER);
+            
+            if(++sinceCheckpoint >= CHECKPOINT_INTERVAL)
+                checkpointLocked();
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns a taken message to the spool, to be sent again.
+     *
+     * @param e Message from {@link #take} or {@link #poll}
+     */
+    public void release(Entry e){
+        lock.lock();
+        
+        try{
+            if(pending.containsKey(e.id)){
+                e.attempts++;
+                ready.add(e);
+                available.signal();
+            }
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the number of messages not yet completed, including those taken.
+     *
+     * @return Number of pending messages
+     */
+    public int size(){
+        lock.lock();
+        
+        try{
+            return pending.size();
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the spool directory.
+     *
+     * @return Spool directory
+     */
+    public Path getPath(){
+        return dir;
+    }
+    
+    /**
+     * Writes a checkpoint and deletes the segments before it.
+     *
+     * @throws IOException If the checkpoint cannot be written
+     */
+    public void checkpoint() throws IOException{
+        lock.lock();
+        
+        try{
+            checkOpen();
+            checkpointLocked();
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Writes a checkpoint and closes the spool, unlocking its directory.
+     * <p>
+     * Messages still pending stay in the journal, to be queued again the next time the spool is opened. Threads
+     * waiting in {@link #take} are woken and get an {@link IllegalStateException}.
+     *
+     * @throws IOException If the checkpoint cannot be written
+     */
+    @Override
+    public void close() throws IOException{
+        lock.lock();
+        
+        try{
+            if(closed)
+                return;
+            
+            try{
+                checkpointLocked();
+            }
+            finally{
+                closed = true;
+                ready.clear();
+                available.signalAll();
+                
+                lockFile.close();   //Releases the lock
+            }
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+    
+    //Locks the spool directory against other spools, in this process or others
+    /**@hidden*/
+    private static FileChannel lockDirectory(Path dir) throws IOException{
+        FileChannel ch = FileChannel.open(dir.resolve(LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        
+        try{
+            lock = ch.tryLock();
+        }
+        catch(OverlappingFileLockException e){      //Held by another spool in this process
+            lock = null;
+        }
+        catch(IOException | RuntimeException e){
+            ch.close();
+            throw e;
+        }
+        
+        if(lock == null){
+            ch.close();
+            throw new IOException("Spool " + dir + " is in use");
+        }
+        
+        return ch;
+    }
+    
+    //Reads the checkpoint & replays the journal from it
+    /**@hidden*/
+    private void recover() throws IOException{
+        long seg = 0;
+        int off = SEGMENT_HEADER;
+        
+        nextId = 1;
+        
+        Path cp = dir.resolve(CHECKPOINT);
+        
+        if(Files.exists(cp)){
+            ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(cp));
+            
+            if(b.remaining() != 28 || b.getInt(0) != MAGIC || crc(b, 0, 24) != b.getInt(24))
+                throw new IOException("Corrupt spool checkpoint " + cp);
+            
+            seg = b.getLong(4);
+            off = b.getInt(12);
+            nextId = b.getLong(16);
+        }
+        
+        //Segments are numbered consecutively from the checkpoint's
+        for(long n = seg; Files.exists(segmentPath(n)); n++){
+            Segment s = openSegment(n);
+            
+            segments.put(n, s);
+            current = s;
+            appendPos = replay(s, (n == seg) ? off : SEGMENT_HEADER);
+        }
+        
+        if(current == null){
+            current = createSegment(seg, segmentSize);
+            appendPos = SEGMENT_HEADER;
+            segments.put(seg, current);
+        }
+        
+        //Clear anything after the last whole record (a write cut short), so it cannot be read as part of a later one
+        for(int i = appendPos; i < current.size; i++){
+            if(current.buf.get(i) != 0){
+                for(int j = i; j < current.size; j++)
+                    current.buf.put(j, (byte)0);
+                
+                current.buf.force();
+                break;
+            }
+        }
+        
+        ready.addAll(pending.values());
+    }
+    
+    //Applies the records of a segment from pos; returns the offset after the last whole record
+    /**@hidden*/
+    private int replay(Segment s, int pos) throws IOException{
+        MappedByteBuffer b = s.buf;
+        
+        while(pos + RECORD_HEADER <= s.size){
+            int len = b.getInt(pos);
+            
+            if(len < RECORD_HEADER || len > s.size - pos || crc(b, pos + 8, len - 8) != b.getInt(pos + 4))
+                break;
+            
+            byte type = b.get(pos + 8);
+            long id = b.getLong(pos + 9);
+            
+            if(type == ENQUEUE)
+                pending.put(id, new Entry(id, s.number, pos, decode(b, pos + RECORD_HEADER, len - RECORD_HEADER)));
+            else if(type == DONE)
+                pending.remove(id);
+            
+            nextId = Math.max(nextId, id + 1);
+            pos += len;
+        }
+        
+        return pos;
+    }
+    
+    //Makes room for a record of up to len octets, starting a new segment if it does not fit; returns its offset
+    /**@hidden*/
+    private int reserve(int len) throws IOException{
+        if(len > current.size - appendPos){
+            Segment s = createSegment(current.number + 1, Math.max(segmentSize, SEGMENT_HEADER + len));
+            
+            current.buf.force();
+            segments.put(s.number, s);
+            current = s;
+            appendPos = SEGMENT_HEADER;
+            
+            checkpointLocked();
+        }
+        
+        return appendPos;
+    }
+    
+    //Completes the record at pos, its payload already written, & appends it
+    /**@hidden*/
+    private void seal(int pos, byte type, long id, int len){
+        MappedByteBuffer b = current.buf;
+        
+        b.put(pos + 8, type);
+        b.putLong(pos + 9, id);
+        
+        b.putInt(pos + 4, crc(b, pos + 8, len - 8));
+        b.putInt(pos, len);     //Last: a record is only read once its length is set
+        
+        appendPos = pos + len;
+    }
+    
+    //Records where the oldest pending message starts, then drops the segments before it
+    /**@hidden*/
+    private void checkpointLocked() throws IOException{
+        current.buf.force();
+        
+        Entry first = pending.isEmpty() ? null : pending.firstEntry().getValue();
+        long seg = (first != null) ? first.segment : current.number;
+        int off = (first != null) ? first.offset : appendPos;
+        
+        ByteBuffer b = ByteBuffer.allocate(28);
+        b.putInt(0, MAGIC);
+        b.putLong(4, seg);
+        b.putInt(12, off);
+        b.putLong(16, nextId);
+        b.putInt(24, crc(b, 0, 24));
+        
+        Path file = dir.resolve(CHECKPOINT);
+        Path tmp = Files.createTempFile(dir, CHECKPOINT, ".tmp");
+        
+        try{
+            try(FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)){
+                ch.write(b);
+                ch.force(true);
+            }
+            
+            try{
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch(AtomicMoveNotSupportedException e){
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally{
+            Files.deleteIfExists(tmp);
+        }
+        
+        sinceCheckpoint = 0;
+        
+        //Nothing before the checkpoint is needed any more
+        for(Iterator<Segment> it = segments.headMap(seg).values().iterator(); it.hasNext();){
+            Segment s = it.next();
+            
+            it.remove();
+            
+            try{
+                Files.deleteIfExists(segmentPath(s.number));
+            }
+            catch(IOException e){}     //Still mapped (on some platforms); unreachable from the checkpoint anyway
+        }
+    }
+    
+    /**@hidden*/
+    private Path segmentPath(long n){
+        return dir.resolve(String.format("segment-%010d.log", n));
+    }
+    
+    /**@hidden*/
+    private Segment createSegment(long n, int size) throws IOException{
+        try(FileChannel ch = FileChannel.open(segmentPath(n), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                              StandardOpenOption.READ, StandardOpenOption.WRITE)){
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            
+            buf.putInt(0, MAGIC);
+            buf.putInt(4, size);
+            buf.force();
+            
+            return new Segment(n, size, buf);
+        }
+    }
+    
+    /**@hidden*/
+    private Segment openSegment(long n) throws IOException{
+        Path p = segmentPath(n);
+        
+        try(FileChannel ch = FileChannel.open(p, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+            long size = ch.size();
+            
+            if(size < SEGMENT_HEADER || size > Integer.MAX_VALUE)
+                throw new IOException("Corrupt spool segment " + p);
+            
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            
+            if(buf.getInt(0) != MAGIC || buf.getInt(4) != size)
+                throw new IOException("Corrupt spool segment " + p);
+            
+            return new Segment(n, (int)size, buf);
+        }
+    }
+    
+    /**@hidden*/
+    private void checkOpen(){
+        if(closed)
+            throw new IllegalStateException("Spool closed");
+    }
+    
+    //Sender & recipients
+    /**@hidden*/
+    private static byte[] encodeEnvelope(MailMessage msg) throws IOException{
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        String[] recipients = msg.getRecipients();
+        
+        writeString(out, msg.getSender());
+        out.writeInt(recipients.length);
+        
+        for(String r : recipients)
+            writeString(out, r);
+        
+        out.flush();
+        
+        return bytes.toByteArray();
+    }
+    
+    //The message text as it would be sent (lines, then files, each ending a line), into the journal; files of known sizes
+    /**@hidden*/
+    private static void writeText(ByteBuffer d, MailMessage msg, ByteBuffer stdin, long[] sizes) throws IOException{
+        for(String line : msg.getLines())
+            d.put((line + "\r\n").getBytes());
+        
+        ByteBuffer text = msg.getText();
+        
+        if(text != null)
+            d.put(text);
+        
+        List<String> files = msg.getFiles();
+        
+        for(int i = 0; i < sizes.length; i++){
+            int start = d.position(), end = start + (int)sizes[i];
+            
+            if(files.get(i).equals("-"))
+                d.put(stdin.duplicate());
+            else{
+                try(FileChannel ch = FileChannel.open(Paths.get(files.get(i)), StandardOpenOption.READ)){
+                    int limit = d.limit();
+                    
+                    d.limit(end);
+                    
+                    while(d.hasRemaining()){
+                        if(ch.read(d) < 0)
+                            break;
+                    }
+                    
+                    d.limit(limit);
+                    
+                    if(d.position() != end || ch.read(ByteBuffer.allocate(1)) >= 0)
+                        throw new IOException(files.get(i) + " changed while being spooled");
+                }
+            }
+            
+            if(end > start && d.get(end - 1) != '\n')
+                d.put(CRLF);
+        }
+    }
+    
+    //Reads back what encode wrote; the text stays in the journal
+    /**@hidden*/
+    private static MailMessage decode(ByteBuffer b, int off, int len) throws IOException{
+        ByteBuffer p = b.duplicate();
+        
+        p.position(off).limit(off + len);
+        p = p.slice();
+        
+        try{
+            String sender = readString(p);
+            String[] recipients = new String[p.getInt()];
+            
+            for(int i = 0; i < recipients.length; i++)
+                recipients[i] = readString(p);
+            
+            return new MailMessage(sender, recipients, p.slice().asReadOnlyBuffer());
+        }
+        catch(BufferUnderflowException | NegativeArraySizeException e){
+            throw new IOException("Corrupt spool record", e);
+        }
+    }
+    
+    /**@hidden*/
+    private static void writeString(DataOutputStream out, String s) throws IOException{
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        
+        out.writeInt(b.length);
+        out.write(b);
+    }
+    
+    /**@hidden*/
+    private static String readString(ByteBuffer b){
+        byte[] s = new byte[b.getInt()];
+        
+        b.get(s);
+        
+        return new String(s, StandardCharsets.UTF_8);
+    }
+    
+    /**@hidden*/
+    private static int crc(ByteBuffer b, int off, int len){
+        ByteBuffer d = b.duplicate();
+        CRC32 crc = new CRC32();
+        
+        d.position(off).limit(off + len);
+        crc.update(d);
+        
+        return (int)crc.getValue();
+    }
+    
+    /**
+     * A message in the spool.
+     */
+    public static class Entry{
+        /**@hidden*/
+        private final long id;
+        /**Segment & offset of the message's record*/
+        private final long segment;
+        /**@hidden*/
+        private final int offset;
+        /**@hidden*/
+        private final MailMessage message;
+        /**Times released to be tried again*/
+        private int attempts;
+        
+        /**@hidden*/
+        private Entry(long id, long segment, int offset, MailMessage message){
+            this.id = id;
+            this.segment = segment;
+            this.offset = offset;
+            this.message = message;
+            this.attempts = 0;
+        }
+        
+        /**
+         * Returns the message's ID in the spool.
+         *
+         * @return Message ID
+         */
+        public long getId(){
+            return id;
+        }
+        
+        /**
+         * Returns the message.
+         * <p>
+         * Its text is read from the journal.
+         *
+         * @return The message
+         */
+        public MailMessage getMessage(){
+            return message;
+        }
+        
+        /**
+         * Returns how many times the message has been released to be tried again since the spool was opened.
+         *
+         * @return Number of attempts
+         */
+        public int getAttempts(){
+            return attempts;
+        }
+    }
+    
+    /**
+     * A mapped journal segment.
+     */
+    private static class Segment{
+        /**@hidden*/
+        private final long number;
+        /**@hidden*/
+        private final int size;
+        /**@hidden*/
+        private final MappedByteBuffer buf;
+        
+        /**@hidden*/
+        private Segment(long number, int size, MappedByteBuffer buf){
+            this.number = number;
+            this.size = size;
+            this.buf = buf;
+        }
+    }
+}
\ No newline at end of file
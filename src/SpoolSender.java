@@ -0,0 +1,154 @@
+/*Copyright (C) 2022  Riley Kuttruff
+*
+*   This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or
+*   (at your option) any later version.
+*
+*   This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+*   Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+*/
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Drains a {@link Spool} into SMTP sessions.
+ * <p>
+ * A thread takes messages from the spool and sends them through a {@link RetryScheduler}, so temporary failures are
+ * retried with backoff without holding a thread. A message is completed in the spool once every recipient has been
+ * accepted, rejected permanently or given up on. If the sender is stopped first, the message stays in the spool and is
+ * sent again, to every recipient, the next time the spool is opened.
+ *
+ *  @author     Riley Kuttruff
+ *  @version    1.0
+ */
+public class SpoolSender implements Closeable{
+    /**Default number of messages taken from the spool and not yet completed (in flight or deferred)*/
+    public static final int DEFAULT_MAX_OUTSTANDING = 1024;
+    
+    /**@hidden*/
+    private final Spool spool;
+    /**@hidden*/
+    private final RetryScheduler scheduler;
+    /**Bounds the messages taken and not yet completed*/
+    private final Semaphore outstanding;
+    /**Takes messages from the spool*/
+    private final Thread drainer;
+    
+    /**@hidden*/
+    private final AtomicLong sent, failed;
+    
+    /**
+     * Constructor.
+     * <p>
+     * Neither the spool nor the scheduler is closed by {@link #close()}.
+     *
+     * @param spool Spool to drain
+     * @param scheduler Scheduler to send with
+     * @param maxOutstanding Most messages taken from the spool and not yet completed
+     */
+    public SpoolSender(Spool spool, RetryScheduler scheduler, int maxOutstanding){
+        if(maxOutstanding < 1)
+            throw new IllegalArgumentException("Need at least one outstanding message");
+        
+        this.spool = spool;
+        this.scheduler = scheduler;
+        
+        outstanding = new Semaphore(maxOutstanding);
+        
+        drainer = new Thread(this::run, "SpoolSender");
+        drainer.setDaemon(true);
+        
+        sent = new AtomicLong();
+        failed = new AtomicLong();
+    }
+    
+    /**
+     * Starts taking messages from the spool.
+     */
+    public void start(){
+        drainer.start();
+    }
+    
+    /**
+     * Returns the number of messages delivered to every recipient.
+     *
+     * @return Number of messages sent
+     */
+    public long getSent(){
+        return sent.get();
+    }
+    
+    /**
+     * Returns the number of messages not delivered to at least one recipient.
+     *
+     * @return Number of messages completed with failed recipients
+     */
+    public long getFailed(){
+        return failed.get();
+    }
+    
+    /**
+     * Stops taking messages from the spool.
+     * <p>
+     * Messages already taken are completed if their deliveries finish while the spool is open.
+     *
+     * @throws InterruptedIOException If interrupted while waiting for the sender to stop
+     */
+    @Override
+    public void close() throws InterruptedIOException{
+        drainer.interrupt();
+        
+        try{
+            drainer.join();
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the spool sender");
+        }
+    }
+    
+    //Drain loop
+    /**@hidden*/
+    private void run(){
+        try{
+            for(;;){
+                outstanding.acquire();
+                
+                Spool.Entry e;
+                
+                try{
+                    e = spool.take();
+                }
+                catch(InterruptedException | IllegalStateException ex){
+                    outstanding.release();
+                    throw ex;
+                }
+                
+                scheduler.submit(e.getMessage()).whenComplete((d, t) -> {
+                    try{
+                        if(t == null)   //Otherwise the scheduler closed: left for the next run
+                            complete(e, d);
+                    }
+                    finally{
+                        outstanding.release();
+                    }
+                });
+            }
+        }
+        catch(InterruptedException | IllegalStateException e){}    //Stopped, or the spool is closed
+    }
+    
+    /**@hidden*/
+    private void complete(Spool.Entry e, RetryScheduler.Delivery d){
+        (d.isSuccess() ? sent : failed).incrementAndGet();
+        
+        try{
+            spool.complete(e);
+        }
+        catch(IOException | IllegalStateException ex){}   //Sent again after a restart
+    }
+}
\ No newline at end of file
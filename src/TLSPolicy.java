@@ -0,0 +1,47 @@
+/*Copyright (C) 2022  Riley Kuttruff
+*
+*   This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or
+*   (at your option) any later version.
+*
+*   This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+*   Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+*/
+
+/**
+ * Whether and how a session encrypts its connection.
+ *
+ *  @author     Riley Kuttruff
+ *  @version    1.0
+ */
+public enum TLSPolicy{
+    /**
+     * TLS from the start of the connection (RFC 8314 Section 3.3), usually on port 465.
+     */
+    IMPLICIT,
+    /**
+     * Plaintext connection upgraded with {@code STARTTLS} (RFC 3207), usually on port 587. The session fails if the
+     * server does not offer {@code STARTTLS} or refuses it.
+     */
+    REQUIRED,
+    /**
+     * Plaintext connection upgraded with {@code STARTTLS} if the server offers it; otherwise the session continues
+     * without TLS.
+     */
+    OPPORTUNISTIC,
+    /**
+     * Plaintext only, for trusted links.
+     */
+    NONE;
+    
+    /**
+     * Returns the port usually used with this policy.
+     *
+     * @return 465 for {@link #IMPLICIT}, 587 (submission) otherwise
+     */
+    public int getDefaultPort(){
+        return (this == IMPLICIT) ? 465 : 587;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,23 @@
+/*Copyright (C) 2022  Riley Kuttruff
+*
+*   This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or
+*   (at your option) any later version.
+*
+*   This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+*   Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+*/
+
+/**
+ * SMTP exception for a session that must be encrypted with {@code STARTTLS}, to a server that does not offer it.
+ *
+ *  @author     Riley Kuttruff
+ *  @version    1.0
+ */
+public class TLSUnavailableException extends SMTPException{
+    public TLSUnavailableException(String msg){
+        super(msg);
+    }
+}
\ No newline at end of file
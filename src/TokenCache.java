@@ -0,0 +1,256 @@
+/*Copyright (C) 2022  Riley Kuttruff
+*
+*   This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or
+*   (at your option) any later version.
+*
+*   This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+*   Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+*/
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * In-memory cache of OAuth access tokens, by username.
+ * <p>
+ * A cached token is handed out until shortly before it expires. Tokens are refreshed in the background ahead of their
+ * expiry, so callers normally never wait on a fetch; a token is only fetched on the caller's thread if none is cached
+ * or the cached one is about to expire. A valid cached token is handed out without waiting for a refresh in progress.
+ *
+ *  @author     Riley Kuttruff
+ *  @version    1.0
+ */
+public class TokenCache implements Closeable{
+    /**Default time (ms) before expiry a token is refreshed in the background*/
+    public static final long DEFAULT_REFRESH_AHEAD = 300_000;
+    /**Least time (ms) a token must have left to be handed out*/
+    private static final long MIN_VALIDITY = 30_000;
+    
+    /**Fetches tokens when there is no valid cached one*/
+    private final TokenSource source;
+    /**@hidden*/
+    private final long refreshAhead;
+    
+    /**Cached tokens by username*/
+    private final Map<String, Entry> entries;
+    
+    /**Runs background refreshes*/
+    private final ScheduledExecutorService refresher;
+    
+    /**
+     * Creates a cache that refreshes tokens {@link #DEFAULT_REFRESH_AHEAD} ms before they expire.
+     *
+     * @param source Fetches tokens
+     */
+    public TokenCache(TokenSource source){
+        this(source, DEFAULT_REFRESH_AHEAD);
+    }
+    
+    /**
+     * Constructor.
+     *
+     * @param source Fetches tokens
+     * @param refreshAhead Time (ms) before expiry a token is refreshed in the background
+     */
+    public TokenCache(TokenSource source, long refreshAhead){
+        this.source = Objects.requireNonNull(source);
+        this.refreshAhead = refreshAhead;
+        
+        entries = new ConcurrentHashMap<>();
+        
+        refresher = Executors.newSingleThreadScheduledExecutor((r) -> {
+            Thread t = new Thread(r, "TokenCache-Refresher");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+    
+    /**
+     * Returns a valid access token for a user, fetching one if needed.
+     *
+     * @param user Username
+     * @return Access token
+     * @throws IOException If a token had to be fetched and could not be
+     */
+    public String getToken(String user) throws IOException{
+        Entry e = entries.computeIfAbsent(user, Entry::new);
+        
+        //Checked first without the lock, which a background refresh holds while fetching
+        Token token = e.getValid(System.currentTimeMillis());
+        
+        if(token != null)
+            return token.getAccessToken();
+        
+        e.lock.lock();
+        
+        try{
+            token = e.getValid(System.currentTimeMillis());
+            
+            if(token == null){
+                fetch(e);
+                token = e.token;
+            }
+            
+            return token.getAccessToken();
+        }
+        finally{
+            e.lock.unlock();
+        }
+    }
+    
+    /**
+     * Drops a user's cached token, e.g. after the server rejects it.
+     *
+     * @param user Username
+     */
+    public void invalidate(String user){
+        Entry e = entries.remove(user);
+        
+        if(e != null){
+            e.lock.lock();
+            
+            try{
+                e.cancelRefresh();
+                e.token = null;
+            }
+            finally{
+                e.lock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * Stops background refreshes.
+     */
+    @Override
+    public void close(){
+        refresher.shutdownNow();
+    }
+    
+    //Fetches a token & schedules its refresh. Called with the entry locked
+    /**@hidden*/
+    private void fetch(Entry e) throws IOException{
+        Token token = source.fetch(e.user);
+        
+        e.token = token;
+        e.cancelRefresh();
+        
+        long delay = Math.max(0, token.getExpiry() - refreshAhead - System.currentTimeMillis());
+        
+        if(!refresher.isShutdown()){
+            try{
+                e.refresh = refresher.schedule(() -> refresh(e), delay, TimeUnit.MILLISECONDS);
+            }
+            catch(RejectedExecutionException ex){}      //Closed meanwhile
+        }
+    }
+    
+    //Background refresh. On failure the current token is kept; callers fetch again once it is too close to expiry
+    /**@hidden*/
+    private void refresh(Entry e){
+        e.lock.lock();
+        
+        try{
+            if(entries.get(e.user) == e)    //Not invalidated
+                fetch(e);
+        }
+        catch(IOException | RuntimeException ex){}
+        finally{
+            e.lock.unlock();
+        }
+    }
+    
+    /**
+     * Source of access tokens, e.g. the auth subprocess or a token endpoint.
+     */
+    @FunctionalInterface
+    public interface TokenSource{
+        /**
+         * Fetches a new access token.
+         *
+         * @param user Username
+         * @return The token
+         * @throws IOException If a token could not be fetched
+         */
+        public Token fetch(String user) throws IOException;
+    }
+    
+    /**
+     * An access token and its expiry.
+     */
+    public static final class Token{
+        /**@hidden*/
+        private final String accessToken;
+        /**@hidden*/
+        private final long expiry;
+        
+        /**
+         * Constructor.
+         *
+         * @param accessToken Access token
+         * @param expiry Expiry time (epoch ms)
+         */
+        public Token(String accessToken, long expiry){
+            this.accessToken = Objects.requireNonNull(accessToken);
+            this.expiry = expiry;
+        }
+        
+        /**
+         * Returns the access token.
+         *
+         * @return Access token
+         */
+        public String getAccessToken(){
+            return accessToken;
+        }
+        
+        /**
+         * Returns the expiry time.
+         *
+         * @return Expiry time (epoch ms)
+         */
+        public long getExpiry(){
+            return expiry;
+        }
+    }
+    
+    /**
+     * A user's cached token.
+     */
+    private static class Entry{
+        /**@hidden*/
+        private final String user;
+        /**Held while fetching, so concurrent callers without a valid token wait for one fetch*/
+        private final ReentrantLock lock = new ReentrantLock();
+        /**Written with the lock held; read without it*/
+        private volatile Token token;
+        /**Scheduled background refresh*/
+        private ScheduledFuture<?> refresh;
+        
+        /**@hidden*/
+        private Entry(String user){
+            this.user = user;
+        }
+        
+        //The cached token, if it has long enough left to be handed out; null otherwise
+        /**@hidden*/
+        private Token getValid(long now){
+            Token t = token;
+            
+            return (t != null && t.getExpiry() - now > MIN_VALIDITY) ? t : null;
+        }
+        
+        /**@hidden*/
+        private void cancelRefresh(){
+            if(refresh != null){
+                refresh.cancel(false);
+                refresh = null;
+            }
+        }
+    }
+}
\ No newline at end of file
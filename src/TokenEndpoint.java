@@ -0,0 +1,152 @@
+/*Copyright (C) 2022  Riley Kuttruff
+*
+*   This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or
+*   (at your option) any later version.
+*
+*   This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+*   Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+*/
+
+import java.io.*;
+import java.net.*;
+import java.net.http.*;
+import java.nio.charset.*;
+import java.time.*;
+import java.util.*;
+
+/**
+ * Client for an OAuth 2.0 token endpoint, getting access tokens with the refresh token grant (RFC 6749 Section 6).
+ * <p>
+ * One {@link HttpClient} is kept for the life of the object, so connections to the endpoint are kept alive and reused.
+ * Each call sends a request; callers coordinate refreshes for the same user through a {@link TokenCache} or
+ * {@link CredentialStore}.
+ *
+ *  @author     Riley Kuttruff
+ *  @version    1.0
+ */
+public class TokenEndpoint implements TokenCache.TokenSource{
+    /**Google's token endpoint*/
+    public static final URI GOOGLE = URI.create("https://oauth2.googleapis.com/token");
+    
+    /**@hidden*/
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+    
+    /**@hidden*/
+    private final URI uri;
+    /**Value of the {@code Authorization} header: client ID & secret (RFC 6749 Section 2.3.1)*/
+    private final String clientAuth;
+    /**Looks up refresh tokens*/
+    private final RefreshTokens refreshTokens;
+    
+    /**@hidden*/
+    private final HttpClient http;
+    
+    /**
+     * Constructor.
+     *
+     * @param uri Token endpoint URL
+     * @param clientId OAuth client ID
+     * @param clientSecret OAuth client secret
+     * @param refreshTokens Looks up users' refresh tokens
+     */
+    public TokenEndpoint(URI uri, String clientId, String clientSecret, RefreshTokens refreshTokens){
+        this.uri = Objects.requireNonNull(uri);
+        this.refreshTokens = Objects.requireNonNull(refreshTokens);
+        
+        Objects.requireNonNull(clientId, "No client ID");
+        Objects.requireNonNull(clientSecret, "No client secret");
+        
+        String cred = urlEncode(clientId) + ":" + urlEncode(clientSecret);
+        clientAuth = "Basic " + Base64.getEncoder().encodeToString(cred.getBytes(StandardCharsets.UTF_8));
+        
+        http = HttpClient.newBuilder()
+            .connectTimeout(TIMEOUT)
+            .build();
+    }
+    
+    /**
+     * Gets a new access token for a user, sending the refresh token grant request.
+     *
+     * @param user Username
+     * @return The token
+     * @throws IOException If the user has no refresh token, or the endpoint could not be reached or refused the request
+     */
+    @Override
+    public TokenCache.Token fetch(String user) throws IOException{
+        String refreshToken = refreshTokens.get(user);
+        
+        if(refreshToken == null)
+            throw new IOException("No refresh token for " + user);
+        
+        String form = "grant_type=refresh_token&refresh_token=" + urlEncode(refreshToken);
+        
+        HttpRequest req = HttpRequest.newBuilder(uri)
+            .timeout(TIMEOUT)
+            .header("Authorization", clientAuth)
+            .header("Content-Type", "application/x-www-form-urlencoded")
+            .header("Accept", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(form))
+            .build();
+        
+        long start = System.currentTimeMillis();
+        HttpResponse<String> resp;
+        
+        try{
+            resp = http.send(req, HttpResponse.BodyHandlers.ofString());
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for token endpoint");
+        }
+        
+        if(resp.statusCode() != 200)
+            throw new IOException("Token endpoint returned HTTP " + resp.statusCode() + " for " + user);
+        
+        try{
+            Map<String, Object> json = Json.parseObject(resp.body());
+            
+            Object token = json.get("access_token");
+            Object expiresIn = json.get("expires_in");
+            
+            if(!(token instanceof String) || !(expiresIn instanceof Number))
+                throw new IOException("Token endpoint reply missing access_token or expires_in");
+            
+            return new TokenCache.Token((String)token, start + ((Number)expiresIn).longValue() * 1000);
+        }
+        catch(IllegalArgumentException e){
+            throw new IOException("Malformed token endpoint reply", e);
+        }
+    }
+    
+    /**
+     * Returns the endpoint URL.
+     *
+     * @return Token endpoint URL
+     */
+    public URI getURI(){
+        return uri;
+    }
+    
+    /**@hidden*/
+    private static String urlEncode(String s){
+        return URLEncoder.encode(s, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Looks up users' refresh tokens.
+     */
+    @FunctionalInterface
+    public interface RefreshTokens{
+        /**
+         * Returns a user's refresh token.
+         *
+         * @param user Username
+         * @return The refresh token, or {@code null} if the user has none
+         * @throws IOException If the refresh token could not be read
+         */
+        public String get(String user) throws IOException;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,29 @@
+/*Copyright (C) 2022  Riley Kuttruff
+*
+*   This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or
+*   (at your option) any later version.
+*
+*   This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+*   Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+*/
+
+/**
+ * How message text is transferred to the server.
+ *
+ *  @author     Riley Kuttruff
+ *  @version    1.0
+ */
+public enum TransferMode{
+    /**
+     * {@code DATA} command: the text is escaped and ended with a {@code .} line (RFC 5321 Section 4.1.1.4).
+     */
+    DATA,
+    /**
+     * {@code BDAT} commands: the text is sent unescaped in counted chunks (RFC 3030). Used only if the server
+     * advertises {@code CHUNKING}; otherwise {@link #DATA} is used.
+     */
+    BDAT
+}
\ No newline at end of file
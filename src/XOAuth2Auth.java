@@ -12,22 +12,39 @@
 
 import java.util.*;
 import java.io.*;
+import java.net.*;
+import java.nio.file.*;
 
 /**
  * Class to handle XOAUTH2 SMTP authentication method. Sets up and executes a Python script ({@code auth.py}) as a subprocess, which returns an OAuth access token to the parent.
+ * <p>
+ * Access tokens are kept in a {@link TokenCache} and refreshed in the background before they expire. Tokens are refreshed in Java, against the token endpoint
+ * ({@code TOKEN_ENDPOINT} in {@code .env}, Google's by default), with the refresh token saved by the subprocess; the subprocess is only run when that is not 
+ * possible, e.g. on first use, when the full authorization flow is needed. Refreshes go through a {@link CredentialStore}, so there is at most one in flight 
+ * per user, and refreshed tokens are saved for later runs. The cache is the store's own, so all instances using the same store share cached tokens.
  *
  *  @author     Riley Kuttruff
  *  @version    1.0
  */
-public class XOAuth2Auth implements Auth, ExitCodes{
+public class XOAuth2Auth implements Auth{
     
     /**Subprocess command for when a Python interpreter is available in the PATH.*/
     private static final String[] INT_CMD = {"python3", "auth.py"};
     /**Subprocess command for when a Python interpreter is not available in the PATH.*/
     private static final String[] EXE_CMD = {"auth.exe"};
+    /**Assumed token lifetime (ms) when the subprocess does not report one.*/
+    private static final long DEFAULT_TOKEN_LIFETIME = 600_000;
 	
 	/**Use auth state file in local directory*/
     private boolean localState;
+    /**Access tokens by user, shared with other instances using the same store*/
+    private final TokenCache tokens;
+    /**Refreshes access tokens*/
+    private final TokenEndpoint endpoint;
+    /**Refresh tokens & saved access tokens*/
+    private final CredentialStore store;
+    /**Settings from the {@code .env} file*/
+    private final Map<String, String> env = new HashMap<>();
     
     /**
      * Determines the command to use for XOAUTH2 subprocess.
@@ -37,8 +54,9 @@ public class XOAuth2Auth implements Auth, ExitCodes{
      * deleted on program exit.
      * 
      * @return And array to use with {@link ProcessBuilder} for the XOAUTH2 subprocess.
+     * @throws IOException If the binary could not be extracted
      */
-    private static String[] getCmd(){
+    private static String[] getCmd() throws IOException{
         try{
             String pathString = System.getenv("PATH");
         
@@ -73,8 +91,7 @@ public class XOAuth2Auth implements Auth, ExitCodes{
                 os.close();
             }
             catch(IOException e){
-                System.err.println("An IO error occurred trying to extract the auth module");
-                System.exit(SMTPClient.ERR_IO_ERROR);
+                throw new IOException("An IO error occurred trying to extract the auth module", e);
             }
         }
             
@@ -86,18 +103,17 @@ public class XOAuth2Auth implements Auth, ExitCodes{
      * Validates the OAuth environment file.
      * <p>
      * Checks the {@code .env} file containing needed fields for OAuth requests (Client ID, Client Secret) is present and contains the needed data.
+     * <p>
+     * The settings in the file are stored in {@link #env}.
      * 
      * @return {@code true} if the file exists and contains the needed data, {@code false} if the file exists and does not contain the needed data
+     * @throws AuthException If the file does not exist
      */
     private boolean verifyEnvFile(){
         File envfile = new File(".env");
         
-        if(!envfile.exists()){
-            System.err.println(".env file not found. See README for info");
-            System.exit(ERR_AUTH_INFO_NOT_FOUND);
-        }
-        
-        boolean id = false, sec = false;
+        if(!envfile.exists())
+            throw new AuthException(AuthException.Reason.INFO_NOT_FOUND, ".env file not found. See README for info", null);
         
         try{
             Scanner s = new Scanner(envfile);
@@ -105,74 +121,172 @@ public class XOAuth2Auth implements Auth, ExitCodes{
             while(s.hasNextLine()){
                 String line = s.nextLine();
                 
-                id = id || line.startsWith("CLIENT_ID");
-                sec = sec || line.startsWith("CLIENT_SECRET");
+                String[] kv = line.split("=", 2);
+                
+                if(kv.length == 2)
+                    env.put(kv[0].trim(), kv[1].trim().replaceAll("^(['\"])(.*)\\1$", "$2"));   //Strip quotes, as python-dotenv does
             }
             
             s.close();
         }
         catch(Exception e) {}
         
-        return id && sec;
+        //Values, not just the keys: the token endpoint can't be used without them
+        return !env.getOrDefault("CLIENT_ID", "").isEmpty() && !env.getOrDefault("CLIENT_SECRET", "").isEmpty();
+    }
+    
+    /**
+     * Returns the path of the credential store written by the subprocess.
+     * 
+     * @param local Use the store in the local directory
+     * @return Path of {@code creds.data}
+     */
+    static Path credentialStorePath(boolean local){
+        String os = System.getProperty("os.name", "");
+        
+        if(local)
+            return Paths.get("creds.data");
+        
+        if(os.startsWith("Windows"))
+            return Paths.get(System.getenv("APPDATA"), "smtp-client", "creds.data");
+        
+        if(os.startsWith("Linux") || os.startsWith("Mac"))
+            return Paths.get(System.getProperty("user.home"), ".smtpc", "creds.data");
+        
+        return Paths.get("creds.data");
+    }
+    
+    //New token: token endpoint first; the subprocess if there is no refresh token or it was refused
+    /**@hidden*/
+    private TokenCache.Token fetchToken(String user) throws IOException{
+        try{
+            return endpoint.fetch(user);
+        }
+        catch(IOException e){
+            return runSubprocess(user);
+        }
     }
     
     /**
      * Creates the argument to the AUTH XOAUTH2 command.
      * <p>
-     * Executes the Python subprocess and processes the returned access token to return the base64 encoded argument to the AUTH command.
+     * Takes the user's access token from the cache, running the Python subprocess only if there is no valid cached token, and returns the base64 encoded argument 
+     * to the AUTH command.
      * 
      * @return Argument to AUTH command
+     * @throws AuthException If no access token could be obtained
      */
     @Override
     public byte[] buildAuthString(String user){
         final String FMT = "user=%s\001auth=Bearer %s\001\001";
         
-        String authToken = null;
-        
+        try{
+            String authToken = tokens.getToken(user);
+            
+            return Base64.getEncoder().encode(String.format(FMT, user, authToken).getBytes());
+        }
+        catch(IOException e){
+            throw new AuthException(AuthException.Reason.TOKEN_FAILED, e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Drops the user's cached access token, so the next authentication fetches a new one.
+     * <p>
+     * For use when the server rejects the token.
+     * 
+     * @param user Username
+     */
+    public void invalidate(String user){
+        tokens.invalidate(user);
+    }
+    
+    /**
+     * Runs the subprocess to get an access token.
+     * <p>
+     * The subprocess prints the access token and, on a second line, the number of seconds until it expires.
+     * 
+     * @param user Username
+     * @return The token
+     * @throws IOException If the subprocess could not be run or failed
+     */
+    private TokenCache.Token runSubprocess(String user) throws IOException{
         ProcessBuilder pb = new ProcessBuilder(getCmd()).redirectError(ProcessBuilder.Redirect.INHERIT);
 		pb.environment().put("username", user);
 		
 		if(localState)
 			pb.environment().put("uselocalstate", "");
         
+        long start = System.currentTimeMillis();
+        
+        Process p = pb.start();
+        List<String> lines = new ArrayList<>();
+        
+        //Read all output before waiting, so the subprocess can't block on a full pipe
+        try(BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream()))){
+            for(String line = r.readLine(); line != null; line = r.readLine())
+                lines.add(line.trim());
+        }
+        
+        int ret;
+        
         try{
-            Process p = pb.start();
-            
-            InputStream os = p.getInputStream();
-            
-            do{
-                try{
-                    p.waitFor();
-                }
-                catch(InterruptedException e){}
-            }while(p.isAlive());
-            
-            int ret = p.exitValue();
-            
-            if(ret != 0){
-                System.err.printf("An error occurred with the subprocess (0x%x)\n", ret);
-                System.exit(ERR_AUTH_SUBPROC_FAILED);
-            }
-            
-            authToken = new Scanner(os).nextLine();
-            
-            return Base64.getEncoder().encode(String.format(FMT, user, authToken).getBytes());
+            ret = p.waitFor();
         }
-        catch(Exception e){
-            System.err.println("An error occurred with the subprocess.");
-            System.exit(ERR_AUTH_SUBPROC_FAILED);
+        catch(InterruptedException e){
+            p.destroy();
+            Thread.currentThread().interrupt();
             
-            return null;
+            throw new InterruptedIOException("Interrupted waiting for the subprocess");
+        }
+        
+        if(ret != 0)
+            throw new IOException(String.format("An error occurred with the subprocess (0x%x)", ret));
+        
+        if(lines.isEmpty() || lines.get(0).isEmpty())
+            throw new IOException("An error occurred with the subprocess.");
+        
+        long lifetime = DEFAULT_TOKEN_LIFETIME;
+        
+        if(lines.size() > 1){
+            try{
+                lifetime = Long.parseLong(lines.get(1)) * 1000;
+            }
+            catch(NumberFormatException e){}    //Older auth module: token only
         }
+        
+        return new TokenCache.Token(lines.get(0), start + lifetime);
     }
     
     /** Default constructor, just validates the {@code .env} file */
     public XOAuth2Auth(boolean local){
-        if(!verifyEnvFile()){
-            System.err.println("Auth info file is missing needed fields. See README for info");
-            System.exit(ERR_AUTH_INFO_INCOMPLETE);
-        }
+        this(local, null);
+    }
+    
+    /**
+     * Constructor, with a given token endpoint.
+     * 
+     * @param local Use the auth state file in the local directory
+     * @param tokenEndpoint Token endpoint URL; if {@code null}, {@code TOKEN_ENDPOINT} from {@code .env}, or Google's endpoint if that is not set
+     * @throws AuthException If the {@code .env} file is missing, missing needed fields, or sets a malformed {@code TOKEN_ENDPOINT}
+     */
+    public XOAuth2Auth(boolean local, URI tokenEndpoint){
+        if(!verifyEnvFile())
+            throw new AuthException(AuthException.Reason.INFO_INCOMPLETE, "Auth info file is missing needed fields. See README for info", null);
 		
 		localState = local;
+        
+        if(tokenEndpoint == null){
+            try{
+                tokenEndpoint = env.containsKey("TOKEN_ENDPOINT") ? URI.create(env.get("TOKEN_ENDPOINT")) : TokenEndpoint.GOOGLE;
+            }
+            catch(IllegalArgumentException e){
+                throw new AuthException(AuthException.Reason.INFO_INCOMPLETE, "Malformed TOKEN_ENDPOINT in auth info file", e);
+            }
+        }
+        
+        store = CredentialStore.shared(credentialStorePath(local));
+        endpoint = new TokenEndpoint(tokenEndpoint, env.get("CLIENT_ID"), env.get("CLIENT_SECRET"), store::getRefreshToken);
+        tokens = store.getTokenCache(this::fetchToken);     //Checks the store for a saved token before fetching
     }
 }
\ No newline at end of file
@@ -60,6 +60,16 @@ if os.getenv('uselocalstate') is not None:
 # STORE = 'creds.data'
 NEWSTORE = STORE + '.new'
 
+# Write to a temporary file & rename it over the store, so readers never see a partly written store
+def writeStore(data):
+	tmp = STORE + '.tmp'
+	
+	f = open(tmp, "w")
+	f.write(json.dumps(data))
+	f.close()
+	
+	os.replace(tmp, STORE)
+
 def tryRefresh(clientId, clientSecret, refreshToken):
 	url = 'https://oauth2.googleapis.com/token'
 	
@@ -115,6 +125,7 @@ def getToken():
 		if data is not None:
 			if now < data['token_expiry']:
 				print(data['access_token'])
+				print(int((parser.parse(data['token_expiry']) - datetime.now()).total_seconds()))
 				sys.exit(0)
 			else:
 				success, resp = tryRefresh(CLIENT_ID, CLIENT_SECRET, data['refresh_token'])
@@ -129,11 +140,10 @@ def getToken():
 			
 					f.close()
 					
-					f = open(STORE, "w")
-					f.write(json.dumps(data))
-					f.close()
+					writeStore(creddata)
 					
 					print(data['access_token'])
+					print(exp)
 					sys.exit(0)
 				else:
 					creddata['users'].remove(data)
@@ -161,6 +171,10 @@ def getToken():
 #	print ("access_token: %s" % (credentials.access_token))
 	print(credentials.access_token)
 	
+	# Seconds until expiry, so the caller can cache the token (oauth2client's expiry is UTC)
+	if credentials.token_expiry is not None:
+		print(int((credentials.token_expiry - datetime.utcnow()).total_seconds()))
+	
 	s = open(STORE, "r")
 	ns = open(NEWSTORE, "r")
 	
@@ -175,9 +189,7 @@ def getToken():
 	
 	os.remove(NEWSTORE)
 	
-	f = open(STORE, "w")
-	f.write(json.dumps(data))
-	f.close()
+	writeStore(data)
 	
 
 getToken()
\ No newline at end of file
@@ -0,0 +1,60 @@
+/*Copyright (C) 2022  Riley Kuttruff
+*
+*   This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or
+*   (at your option) any later version.
+*
+*   This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+*   Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+*/
+
+import java.util.*;
+
+/**
+ * Assertions for the tests in this directory.
+ * <p>
+ * Each check is reported as it is made; failures are counted, and {@link #done()} exits non-zero if there were any.
+ *
+ *  @author     Riley Kuttruff
+ *  @version    1.0
+ */
+public final class Check{
+    /**@hidden*/
+    private static int failures = 0;
+    
+    /**@hidden*/
+    private Check(){}
+    
+    /**
+     * Checks a condition.
+     *
+     * @param cond Condition that should hold
+     * @param what Description of the condition
+     */
+    public static void that(boolean cond, String what){
+        if(!cond)
+            failures++;
+        
+        System.out.println((cond ? "  ok    " : "  FAIL  ") + what);
+    }
+    
+    /**
+     * Checks two values are equal.
+     *
+     * @param expected Expected value
+     * @param actual Actual value
+     * @param what Description of the value
+     */
+    public static void equal(Object expected, Object actual, String what){
+        that(Objects.equals(expected, actual), what + ": expected " + expected + ", got " + actual);
+    }
+    
+    /**
+     * Exits: 0 if every check held, 1 otherwise.
+     */
+    public static void done(){
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}
\ No newline at end of file
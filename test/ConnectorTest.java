@@ -0,0 +1,102 @@
+/*Copyright (C) 2022  Riley Kuttruff
+*
+*   This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or
+*   (at your option) any later version.
+*
+*   This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+*   Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+*/
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
+
+import javax.net.ssl.*;
+
+/**
+ * Tests of {@link Connector} against the mock server, a JDK TLS server that resumes sessions.
+ *
+ *  @author     Riley Kuttruff
+ *  @version    1.0
+ */
+public class ConnectorTest{
+    /**@hidden*/
+    private static final InetAddress[] LOOPBACK = {InetAddress.getLoopbackAddress()};
+    
+    /**
+     * Runs the tests.
+     *
+     * @param args Unused
+     * @throws Exception If a test cannot be run
+     */
+    public static void main(String[] args) throws Exception{
+        try(MockSMTPServer server = new MockSMTPServer(0, List.of(), 0)){
+            server.start();
+            
+            resumption(server, "TLSv1.3");
+            resumption(server, "TLSv1.2");
+            hostnameMismatch(server);
+        }
+        
+        Check.done();
+    }
+    
+    //Reconnects through one context resume its session; a new context makes a full handshake
+    /**@hidden*/
+    private static void resumption(MockSMTPServer server, String protocol) throws Exception{
+        SSLContext ctx = SSLContext.getInstance(protocol);
+        ctx.init(null, null, null);
+        
+        Connector connector = new Connector(Connector.DEFAULT_ATTEMPT_DELAY, Connector.DEFAULT_CONNECT_TIMEOUT, Resolver.getDefault(), ctx);
+        
+        for(int i = 0; i < 3; i++)
+            Check.equal(protocol, greet(connector, "localhost", server.getPort()), protocol + " negotiated");
+        
+        Check.equal(3L, connector.getHandshakes(), protocol + " handshakes");
+        Check.equal(2L, connector.getResumedHandshakes(), protocol + " resumed handshakes");
+        
+        SSLContext fresh = SSLContext.getInstance(protocol);
+        fresh.init(null, null, null);
+        
+        Connector other = new Connector(Connector.DEFAULT_ATTEMPT_DELAY, Connector.DEFAULT_CONNECT_TIMEOUT, Resolver.getDefault(), fresh);
+        
+        greet(other, "localhost", server.getPort());
+        
+        Check.equal(0L, other.getResumedHandshakes(), protocol + " resumed handshakes with a new context");
+    }
+    
+    //A trusted certificate for another name is refused
+    /**@hidden*/
+    private static void hostnameMismatch(MockSMTPServer server) throws Exception{
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(null, null, null);
+        
+        Connector connector = new Connector(Connector.DEFAULT_ATTEMPT_DELAY, Connector.DEFAULT_CONNECT_TIMEOUT, Resolver.getDefault(), ctx);
+        
+        try{
+            greet(connector, "mail.example.com", server.getPort());
+            Check.that(false, "certificate for another host refused");
+        }
+        catch(SSLHandshakeException e){
+            Check.that(true, "certificate for another host refused");
+        }
+        
+        Check.equal("TLSv1.3", greet(connector, "localhost", server.getPort()), "certificate for the host accepted");
+    }
+    
+    //Connects & reads the greeting, which also takes in any TLS 1.3 session tickets. Returns the protocol negotiated
+    /**@hidden*/
+    private static String greet(Connector connector, String host, int port) throws IOException{
+        try(SSLSocket sock = connector.connect(host, LOOPBACK, port, null)){
+            BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream(), StandardCharsets.US_ASCII));
+            
+            Check.that(in.readLine().startsWith("220"), "greeting received");
+            
+            return sock.getSession().getProtocol();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,150 @@
+/*Copyright (C) 2022  Riley Kuttruff
+*
+*   This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or
+*   (at your option) any later version.
+*
+*   This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+*   Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+*/
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * Tests of {@link RetryScheduler} against the mock server: what is retried, and what is not.
+ *
+ *  @author     Riley Kuttruff
+ *  @version    1.0
+ */
+public class RetrySchedulerTest{
+    /**@hidden*/
+    private static final String SENDER = "sender@example.com";
+    /**@hidden*/
+    private static final String[] RECIPIENTS = {"a@example.com", "b@example.com"};
+    
+    /**
+     * Runs the tests.
+     *
+     * @param args Unused
+     * @throws Exception If a test cannot be run
+     */
+    public static void main(String[] args) throws Exception{
+        try(MockSMTPServer server = new MockSMTPServer(0, Arrays.asList("8BITMIME", "AUTH PLAIN"), 0)){
+            server.start();
+            
+            temporaryRecipient(server);
+            droppedConnection(server);
+            refusedAuth(server);
+            closedClient(server);
+            standardInput(server);
+        }
+        
+        Check.done();
+    }
+    
+    //A recipient deferred with a 4xx reply is sent the message again, alone
+    /**@hidden*/
+    private static void temporaryRecipient(MockSMTPServer server) throws Exception{
+        server.addFault(MockSMTPServer.Fault.reply("RCPT", "451 4.2.0 Try again later").matching("b@").times(1));
+        
+        RetryScheduler.Delivery d = send(server, message(Arrays.asList("Subject: retry", "", "Hello")));
+        
+        Check.that(d.isSuccess(), "4xx recipient: delivered");
+        Check.equal(2, d.getAttempts(), "4xx recipient: attempts");
+        Check.equal(2, server.getReceived().size(), "4xx recipient: messages received");
+        Check.equal(List.of("b@example.com"), server.getReceived().get(1).getRecipients(), "4xx recipient: retried recipients");
+    }
+    
+    //An I/O error is retried
+    /**@hidden*/
+    private static void droppedConnection(MockSMTPServer server) throws Exception{
+        server.addFault(MockSMTPServer.Fault.drop("MAIL").times(1));
+        
+        RetryScheduler.Delivery d = send(server, message(Arrays.asList("Subject: retry", "", "Hello")));
+        
+        Check.that(d.isSuccess(), "dropped connection: delivered");
+        Check.equal(2, d.getAttempts(), "dropped connection: attempts");
+        Check.equal(null, d.getCause(), "dropped connection: cause after the last attempt");
+    }
+    
+    //A 5xx refusal of the credentials fails the message without a retry
+    /**@hidden*/
+    private static void refusedAuth(MockSMTPServer server) throws Exception{
+        server.addFault(MockSMTPServer.Fault.reply("AUTH", "535 5.7.8 Authentication credentials invalid"));
+        
+        RetryScheduler.Delivery d = send(server, message(Arrays.asList("Subject: retry", "", "Hello")));
+        
+        Check.that(!d.isSuccess(), "refused AUTH: not delivered");
+        Check.equal(1, d.getAttempts(), "refused AUTH: attempts");
+        Check.that(d.getCause() instanceof SMTPException, "refused AUTH: cause recorded (" + d.getCause() + ")");
+        Check.equal(Arrays.asList(RECIPIENTS), d.getFailed(), "refused AUTH: failed recipients");
+    }
+    
+    //A closed client fails the message without a retry
+    /**@hidden*/
+    private static void closedClient(MockSMTPServer server) throws Exception{
+        AsyncSMTPClient client = client(server);
+        client.close();
+        
+        try(RetryScheduler scheduler = new RetryScheduler(client, 10, 10, 3)){
+            RetryScheduler.Delivery d = scheduler.submit(message(Arrays.asList("Subject: retry", "", "Hello"))).get();
+            
+            Check.equal(1, d.getAttempts(), "closed client: attempts");
+            Check.equal(0L, scheduler.getDeferrals(), "closed client: deferrals");
+            Check.that(d.getCause() instanceof IllegalStateException, "closed client: cause recorded (" + d.getCause() + ")");
+        }
+    }
+    
+    //Standard input is read once: a message with it is not sent again, and its deferred recipients are given up on
+    /**@hidden*/
+    private static void standardInput(MockSMTPServer server) throws Exception{
+        InputStream stdin = System.in;
+        
+        server.addFault(MockSMTPServer.Fault.reply("RCPT", "451 4.2.0 Try again later").matching("b@").times(1));
+        System.setIn(new ByteArrayInputStream("Subject: stdin\r\n\r\nHello\r\n".getBytes(StandardCharsets.US_ASCII)));
+        
+        try{
+            RetryScheduler.Delivery d = send(server, new MailMessage(SENDER, RECIPIENTS, null, List.of("-")));
+            
+            Check.equal(1, d.getAttempts(), "standard input: attempts");
+            Check.equal(List.of("a@example.com"), d.getDelivered(), "standard input: delivered recipients");
+            Check.equal(List.of("b@example.com"), d.getFailed(), "standard input: given up recipients");
+            Check.equal(1, server.getReceived().size(), "standard input: messages received");
+        }
+        finally{
+            System.setIn(stdin);
+        }
+    }
+    
+    //Sends a message through a new scheduler retrying quickly, after clearing what the server received
+    /**@hidden*/
+    private static RetryScheduler.Delivery send(MockSMTPServer server, MailMessage msg) throws Exception{
+        AsyncSMTPClient client = client(server);
+        
+        server.clearReceived();
+        
+        try(RetryScheduler scheduler = new RetryScheduler(client, 10, 10, 3)){
+            return scheduler.submit(msg).get();
+        }
+        finally{
+            client.close();
+            server.clearFaults();
+        }
+    }
+    
+    /**@hidden*/
+    private static AsyncSMTPClient client(MockSMTPServer server){
+        SMTPSessionPool pool = new SMTPSessionPool(2, SMTPSessionPool.DEFAULT_IDLE_TIMEOUT, SMTPSessionPool.DEFAULT_MAX_LIFETIME);
+        
+        return new AsyncSMTPClient(pool, "localhost", server.getPort(), "test", "PLAIN", new PlainCredentials("test", "test".toCharArray()));
+    }
+    
+    /**@hidden*/
+    private static MailMessage message(List<String> lines){
+        return new MailMessage(SENDER, RECIPIENTS, lines, null);
+    }
+}
\ No newline at end of file
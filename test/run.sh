@@ -0,0 +1,27 @@
+#!/bin/bash
+
+# Builds & runs the tests: every *Test class here, against the mock SMTP server in bench/
+# The server & client use the benchmarks' self-signed certificate, created on the first run
+
+cd "$(dirname "$0")"
+
+STORE=../bench/bench.p12
+PASS=changeit
+
+if [ ! -f $STORE ]; then
+    keytool -genkeypair -alias mock -keyalg RSA -keysize 2048 -validity 3650 -dname "CN=localhost" \
+            -ext "SAN=dns:localhost,ip:127.0.0.1" -storetype PKCS12 -keystore $STORE -storepass $PASS -keypass $PASS || exit 1
+fi
+
+rm -rf out
+javac -d out ../src/*.java ../bench/MockSMTPServer.java *.java || exit 1
+
+FAILED=0
+
+for TEST in *Test.java; do
+    echo "${TEST%.java}:"
+    java -cp out -Djavax.net.ssl.keyStore=$STORE -Djavax.net.ssl.keyStorePassword=$PASS \
+                 -Djavax.net.ssl.trustStore=$STORE -Djavax.net.ssl.trustStorePassword=$PASS "${TEST%.java}" || FAILED=1
+done
+
+exit $FAILED